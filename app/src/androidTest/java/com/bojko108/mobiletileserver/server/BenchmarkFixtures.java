@@ -0,0 +1,169 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Creates synthetic tilesets for the benchmarks in the cache directory of the test app, which is
+ * used as the root directory of the server - see {@link BenchmarkFixtures#getRootPath(Context)}.
+ * The tilesets are created once and reused by the following runs - tile data is random, but the same
+ * for each run, so results from different runs can be compared.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class BenchmarkFixtures {
+    /**
+     * Tiles are created for zoom levels 0 to this value - 21845 tiles in total
+     */
+    public static final int MBTILES_MAX_ZOOM = 7;
+    /**
+     * Size of each tile - close to a compressed 256x256 PNG tile of a simple map
+     */
+    public static final int TILE_SIZE = 2048;
+    /**
+     * Tiles are created for zoom levels 0 to this value in the directory tileset
+     */
+    public static final int DIRECTORY_MAX_ZOOM = 4;
+    /**
+     * Name of the MBTiles tileset
+     */
+    public static final String MBTILES_TILESET = "benchmark.mbtiles";
+    /**
+     * Name of the Directory Tileset
+     */
+    public static final String DIRECTORY_TILESET = "benchmark";
+    private static final long SEED = 108;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Gets an MBTiles file with all tiles from zoom level 0 to {@link BenchmarkFixtures#MBTILES_MAX_ZOOM}.
+     *
+     * @param context test context
+     * @return the MBTiles file
+     */
+    public static synchronized File getMBTilesFile(Context context) {
+        File file = new File(getRootPath(context) + "/mbtiles/" + MBTILES_TILESET);
+        if (!file.exists()) {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Cannot create " + directory);
+            }
+            createMBTilesFile(file);
+        }
+        return file;
+    }
+
+    /**
+     * Gets a tiles directory with all tiles from zoom level 0 to {@link BenchmarkFixtures#DIRECTORY_MAX_ZOOM}.
+     *
+     * @param context test context
+     * @return root directory of the tileset - it contains the zoom level directories
+     * @throws IOException if a tile can not be written
+     */
+    public static synchronized File getTilesDirectory(Context context) throws IOException {
+        File directory = new File(getRootPath(context) + "/tiles/" + DIRECTORY_TILESET);
+        if (!directory.exists()) {
+            createTilesDirectory(directory);
+        }
+        return directory;
+    }
+
+    /**
+     * Gets the root directory of the server for the fixtures - <i>NO_TILE_IMAGE</i> is read from it.
+     *
+     * @param context test context
+     * @return root directory
+     */
+    public static String getRootPath(Context context) {
+        return context.getCacheDir().getAbsolutePath();
+    }
+
+    private static void createMBTilesFile(File file) {
+        Random random = new Random(SEED);
+        byte[] data = new byte[TILE_SIZE];
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        SQLiteDatabase.deleteDatabase(temp);
+
+        try (SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(temp, null)) {
+            db.execSQL("CREATE TABLE metadata (name text, value text)");
+            db.execSQL("CREATE TABLE tiles (zoom_level integer, tile_column integer, tile_row integer, tile_data blob)");
+            db.execSQL("CREATE UNIQUE INDEX tile_index on tiles (zoom_level, tile_column, tile_row)");
+
+            db.beginTransaction();
+            try {
+                insertMetadata(db, "name", "Benchmark");
+                insertMetadata(db, "description", "Synthetic tileset for benchmarks");
+                insertMetadata(db, "version", "1.0");
+                insertMetadata(db, "format", "png");
+                insertMetadata(db, "minzoom", "0");
+                insertMetadata(db, "maxzoom", String.valueOf(MBTILES_MAX_ZOOM));
+                insertMetadata(db, "bounds", "-180,-85.0511,180,85.0511");
+                insertMetadata(db, "attribution", "Mobile Tile Server");
+
+                ContentValues values = new ContentValues();
+                for (int z = 0; z <= MBTILES_MAX_ZOOM; z++) {
+                    int size = 1 << z;
+                    for (int x = 0; x < size; x++) {
+                        for (int y = 0; y < size; y++) {
+                            random.nextBytes(data);
+                            values.put("zoom_level", z);
+                            values.put("tile_column", x);
+                            values.put("tile_row", y);
+                            values.put("tile_data", data);
+                            db.insertOrThrow("tiles", null, values);
+                        }
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            throw new IllegalStateException("Cannot create " + file);
+        }
+    }
+
+    private static void insertMetadata(SQLiteDatabase db, String name, String value) {
+        ContentValues values = new ContentValues();
+        values.put("name", name);
+        values.put("value", value);
+        db.insertOrThrow("metadata", null, values);
+    }
+
+    private static void createTilesDirectory(File directory) throws IOException {
+        Random random = new Random(SEED);
+        byte[] data = new byte[TILE_SIZE];
+        File temp = new File(directory.getAbsolutePath() + ".tmp");
+
+        for (int z = 0; z <= DIRECTORY_MAX_ZOOM; z++) {
+            int size = 1 << z;
+            for (int x = 0; x < size; x++) {
+                File column = new File(temp, z + "/" + x);
+                if (!column.isDirectory() && !column.mkdirs()) {
+                    throw new IOException("Cannot create " + column);
+                }
+                for (int y = 0; y < size; y++) {
+                    random.nextBytes(data);
+                    try (FileOutputStream out = new FileOutputStream(new File(column, y + ".png"))) {
+                        out.write(data);
+                    }
+                }
+            }
+        }
+
+        if (!temp.renameTo(directory)) {
+            throw new IOException("Cannot create " + directory);
+        }
+    }
+}
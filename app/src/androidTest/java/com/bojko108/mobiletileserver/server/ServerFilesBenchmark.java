@@ -0,0 +1,119 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.bojko108.mobiletileserver.server.tilesets.MBTilesDatabase;
+import com.bojko108.mobiletileserver.server.tilesets.TilesetInfo;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures rendering of the web pages and TileJSON documents in {@link ServerFiles}. Pages are
+ * rendered from the templates in <i>res/raw</i> for a catalog of synthetic tilesets.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+@RunWith(AndroidJUnit4.class)
+public class ServerFilesBenchmark {
+    /**
+     * Number of tilesets in the catalog - the same file is listed with different names
+     */
+    private static final int TILESETS = 50;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private TilesetInfo mbTilesInfo;
+    private TilesetInfo directoryInfo;
+    private final List<TilesetInfo> mbTilesets = new ArrayList<>();
+    private final List<TilesetInfo> directoryTilesets = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        ServerFiles.setAppResources(context, BenchmarkFixtures.getRootPath(context));
+        ServerFiles.setServerUrlAddress("http://127.0.0.1:1886");
+        ServerFiles.setServerPorts(new int[]{1886});
+
+        File file = BenchmarkFixtures.getMBTilesFile(context);
+        MBTilesDatabase database = new MBTilesDatabase(file.getAbsolutePath());
+        this.mbTilesInfo = database.getInfo();
+        database.close();
+        this.directoryInfo = new TilesetInfo(BenchmarkFixtures.getTilesDirectory(context));
+
+        for (int i = 0; i < TILESETS; i++) {
+            this.mbTilesets.add(this.mbTilesInfo);
+            this.directoryTilesets.add(this.directoryInfo);
+        }
+    }
+
+    @Test
+    public void getMBTilesPreviewPageHtml() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ServerFiles.getMBTilesPreviewPageHtmlFor(this.mbTilesInfo);
+        }
+    }
+
+    @Test
+    public void getDirectoryTilesPreviewPageHtml() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ServerFiles.getDirectoryTilesPreviewPageHtmlFor(this.directoryInfo);
+        }
+    }
+
+    @Test
+    public void getAvailableMBTilesPageHtml() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ServerFiles.getAvailableMBTilesPageHtmlFor(this.mbTilesets);
+        }
+    }
+
+    @Test
+    public void getAvailableMBTilesPageHtmlForCatalogVersion() {
+        // the page is rendered once and returned again while the catalog is not changed
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ServerFiles.getAvailableMBTilesPageHtmlFor(this.mbTilesets, 1);
+        }
+    }
+
+    @Test
+    public void getAvailableDirectoryTilesPageHtml() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            ServerFiles.getAvailableDirectoryTilesPageHtmlFor(this.directoryTilesets);
+        }
+    }
+
+    @Test
+    public void getTileJson() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            // a new info is created for each changed tileset, so the document is created again
+            state.pauseTiming();
+            TilesetInfo info = new TilesetInfo();
+            info.setParameter(TilesetInfo.TILESET_NAME, "benchmark.mbtiles");
+            info.setParameter(TilesetInfo.MAX_ZOOM, String.valueOf(BenchmarkFixtures.MBTILES_MAX_ZOOM));
+            state.resumeTiming();
+
+            ServerFiles.getTileJsonFor(info, ServerFiles.TilesetType.MBTiles);
+        }
+    }
+}
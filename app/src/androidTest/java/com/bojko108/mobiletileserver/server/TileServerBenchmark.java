@@ -0,0 +1,125 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.bojko108.mobiletileserver.server.cache.TileCache;
+import com.bojko108.mobiletileserver.utils.HelperClass;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the work done by the {@link TileServer} for each tile request: reading a tile from a
+ * MBTiles file or finding a tile file in a Directory Tileset, building the cache key and reading
+ * the tile from the cache. The server is created, but not started - the tiles are read the same
+ * way as for a request, without the HTTP handling. Tile files are sent by the HTTP server, so
+ * only finding them is measured.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+@RunWith(AndroidJUnit4.class)
+public class TileServerBenchmark {
+    private static final String TILESET = BenchmarkFixtures.MBTILES_TILESET;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private TileServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        BenchmarkFixtures.getMBTilesFile(context);
+        BenchmarkFixtures.getTilesDirectory(context);
+        this.server = new TileServer(BenchmarkFixtures.getRootPath(context), context);
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop();
+    }
+
+    @Test
+    public void getTileFromMBTilesFile() {
+        // all tiles from the highest zoom level are read in turn - more than fit in the tile cache
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM;
+        int size = 1 << z;
+        String[] columns = new String[size];
+        for (int i = 0; i < size; i++) {
+            columns[i] = String.valueOf(i);
+        }
+        String zoom = String.valueOf(z);
+        assertNotNull(this.server.getTileFromMBTilesFile(TILESET, zoom, columns[0], columns[1]));
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            this.server.getTileFromMBTilesFile(TILESET, zoom, columns[i % size], columns[i / size]);
+            i = (i + 1) % (size * size);
+        }
+    }
+
+    @Test
+    public void findDirectoryTileFile() {
+        int z = BenchmarkFixtures.DIRECTORY_MAX_ZOOM;
+        int size = 1 << z;
+        String[] paths = new String[size * size];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = "/tiles/" + BenchmarkFixtures.DIRECTORY_TILESET + "/" + z + "/" + (i % size) + "/" + (i / size) + ".png";
+        }
+        assertNotNull(this.server.findDirectoryTileFile(paths[0]));
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            this.server.findDirectoryTileFile(paths[i]);
+            i = (i + 1) % paths.length;
+        }
+    }
+
+    @Test
+    public void getQuadkeyFromXYZ() {
+        BenchmarkState state = this.benchmarkRule.getState();
+        int x = 0;
+        while (state.keepRunning()) {
+            HelperClass.getQuadkeyFromXYZ(16, 36000 + x, 24000 + x);
+            x = (x + 1) & 1023;
+        }
+    }
+
+    @Test
+    public void getTileFromCache() {
+        TileCache cache = new TileCache(16 * 1024 * 1024);
+        int size = 1 << BenchmarkFixtures.DIRECTORY_MAX_ZOOM;
+        byte[] data = new byte[BenchmarkFixtures.TILE_SIZE];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                cache.put(TileCache.keyFor(TILESET, BenchmarkFixtures.DIRECTORY_MAX_ZOOM, x, y), data);
+            }
+        }
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            int x = i % size;
+            int y = i / size;
+            cache.get(TileCache.keyFor(TILESET, BenchmarkFixtures.DIRECTORY_MAX_ZOOM, x, y));
+            i = (i + 1) % (size * size);
+        }
+
+        cache.close();
+    }
+}
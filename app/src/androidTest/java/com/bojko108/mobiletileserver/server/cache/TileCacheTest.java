@@ -0,0 +1,135 @@
+package com.bojko108.mobiletileserver.server.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the byte budget of the {@link TileCache} and moving evicted tiles to its second level.
+ * The cache is backed by {@link android.util.LruCache}, so the tests run on a device.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+@RunWith(AndroidJUnit4.class)
+public class TileCacheTest {
+    private File slabFile;
+    private TileCache cache;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        this.slabFile = new File(context.getCacheDir(), "TileCacheTest.slab");
+    }
+
+    @After
+    public void tearDown() {
+        if (this.cache != null) {
+            this.cache.close();
+        }
+        this.slabFile.delete();
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedTilesOverBudget() {
+        this.cache = new TileCache(100);
+        this.cache.put("a", tile(1, 40));
+        this.cache.put("b", tile(2, 40));
+        // a is now used more recently than b
+        this.cache.get("a");
+        this.cache.put("c", tile(3, 40));
+
+        assertArrayEquals(tile(1, 40), this.cache.get("a"));
+        assertNull(this.cache.get("b"));
+        assertArrayEquals(tile(3, 40), this.cache.get("c"));
+        assertEquals(80, this.cache.getSizeInBytes());
+    }
+
+    @Test
+    public void put_skipsEmptyTilesAndTilesOverBudget() {
+        this.cache = new TileCache(100);
+        this.cache.put("a", new byte[0]);
+        this.cache.put("b", tile(2, 101));
+
+        assertNull(this.cache.get("a"));
+        assertNull(this.cache.get("b"));
+        assertEquals(0, this.cache.getSizeInBytes());
+    }
+
+    @Test
+    public void isEnabled_falseForZeroBudget() {
+        this.cache = new TileCache(0);
+        this.cache.put("a", tile(1, 10));
+
+        assertFalse(this.cache.isEnabled());
+        assertNull(this.cache.get("a"));
+    }
+
+    @Test
+    public void get_readsEvictedTilesFromSecondLevel() {
+        this.cache = new TileCache(100, this.openSlab());
+        this.cache.put("a", tile(1, 40));
+        this.cache.put("b", tile(2, 40));
+        this.cache.put("c", tile(3, 40));
+        // larger than the memory budget - stored only in the second level
+        this.cache.put("d", tile(4, 120));
+
+        assertArrayEquals(tile(1, 40), this.cache.get("a"));
+        assertArrayEquals(tile(4, 120), this.cache.get("d"));
+        assertEquals(2, this.cache.getHitCount());
+    }
+
+    @Test
+    public void trimMemory_dropsTilesInsteadOfMovingThem() {
+        this.cache = new TileCache(100, this.openSlab());
+        this.cache.put("a", tile(1, 40));
+
+        this.cache.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        assertEquals(0, this.cache.getSizeInBytes());
+        assertNull(this.cache.get("a"));
+    }
+
+    @Test
+    public void invalidate_removesTilesOfTileset() {
+        this.cache = new TileCache(100, this.openSlab());
+        this.cache.put(TileCache.keyFor("tiles/a", 1, 0, 0), tile(1, 40));
+        this.cache.put(TileCache.keyFor("tiles/a", 1, 1, 0), tile(2, 40));
+        // moves the first tile of tiles/a to the second level
+        this.cache.put(TileCache.keyFor("tiles/ab", 1, 0, 0), tile(3, 40));
+
+        this.cache.invalidate("tiles/a");
+
+        assertNull(this.cache.get(TileCache.keyFor("tiles/a", 1, 0, 0)));
+        assertNull(this.cache.get(TileCache.keyFor("tiles/a", 1, 1, 0)));
+        assertArrayEquals(tile(3, 40), this.cache.get(TileCache.keyFor("tiles/ab", 1, 0, 0)));
+    }
+
+    private SlabTileCache openSlab() {
+        SlabTileCache slab = new SlabTileCache(this.slabFile, 1000);
+        assertTrue(slab.open());
+        return slab;
+    }
+
+    private static byte[] tile(int value, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
@@ -0,0 +1,193 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import android.content.Context;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.bojko108.mobiletileserver.server.BenchmarkFixtures;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures reading tiles and metadata from an MBTiles file. Each tile request to the server,
+ * which is not in the tile cache, runs {@link MBTilesDatabase#getTile(int, int, int)} - the time
+ * per iteration gives the tiles per second a single worker can read and the allocation count
+ * gives the allocations per tile.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+@RunWith(AndroidJUnit4.class)
+public class MBTilesDatabaseBenchmark {
+    /**
+     * Number of precomputed tile coordinates - requests are spread over the whole zoom level,
+     * like requests from a map client, which is panned around
+     */
+    private static final int COORDINATES = 1024;
+    /**
+     * Number of worker threads reading tiles at the same time
+     */
+    private static final int THREADS = 4;
+    private static final int TILES_PER_THREAD = COORDINATES / THREADS;
+
+    @Rule
+    public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+    private Context context;
+    private String path;
+    private MBTilesDatabase database;
+    private int[] coordinates;
+
+    @Before
+    public void setUp() {
+        this.context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        this.path = BenchmarkFixtures.getMBTilesFile(this.context).getAbsolutePath();
+        this.database = new MBTilesDatabase(this.path);
+
+        Random random = new Random(COORDINATES);
+        int size = 1 << BenchmarkFixtures.MBTILES_MAX_ZOOM;
+        this.coordinates = new int[COORDINATES * 2];
+        for (int i = 0; i < this.coordinates.length; i++) {
+            this.coordinates[i] = random.nextInt(size);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        this.database.close();
+    }
+
+    @Test
+    public void getTile() {
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM;
+        assertNotNull(this.database.getTile(z, 0, 0));
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            this.database.getTile(z, this.coordinates[i], this.coordinates[i + 1]);
+            i = (i + 2) % this.coordinates.length;
+        }
+    }
+
+    @Test
+    public void getTileParallel() throws Exception {
+        // each iteration reads TILES_PER_THREAD tiles on each of THREADS threads from the same file
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM;
+        for (int t = 0; t < THREADS; t++) {
+            int first = t * TILES_PER_THREAD * 2;
+            tasks.add(() -> {
+                for (int i = first; i < first + TILES_PER_THREAD * 2; i += 2) {
+                    this.database.getTile(z, this.coordinates[i], this.coordinates[i + 1]);
+                }
+                return null;
+            });
+        }
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        }
+
+        executor.shutdown();
+    }
+
+    @Test
+    public void getTileMissing() {
+        // no tiles are stored for the next zoom level
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM + 1;
+        assertNull(this.database.getTile(z, 0, 0));
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            this.database.getTile(z, this.coordinates[i], this.coordinates[i + 1]);
+            i = (i + 2) % this.coordinates.length;
+        }
+    }
+
+    @Test
+    public void filterMissingTile() {
+        // the same missing tiles as in getTileMissing(), answered by the Bloom filter
+        MBTilesTileFilter filter = new MBTilesTileFilter(new File(this.path), 1_000_000);
+        assertTrue(filter.build());
+        assertTrue(filter.mightContain(BenchmarkFixtures.MBTILES_MAX_ZOOM, 0, 0));
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM + 1;
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            filter.mightContain(z, this.coordinates[i], this.coordinates[i + 1]);
+            i = (i + 2) % this.coordinates.length;
+        }
+    }
+
+    @Test
+    public void getTiles() {
+        // 8x8 tiles - a range requested from /batch/mbtiles
+        int z = BenchmarkFixtures.MBTILES_MAX_ZOOM;
+        MBTilesDatabase.TileConsumer consumer = (tileZ, x, y, data) -> {
+        };
+        assertEquals(64, this.database.getTiles(z, 0, 7, 0, 7, consumer));
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        int i = 0;
+        while (state.keepRunning()) {
+            int x = this.coordinates[i] & ~7;
+            int y = this.coordinates[i + 1] & ~7;
+            this.database.getTiles(z, x, x + 7, y, y + 7, consumer);
+            i = (i + 2) % this.coordinates.length;
+        }
+    }
+
+    @Test
+    public void readInfo() {
+        // opening the file reads the schema and the metadata table - done for each new file in
+        // the catalog and each time the pool opens a file again
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            MBTilesDatabase database = new MBTilesDatabase(this.path);
+            database.getInfo();
+            database.close();
+        }
+    }
+
+    @Test
+    public void acquireFromPool() {
+        MBTilesDatabasePool pool = new MBTilesDatabasePool(1);
+
+        BenchmarkState state = this.benchmarkRule.getState();
+        while (state.keepRunning()) {
+            try (MBTilesDatabasePool.Handle handle = pool.acquire(this.path)) {
+                handle.getDatabase();
+            }
+        }
+
+        pool.closeAll();
+    }
+}
@@ -13,6 +13,8 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 
 import androidx.appcompat.app.AppCompatActivity;
@@ -26,6 +28,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ImageView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bojko108.mobiletileserver.server.TileService;
@@ -36,6 +39,9 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     // used to ping TileService to see if it's running
     private LocalBroadcastManager manager;
+    // pings TileService periodically to update the server metrics
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private static final long METRICS_REFRESH_INTERVAL = 3000;
 
     // server port and root path: stored in shared preferences
     private int serverPort;
@@ -78,11 +84,14 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         this.rootPath = prefs.getString("rootpath", getResources().getString(R.string.settings_root_path_default));
 
         this.prepareUI();
+
+        this.handler.postDelayed(this.refreshMetrics, METRICS_REFRESH_INTERVAL);
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        this.handler.removeCallbacks(this.refreshMetrics);
         this.manager.unregisterReceiver(this.localReceiver);
     }
 
@@ -149,6 +158,7 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
         ImageView buttonTile = findViewById(R.id.imageTiles);
         MaterialButton buttonStart = (MaterialButton) findViewById(R.id.buttonStart);
         MaterialButton buttonStop = (MaterialButton) findViewById(R.id.buttonStop);
+        TextView textMetrics = findViewById(R.id.textMetrics);
 
         if (this.running) {
             buttonTile.setImageAlpha(255);
@@ -166,6 +176,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
             buttonStart.setClickable(true);
             buttonStop.setClickable(false);
+
+            textMetrics.setText("");
         }
     }
 
@@ -218,15 +230,30 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
 
     }
 
+    /**
+     * Pings {@link TileService} - if it is running, the server metrics are shown by {@link MainActivity#localReceiver}
+     */
+    private final Runnable refreshMetrics = new Runnable() {
+        @Override
+        public void run() {
+            manager.sendBroadcast(new Intent(TileService.ACTION_PING));
+            handler.postDelayed(this, METRICS_REFRESH_INTERVAL);
+        }
+    };
+
     /**
      * This local broadcast is used to simply ping {@link TileService} to see if
-     * it is running
+     * it is running and to show a summary of the server metrics
      */
     protected BroadcastReceiver localReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             if (TileService.ACTION_RUNNING.equals(intent.getAction())) {
                 running = true;
+
+                String summary = intent.getStringExtra(TileService.KEY_METRICS_SUMMARY);
+                TextView textMetrics = findViewById(R.id.textMetrics);
+                textMetrics.setText(summary != null ? summary : "");
             }
         }
     };
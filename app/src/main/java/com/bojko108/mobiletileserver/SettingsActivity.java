@@ -36,6 +36,12 @@ public class SettingsActivity extends AppCompatActivity {
             findPreference(getString(R.string.rootpath)).setOnPreferenceClickListener(this);
 
             ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.serverport))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.tilecachesize))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.slabtilecachesize))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.cachemaxage))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.connectionidletimeout))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.maxrequestsperconnection))).setOnBindEditTextListener(this);
+            ((EditTextPreference) getPreferenceManager().findPreference(getResources().getString(R.string.extralisteningports))).setOnBindEditTextListener(this);
         }
 
         @Override
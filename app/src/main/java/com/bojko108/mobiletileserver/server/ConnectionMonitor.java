@@ -0,0 +1,328 @@
+package com.bojko108.mobiletileserver.server;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncServerSocket;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.ListenCallback;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class manages persistent (keep-alive) connections to the {@link TileServer}, so map apps
+ * reuse a connection for many tiles instead of opening a new one for each tile. Requests sent on
+ * one connection - also pipelined requests, sent without waiting for the previous response - are
+ * read and answered one after another by {@link com.koushikdutta.async.http.server.AsyncHttpServer}.
+ * This class:
+ * <ul>
+ *     <li>adds <i>Keep-Alive</i> headers with the idle timeout and the number of requests left</li>
+ *     <li>closes a connection after the maximum number of requests</li>
+ *     <li>closes connections, which are idle for longer than the idle timeout</li>
+ *     <li>counts accepted connections and requests per connection</li>
+ * </ul>
+ * Connections are tracked on the {@link AsyncServer} thread only, the statistics can be read
+ * from any thread.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class ConnectionMonitor {
+    /**
+     * Idle connections are checked once per second
+     */
+    private static final long SWEEP_INTERVAL = 1000;
+    /**
+     * The accept rate is calculated for this number of sweeps
+     */
+    private static final int ACCEPT_RATE_WINDOW = 60;
+    /**
+     * Upper bounds of the buckets for the number of requests per connection, the last bucket
+     * is for all connections with more requests
+     */
+    static final int[] REQUESTS_PER_CONNECTION_BUCKETS = {1, 2, 5, 10, 50, 100, 500};
+
+    private final AsyncServer server;
+    private final long idleTimeout;
+    private final int maxRequestsPerConnection;
+    private final Map<AsyncSocket, Connection> connections = new HashMap<>();
+    private final Runnable sweep = this::sweep;
+    private boolean running;
+
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong closedConnections = new AtomicLong();
+    private final AtomicLong closedConnectionRequests = new AtomicLong();
+    private final AtomicLong idleClosedConnections = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLongArray requestsPerConnection = new AtomicLongArray(REQUESTS_PER_CONNECTION_BUCKETS.length + 1);
+    private final long[] acceptsPerSweep = new long[ACCEPT_RATE_WINDOW];
+    private int acceptsPerSweepIndex;
+    private long acceptedAtLastSweep;
+    private volatile double acceptRate;
+    private volatile int openConnections;
+
+    /**
+     * Creates a new monitor. Call {@link ConnectionMonitor#start()} after the server is listening.
+     *
+     * @param server                   server, which accepts the connections
+     * @param idleTimeout              seconds after which idle connections are closed, 0 to keep them open
+     * @param maxRequestsPerConnection requests after which a connection is closed, 0 for no limit
+     */
+    ConnectionMonitor(AsyncServer server, int idleTimeout, int maxRequestsPerConnection) {
+        this.server = server;
+        this.idleTimeout = idleTimeout * 1000L;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    /**
+     * Starts checking for idle connections.
+     */
+    void start() {
+        this.server.post(() -> {
+            this.running = true;
+            this.server.postDelayed(this.sweep, SWEEP_INTERVAL);
+        });
+    }
+
+    /**
+     * Stops checking for idle connections and counts all open connections as closed.
+     */
+    void stop() {
+        this.server.post(() -> {
+            this.running = false;
+            this.server.removeAllCallbacks(this.sweep);
+            for (Connection connection : this.connections.values()) {
+                this.onConnectionClosed(connection);
+            }
+            this.connections.clear();
+            this.openConnections = 0;
+        });
+    }
+
+    /**
+     * Wraps the listen callback of the HTTP server, so accepted connections are tracked.
+     *
+     * @param callback listen callback - {@link com.koushikdutta.async.http.server.AsyncHttpServer#getListenCallback()}
+     * @return callback to pass to {@link AsyncServer#listen}
+     */
+    ListenCallback wrap(ListenCallback callback) {
+        return new ListenCallback() {
+            @Override
+            public void onAccepted(AsyncSocket socket) {
+                acceptedConnections.incrementAndGet();
+                connections.put(socket, new Connection(socket));
+                openConnections = connections.size();
+                callback.onAccepted(socket);
+            }
+
+            @Override
+            public void onListening(AsyncServerSocket socket) {
+                callback.onListening(socket);
+            }
+
+            @Override
+            public void onCompleted(Exception ex) {
+                callback.onCompleted(ex);
+            }
+        };
+    }
+
+    /**
+     * Wraps a request callback, so requests are counted per connection and the keep-alive headers
+     * are set. The returned callback must be called on the server thread.
+     *
+     * @param callback request callback
+     * @return callback to register in {@link com.koushikdutta.async.http.server.AsyncHttpServer}
+     */
+    HttpServerRequestCallback track(HttpServerRequestCallback callback) {
+        return (request, response) -> {
+            AsyncSocket socket = request.getSocket();
+            Connection connection = this.connections.get(socket);
+            if (connection == null) {
+                // accepted before tracking started
+                connection = new Connection(socket);
+                this.connections.put(socket, connection);
+                this.openConnections = this.connections.size();
+            }
+            this.requests.incrementAndGet();
+            connection.requests++;
+            connection.activeRequests++;
+            connection.lastActivity = System.currentTimeMillis();
+
+            if (this.maxRequestsPerConnection > 0 && connection.requests >= this.maxRequestsPerConnection) {
+                connection.closeAfterResponse = true;
+                response.getHeaders().set("Connection", "close");
+            } else if (this.idleTimeout > 0 || this.maxRequestsPerConnection > 0) {
+                response.getHeaders().set("Keep-Alive", this.getKeepAliveHeader(connection));
+            }
+
+            Connection current = connection;
+            CompletedCallback closedCallback = response.getClosedCallback();
+            response.setClosedCallback(ex -> {
+                this.onResponseCompleted(current);
+                if (closedCallback != null) {
+                    closedCallback.onCompleted(ex);
+                }
+            });
+
+            callback.onRequest(request, response);
+        };
+    }
+
+    /**
+     * @return number of connections accepted since the server was started
+     */
+    long getAcceptedConnections() {
+        return this.acceptedConnections.get();
+    }
+
+    /**
+     * @return number of open connections
+     */
+    int getOpenConnections() {
+        return this.openConnections;
+    }
+
+    /**
+     * @return number of connections closed by the server, because they were idle
+     */
+    long getIdleClosedConnections() {
+        return this.idleClosedConnections.get();
+    }
+
+    /**
+     * @return accepted connections per second, in the last minute
+     */
+    double getAcceptRate() {
+        return this.acceptRate;
+    }
+
+    /**
+     * @return number of requests since the server was started
+     */
+    long getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Gets the number of closed connections by the number of requests sent on them. The bounds
+     * of the buckets are {@link ConnectionMonitor#REQUESTS_PER_CONNECTION_BUCKETS}.
+     *
+     * @return number of connections in each bucket - not cumulative
+     */
+    long[] getRequestsPerConnection() {
+        long[] result = new long[this.requestsPerConnection.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = this.requestsPerConnection.get(i);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        long closed = this.closedConnections.get();
+        return String.format(Locale.getDefault(),
+                "ConnectionMonitor[accepted=%d, open=%d, idleClosed=%d, acceptRate=%.2f/s, requests=%d, requestsPerConnection=%.1f, buckets=%s]",
+                this.getAcceptedConnections(),
+                this.getOpenConnections(),
+                this.getIdleClosedConnections(),
+                this.getAcceptRate(),
+                this.getRequests(),
+                closed > 0 ? this.closedConnectionRequests.get() / (double) closed : 0,
+                Arrays.toString(this.getRequestsPerConnection()));
+    }
+
+    private String getKeepAliveHeader(Connection connection) {
+        StringBuilder header = new StringBuilder();
+        if (this.idleTimeout > 0) {
+            header.append("timeout=").append(this.idleTimeout / 1000);
+        }
+        if (this.maxRequestsPerConnection > 0) {
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append("max=").append(this.maxRequestsPerConnection - connection.requests);
+        }
+        return header.toString();
+    }
+
+    private void onResponseCompleted(Connection connection) {
+        // closed callbacks can be called on another thread, e.g. when the socket fails
+        this.server.post(() -> {
+            connection.activeRequests--;
+            connection.lastActivity = System.currentTimeMillis();
+            if (connection.closeAfterResponse && connection.activeRequests == 0) {
+                // output is shut down after the pending data is written
+                connection.socket.end();
+            }
+        });
+    }
+
+    private void onConnectionClosed(Connection connection) {
+        this.closedConnections.incrementAndGet();
+        this.closedConnectionRequests.addAndGet(connection.requests);
+        int bucket = 0;
+        while (bucket < REQUESTS_PER_CONNECTION_BUCKETS.length && connection.requests > REQUESTS_PER_CONNECTION_BUCKETS[bucket]) {
+            bucket++;
+        }
+        this.requestsPerConnection.incrementAndGet(bucket);
+    }
+
+    /**
+     * Removes closed connections, closes idle connections and updates the accept rate.
+     */
+    private void sweep() {
+        if (!this.running) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Connection> iterator = this.connections.values().iterator();
+        while (iterator.hasNext()) {
+            Connection connection = iterator.next();
+            if (!connection.socket.isOpen()) {
+                iterator.remove();
+                this.onConnectionClosed(connection);
+            } else if (this.idleTimeout > 0 && connection.activeRequests == 0 && now - connection.lastActivity > this.idleTimeout) {
+                iterator.remove();
+                this.onConnectionClosed(connection);
+                this.idleClosedConnections.incrementAndGet();
+                connection.socket.close();
+            }
+        }
+        this.openConnections = this.connections.size();
+
+        long accepted = this.acceptedConnections.get();
+        this.acceptsPerSweep[this.acceptsPerSweepIndex] = accepted - this.acceptedAtLastSweep;
+        this.acceptsPerSweepIndex = (this.acceptsPerSweepIndex + 1) % ACCEPT_RATE_WINDOW;
+        this.acceptedAtLastSweep = accepted;
+        long sum = 0;
+        for (long value : this.acceptsPerSweep) {
+            sum += value;
+        }
+        this.acceptRate = sum / (ACCEPT_RATE_WINDOW * SWEEP_INTERVAL / 1000.0);
+
+        this.server.postDelayed(this.sweep, SWEEP_INTERVAL);
+    }
+
+    /**
+     * State of an accepted connection, used only on the server thread.
+     */
+    private static class Connection {
+        private final AsyncSocket socket;
+        private int requests;
+        private int activeRequests;
+        private long lastActivity = System.currentTimeMillis();
+        private boolean closeAfterResponse;
+
+        private Connection(AsyncSocket socket) {
+            this.socket = socket;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.bojko108.mobiletileserver.server;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * This class handles HTTP conditional requests for map tiles, so clients revalidate tiles they
+ * already have instead of downloading them again. Responses get <i>ETag</i>, <i>Last-Modified</i>
+ * and <i>Cache-Control</i> headers and requests with matching <i>If-None-Match</i> or
+ * <i>If-Modified-Since</i> headers are answered with <i>304 Not Modified</i>.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class HttpCacheHeaders {
+    private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    /**
+     * Creates a validator for a file - from its last modified time and size.
+     *
+     * @param file to create the validator for
+     * @return ETag value
+     */
+    static String etagFor(File file) {
+        return etagFor(file.lastModified(), file.length(), null);
+    }
+
+    /**
+     * Creates a validator for a map tile stored in a tileset file - from the tileset last
+     * modified time and size and the tile coordinates.
+     *
+     * @param lastModified tileset last modified time in milliseconds
+     * @param size         tileset size in bytes
+     * @param tile         tile identifier in the tileset, e.g. <i>z/x/y</i>, can be null
+     * @return ETag value
+     */
+    static String etagFor(long lastModified, long size, String tile) {
+        StringBuilder sb = new StringBuilder(48);
+        sb.append('"').append(Long.toHexString(lastModified)).append('-').append(Long.toHexString(size));
+        if (tile != null) {
+            sb.append('-').append(tile);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Creates a validator from a hash of the resource content.
+     *
+     * @param contentHash hash of the content, as hexadecimal text
+     * @return ETag value
+     */
+    static String etagFor(String contentHash) {
+        return '"' + contentHash + '"';
+    }
+
+    /**
+     * Checks if the client already has the current version of the resource.
+     *
+     * @param request      HTTP request
+     * @param etag         current validator of the resource
+     * @param lastModified last modified time of the resource in milliseconds
+     * @return true if the request can be answered with <i>304 Not Modified</i>
+     */
+    static boolean isNotModified(AsyncHttpServerRequest request, String etag, long lastModified) {
+        return isNotModified(request.getHeaders().get("If-None-Match"), request.getHeaders().get("If-Modified-Since"),
+                etag, lastModified);
+    }
+
+    /**
+     * Checks if the client already has the current version of the resource.
+     *
+     * @param ifNoneMatch     value of the <i>If-None-Match</i> request header, can be null
+     * @param ifModifiedSince value of the <i>If-Modified-Since</i> request header, can be null
+     * @param etag            current validator of the resource
+     * @param lastModified    last modified time of the resource in milliseconds
+     * @return true if the request can be answered with <i>304 Not Modified</i>
+     */
+    static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+        if (ifNoneMatch != null) {
+            // If-Modified-Since is ignored when If-None-Match is present
+            return matches(ifNoneMatch, etag);
+        }
+
+        if (ifModifiedSince != null && lastModified > 0) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE_FORMAT).toInstant().toEpochMilli();
+                // HTTP dates have a precision of one second
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException ex) {
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sets the validators and caching headers of a response.
+     *
+     * @param response     HTTP response
+     * @param etag         validator of the resource
+     * @param lastModified last modified time of the resource in milliseconds, 0 if unknown
+     * @param maxAge       number of seconds clients can use the resource without revalidating it
+     */
+    static void setHeaders(AsyncHttpServerResponse response, String etag, long lastModified, int maxAge) {
+        response.getHeaders().set("ETag", etag);
+        if (lastModified > 0) {
+            response.getHeaders().set("Last-Modified", formatDate(lastModified));
+        }
+        response.getHeaders().set("Cache-Control", "public, max-age=" + maxAge);
+    }
+
+    /**
+     * Answers a request with <i>304 Not Modified</i>.
+     *
+     * @param response     HTTP response
+     * @param etag         validator of the resource
+     * @param lastModified last modified time of the resource in milliseconds, 0 if unknown
+     * @param maxAge       number of seconds clients can use the resource without revalidating it
+     */
+    static void sendNotModified(AsyncHttpServerResponse response, String etag, long lastModified, int maxAge) {
+        setHeaders(response, etag, lastModified, maxAge);
+        response.code(304);
+        response.end();
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        for (String value : ifNoneMatch.split(",")) {
+            value = value.trim();
+            if (value.startsWith("W/")) {
+                value = value.substring(2);
+            }
+            if (value.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String formatDate(long time) {
+        return HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
+    }
+}
@@ -0,0 +1,137 @@
+package com.bojko108.mobiletileserver.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts request durations in log-linear buckets, like HdrHistogram: each power of two
+ * of microseconds is split in {@link LatencyHistogram#SUB_BUCKETS} equal buckets, so the relative
+ * error is the same for fast and slow requests. The bucket of a value is found with bit operations
+ * and counted with an atomic increment - recording does not allocate memory or take locks, so it
+ * can be called on the server thread for every request. Values from 64 microseconds to about 33
+ * seconds are counted in separate buckets, smaller and larger values are counted in the first and
+ * the last bucket.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class LatencyHistogram {
+    /**
+     * The first bucket counts values below 2^6 microseconds
+     */
+    private static final int MIN_EXPONENT = 6;
+    /**
+     * The last bucket counts values from 2^25 microseconds
+     */
+    private static final int MAX_EXPONENT = 25;
+    private static final int SUB_BUCKET_BITS = 1;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 2;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * Counts a request duration.
+     *
+     * @param nanos duration in nanoseconds
+     */
+    void record(long nanos) {
+        this.counts.incrementAndGet(getBucket(nanos / 1000));
+        this.count.incrementAndGet();
+        this.sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return number of buckets
+     */
+    int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * @param bucket bucket index
+     * @return number of values counted in the bucket
+     */
+    long getCount(int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    /**
+     * @return number of all counted values
+     */
+    long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return sum of all counted values in nanoseconds
+     */
+    long getSumNanos() {
+        return this.sumNanos.get();
+    }
+
+    /**
+     * Gets the upper bound of a bucket.
+     *
+     * @param bucket bucket index
+     * @return upper bound in seconds, {@link Double#POSITIVE_INFINITY} for the last bucket
+     */
+    double getUpperBound(int bucket) {
+        if (bucket == BUCKETS - 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (bucket == 0) {
+            return (1L << MIN_EXPONENT) / 1_000_000.0;
+        }
+        int exponent = MIN_EXPONENT + (bucket - 1) / SUB_BUCKETS;
+        int subBucket = (bucket - 1) % SUB_BUCKETS;
+        long micros = (1L << exponent) + ((subBucket + 1L) << (exponent - SUB_BUCKET_BITS));
+        return micros / 1_000_000.0;
+    }
+
+    /**
+     * Estimates a percentile from the buckets.
+     *
+     * @param percentile percentile from 0 to 1, e.g. 0.99
+     * @return upper bound of the bucket, containing the percentile, in seconds - 0 if no values are counted
+     */
+    double getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return this.getUpperBound(i);
+            }
+        }
+        // values in the last bucket have no upper bound
+        return this.getUpperBound(BUCKETS - 2);
+    }
+
+    /**
+     * @param micros value in microseconds
+     * @return bucket index
+     */
+    static int getBucket(long micros) {
+        if (micros < (1L << MIN_EXPONENT)) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+}
@@ -0,0 +1,137 @@
+package com.bojko108.mobiletileserver.server;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class lets a worker thread write a response body as an {@link OutputStream}. Data is
+ * collected in small chunks and each full chunk is passed to the {@link AsyncServer} thread, which
+ * writes it to the socket - the whole body is never kept in memory. The response is sent with
+ * <i>chunked</i> transfer encoding, as its length is not known in advance. Closing the stream
+ * ends the response.
+ * <p>
+ * Only one chunk is passed to the server thread at a time - the worker thread waits until the
+ * previous chunk is written to the socket, so a slow client does not make the server keep the
+ * body in memory. If the client does not read anything for {@link ResponseOutputStream#WRITE_TIMEOUT_MS}
+ * writing fails with an {@link IOException}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class ResponseOutputStream extends OutputStream {
+    private static final int CHUNK_SIZE = 8192;
+    private static final long WRITE_TIMEOUT_MS = 30000;
+
+    private final AsyncHttpServerResponse response;
+    private final AsyncServer server;
+    /**
+     * Released by the server thread when the passed chunk is written to the socket
+     */
+    private final Semaphore chunkWritten = new Semaphore(1);
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int count;
+    private boolean closed;
+
+    /**
+     * Creates a new stream. Set the response code and headers before writing to it.
+     *
+     * @param response HTTP response
+     */
+    ResponseOutputStream(AsyncHttpServerResponse response) {
+        this.response = response;
+        this.server = response.getSocket().getServer();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (this.count == this.chunk.length) {
+            this.flush();
+        }
+        this.chunk[this.count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (this.count == this.chunk.length) {
+                this.flush();
+            }
+            int n = Math.min(len, this.chunk.length - this.count);
+            System.arraycopy(b, off, this.chunk, this.count, n);
+            this.count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Passes the collected data to the server thread, after the previous chunk is written.
+     *
+     * @throws IOException if the previous chunk was not written in time
+     */
+    @Override
+    public void flush() throws IOException {
+        if (this.count == 0 || this.closed) {
+            return;
+        }
+        this.awaitChunkWritten();
+        // the chunk is handed over to the server thread - a new one is used for the next data
+        ByteBufferList data = new ByteBufferList(ByteBuffer.wrap(this.chunk, 0, this.count));
+        this.chunk = new byte[CHUNK_SIZE];
+        this.count = 0;
+        this.server.post(() -> this.writeChunk(data));
+    }
+
+    /**
+     * Writes the remaining data and ends the response. The response is ended even if the data
+     * can not be written, so it is safe to call from a <i>finally</i> block.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.flush();
+            this.awaitChunkWritten();
+        } catch (IOException ex) {
+            // the client stopped reading - the connection is closed when the response ends
+        } finally {
+            this.closed = true;
+            this.server.post(this.response::end);
+        }
+    }
+
+    private void awaitChunkWritten() throws IOException {
+        try {
+            if (!this.chunkWritten.tryAcquire(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Client did not read the response for " + WRITE_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Writes a chunk to the socket. Executed on the server thread.
+     */
+    private void writeChunk(ByteBufferList data) {
+        this.response.write(data);
+        if (data.remaining() > 0 && this.response.isOpen()) {
+            // the socket buffer is full - the rest is written when it is writable again
+            this.response.setWriteableCallback(() -> this.writeChunk(data));
+            return;
+        }
+        this.response.setWriteableCallback(null);
+        this.chunkWritten.release();
+    }
+}
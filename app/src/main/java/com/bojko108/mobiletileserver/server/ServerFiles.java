@@ -16,10 +16,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 public class ServerFiles {
     /**
@@ -40,6 +41,10 @@ public class ServerFiles {
      * Sets the home address of the server
      */
     private static String SERVER_HOME_ADDRESS;
+    /**
+     * All ports the server is listening on - the first one is the port in {@link ServerFiles#SERVER_HOME_ADDRESS}
+     */
+    private static int[] SERVER_PORTS = new int[0];
     /**
      * This value is stored in a template string and can be used
      * to fill the error message for Bad Request or Internal Server Error pages
@@ -70,6 +75,11 @@ public class ServerFiles {
      * to fill the zoom level of the map
      */
     private static final String ZOOM_LEVEL = "{{zoom_level}}";
+    /**
+     * This value is stored in a template string and can be used
+     * to fill the listening ports, used as Leaflet subdomains
+     */
+    private static final String SUBDOMAINS = "{{subdomains}}";
     /**
      * This value is stored in a template string and can be used
      * to fill the lowest zoom level for which the tileset provides data
@@ -174,10 +184,51 @@ public class ServerFiles {
      */
     private static final String STATIC_FILE_URL = "%s/static?filename=%s";
 
+    /**
+     * Names of the pages, memoized in {@link ServerFiles#RENDERED_PAGES}
+     */
+    private static final String URL_MBTILES_PAGE = "mbtiles";
+    private static final String URL_TILES_PAGE = "tiles";
+    private static final String URL_STATIC_FILES_PAGE = "static";
+    /**
+     * Compiled templates by resource id
+     */
+    private static final Map<Integer, Template> TEMPLATES = new ConcurrentHashMap<>();
+    /**
+     * Pages rendered from the tileset catalog, by page name
+     */
+    private static final Map<String, RenderedPage> RENDERED_PAGES = new ConcurrentHashMap<>();
+    /**
+     * TileJSON documents, by tileset type and name
+     */
+    private static final Map<String, RenderedTileJson> TILE_JSONS = new ConcurrentHashMap<>();
+
     public static void setServerUrlAddress(String homeAddress) {
         SERVER_HOME_ADDRESS = homeAddress;
     }
 
+    /**
+     * Sets all ports the server is listening on. Browsers open a limited number of connections
+     * to each host and port, so when there is more than one port the tiles in the preview pages
+     * and in TileJSON are loaded from all of them.
+     *
+     * @param ports listening ports, the first one is the port of the home address
+     */
+    public static void setServerPorts(int[] ports) {
+        SERVER_PORTS = ports.clone();
+        TILE_JSONS.clear();
+    }
+
+    /**
+     * Gets the home address of the server for another listening port.
+     *
+     * @param port listening port or a placeholder like <i>{s}</i>
+     * @return home address
+     */
+    private static String getHomeAddressFor(String port) {
+        return SERVER_HOME_ADDRESS.substring(0, SERVER_HOME_ADDRESS.lastIndexOf(':') + 1) + port;
+    }
+
     public static String getUrlAddressFor(TilesetInfo info, TilesetType tilesetType) {
         switch (tilesetType) {
             case MBTiles:
@@ -195,6 +246,32 @@ public class ServerFiles {
         }
     }
 
+    /**
+     * Gets the TileJSON document for a tileset. The document is created once for each
+     * {@link TilesetInfo} - the info is replaced in the catalog when the tileset is modified,
+     * so it is created again only after a change.
+     *
+     * @param info        tileset info
+     * @param tilesetType tileset type
+     * @return TileJSON document as text
+     */
+    public static String getTileJsonFor(TilesetInfo info, TilesetType tilesetType) {
+        String key = tilesetType.name() + "/" + info.getParameter(TilesetInfo.TILESET_NAME, String.class);
+        RenderedTileJson rendered = TILE_JSONS.get(key);
+        if (rendered != null && rendered.info == info && rendered.homeAddress.equals(SERVER_HOME_ADDRESS)) {
+            return rendered.json;
+        }
+        String url = getUrlAddressFor(info, tilesetType);
+        String[] urls = new String[Math.max(1, SERVER_PORTS.length)];
+        urls[0] = url;
+        for (int i = 1; i < urls.length; i++) {
+            // clients choose one of the addresses for each tile
+            urls[i] = getHomeAddressFor(String.valueOf(SERVER_PORTS[i])) + url.substring(SERVER_HOME_ADDRESS.length());
+        }
+        String json = info.toTileJson(urls).toString();
+        TILE_JSONS.put(key, new RenderedTileJson(info, SERVER_HOME_ADDRESS, json));
+        return json;
+    }
 
     /**
      * Us this to set the application context, used for accessing resource files
@@ -205,6 +282,9 @@ public class ServerFiles {
      */
     public static void setAppResources(Context context, String rootPath) {
         ServerFiles.APP_RESOURCES = context.getResources();
+        ServerFiles.TEMPLATES.clear();
+        ServerFiles.RENDERED_PAGES.clear();
+        ServerFiles.TILE_JSONS.clear();
 
         /*
          * Read this from resource files
@@ -213,12 +293,7 @@ public class ServerFiles {
     }
 
     public static String getHomePageHtml() {
-        try {
-            return ServerFiles.readToEnd(APP_RESOURCES.openRawResource(R.raw.home));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "";
+        return ServerFiles.getTemplate(R.raw.home).render((placeholder, out) -> false);
     }
 
     public static String getInternalServerErrorPage(String errorMessage) {
@@ -245,6 +320,7 @@ public class ServerFiles {
      * <li>{@link ServerFiles#MAX_ZOOM}</li>
      * <li>{@link ServerFiles#ATTRIBUTION}</li>
      * <li>{@link ServerFiles#URL}</li>
+     * <li>{@link ServerFiles#SUBDOMAINS}</li>
      * </ul>
      *
      * @param info tileset info
@@ -271,6 +347,7 @@ public class ServerFiles {
      * <li>{@link ServerFiles#MAX_ZOOM}</li>
      * <li>{@link ServerFiles#ATTRIBUTION}</li>
      * <li>{@link ServerFiles#URL}</li>
+     * <li>{@link ServerFiles#SUBDOMAINS}</li>
      * </ul>
      *
      * @param info tileset info
@@ -314,10 +391,27 @@ public class ServerFiles {
         return ServerFiles.getPageForAvailableTilesets(tilesets, TilesetType.MBTiles);
     }
 
+    /**
+     * Returns the page for list of available MBTiles tilesets. The page is rendered again only
+     * if the catalog version changed since the last call.
+     *
+     * @param tilesets       a list of tilesets
+     * @param catalogVersion version of the catalog, the list of tilesets was taken from
+     * @return web page as text
+     * @see ServerFiles#getAvailableMBTilesPageHtmlFor(List)
+     */
+    public static String getAvailableMBTilesPageHtmlFor(List<TilesetInfo> tilesets, long catalogVersion) {
+        return ServerFiles.getRenderedPage(URL_MBTILES_PAGE, catalogVersion, () -> ServerFiles.getAvailableMBTilesPageHtmlFor(tilesets));
+    }
+
     public static String getAvailableStaticFilesPageHtmlFor(List<StaticFileInfo> staticFiles) {
         return ServerFiles.getPageForAvailableStaticFiles(staticFiles);
     }
 
+    public static String getAvailableStaticFilesPageHtmlFor(List<StaticFileInfo> staticFiles, long catalogVersion) {
+        return ServerFiles.getRenderedPage(URL_STATIC_FILES_PAGE, catalogVersion, () -> ServerFiles.getAvailableStaticFilesPageHtmlFor(staticFiles));
+    }
+
     /**
      * Returns the page for list of available directories with tiles.
      * <p>
@@ -348,15 +442,27 @@ public class ServerFiles {
         return ServerFiles.getPageForAvailableTilesets(tilesets, TilesetType.DirectoryTiles);
     }
 
-    public static String getErrorPage(String errorMessage, int id) {
-        try {
-            return ServerFiles.readToEnd(ServerFiles.getRawResource(id))
-                    .replace(ERROR_MESSAGE, errorMessage);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * Returns the page for list of available directories with tiles. The page is rendered again
+     * only if the catalog version changed since the last call.
+     *
+     * @param tilesets       a list of tilesets
+     * @param catalogVersion version of the catalog, the list of tilesets was taken from
+     * @return web page as text
+     * @see ServerFiles#getAvailableDirectoryTilesPageHtmlFor(List)
+     */
+    public static String getAvailableDirectoryTilesPageHtmlFor(List<TilesetInfo> tilesets, long catalogVersion) {
+        return ServerFiles.getRenderedPage(URL_TILES_PAGE, catalogVersion, () -> ServerFiles.getAvailableDirectoryTilesPageHtmlFor(tilesets));
+    }
 
-        return "";
+    public static String getErrorPage(String errorMessage, int id) {
+        return ServerFiles.getTemplate(id).render((placeholder, out) -> {
+            if (placeholder.equals(ERROR_MESSAGE)) {
+                out.append(errorMessage);
+                return true;
+            }
+            return false;
+        });
     }
 
     /**
@@ -378,21 +484,40 @@ public class ServerFiles {
      * @return configuration in XML format
      */
     private static String formatTemplateForOruxmapsApp(TilesetInfo info, String url) {
-        try {
-            if (info != null) {
-                return ServerFiles.readToEnd(ServerFiles.getRawResource(R.raw.oruxmaps))
-                        .replace(URL, url)
-                        .replace(NAME, info.getParameter(TilesetInfo.NAME, String.class))
-                        .replace(MIN_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class)))
-                        .replace(MAX_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class)));
-            } else {
-                return "";
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (info == null) {
+            return "";
         }
+        StringBuilder out = new StringBuilder();
+        ServerFiles.appendTemplateForOruxmapsApp(out, info, url);
+        return out.toString();
+    }
 
-        return "";
+    /**
+     * Appends the text from {@link ServerFiles#formatTemplateForOruxmapsApp(TilesetInfo, String)}
+     * to a builder.
+     *
+     * @param out  builder for the rendered text
+     * @param info tileset info
+     * @param url  tileset template URL address
+     */
+    private static void appendTemplateForOruxmapsApp(StringBuilder out, TilesetInfo info, String url) {
+        ServerFiles.getTemplate(R.raw.oruxmaps).renderTo(out, (placeholder, value) -> {
+            switch (placeholder) {
+                case URL:
+                    value.append(url);
+                    return true;
+                case NAME:
+                    value.append(info.getParameter(TilesetInfo.NAME, String.class));
+                    return true;
+                case MIN_ZOOM:
+                    value.append(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class).intValue());
+                    return true;
+                case MAX_ZOOM:
+                    value.append(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class).intValue());
+                    return true;
+            }
+            return false;
+        });
     }
 
     /**
@@ -403,35 +528,61 @@ public class ServerFiles {
      * @return web page
      */
     private static String getPreviewHtmlFor(TilesetInfo info, TilesetType tilesetType) {
-        try {
-            String templateUrl = "";
-            switch (tilesetType) {
-                case MBTiles:
-                    templateUrl = ServerFiles.MBTILES_URL;
-                    break;
-                case DirectoryTiles:
-                    templateUrl = ServerFiles.TILES_URL;
-                    break;
-            }
-
-            InputStream stream = ServerFiles.getRawResource(R.raw.preview);
-            double[] center = info.getCenter();
-            return readToEnd(stream)
-                    .replace(LATITUDE, String.valueOf(center[1]))
-                    .replace(LONGITUDE, String.valueOf(center[0]))
-                    .replace(ZOOM_LEVEL, String.valueOf(center[2]))
-                    .replace(MIN_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class)))
-                    .replace(MAX_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class)))
-                    .replace(ATTRIBUTION, info.getParameter(TilesetInfo.NAME, String.class))
-                    .replace(URL, String.format(Locale.getDefault(),
-                            templateUrl,
-                            SERVER_HOME_ADDRESS,
-                            info.getParameter(TilesetInfo.TILESET_NAME, String.class)));
-        } catch (IOException e) {
-            e.printStackTrace();
+        String templateUrl = "";
+        switch (tilesetType) {
+            case MBTiles:
+                templateUrl = ServerFiles.MBTILES_URL;
+                break;
+            case DirectoryTiles:
+                templateUrl = ServerFiles.TILES_URL;
+                break;
         }
 
-        return "";
+        // with more listening ports Leaflet replaces {s} with one of them for each tile
+        boolean multiplePorts = SERVER_PORTS.length > 1;
+        String url = String.format(Locale.getDefault(),
+                templateUrl,
+                multiplePorts ? getHomeAddressFor("{s}") : SERVER_HOME_ADDRESS,
+                info.getParameter(TilesetInfo.TILESET_NAME, String.class));
+        double[] center = info.getCenter();
+        return ServerFiles.getTemplate(R.raw.preview).render((placeholder, out) -> {
+            switch (placeholder) {
+                case LATITUDE:
+                    out.append(center[1]);
+                    return true;
+                case LONGITUDE:
+                    out.append(center[0]);
+                    return true;
+                case ZOOM_LEVEL:
+                    out.append(center[2]);
+                    return true;
+                case MIN_ZOOM:
+                    out.append(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class).intValue());
+                    return true;
+                case MAX_ZOOM:
+                    out.append(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class).intValue());
+                    return true;
+                case ATTRIBUTION:
+                    out.append(info.getParameter(TilesetInfo.NAME, String.class));
+                    return true;
+                case URL:
+                    out.append(url);
+                    return true;
+                case SUBDOMAINS:
+                    if (!multiplePorts) {
+                        // Leaflet default, not used in the URL
+                        out.append("'abc'");
+                        return true;
+                    }
+                    out.append('[');
+                    for (int i = 0; i < SERVER_PORTS.length; i++) {
+                        out.append(i > 0 ? ",'" : "'").append(SERVER_PORTS[i]).append('\'');
+                    }
+                    out.append(']');
+                    return true;
+            }
+            return false;
+        });
     }
 
     /**
@@ -442,102 +593,214 @@ public class ServerFiles {
      * @return web page
      */
     private static String getPageForAvailableTilesets(List<TilesetInfo> tilesets, TilesetType tilesetType) {
-        try {
-            List<String> services = new ArrayList<>();
-            String result = ServerFiles.readToEnd(getRawResource(R.raw.services));
-            String itemTemplate = "";
-            String templateUrl = "";
-            String title = "";
-            String details = "";
-
-            switch (tilesetType) {
-                case MBTiles:
-                    itemTemplate = ServerFiles.readToEnd(ServerFiles.getRawResource(R.raw.mbtilesserviceinfo));
-                    templateUrl = MBTILES_URL;
-                    title = APP_RESOURCES.getString(R.string.web_page_title_mbtiles);
-                    details = ServerFiles.APP_RESOURCES.getString(R.string.web_page_details_mbtiles);
-                    break;
-                case DirectoryTiles:
-                    itemTemplate = ServerFiles.readToEnd(ServerFiles.getRawResource(R.raw.tileserviceinfo));
-                    templateUrl = TILES_URL;
-                    title = APP_RESOURCES.getString(R.string.web_page_title_tiles);
-                    details = APP_RESOURCES.getString(R.string.web_page_details_tiles);
-                    break;
-            }
+        Template itemTemplate = null;
+        String templateUrl = "";
+        String title = "";
+        String details = "";
 
-            if (tilesets != null) {
-                for (TilesetInfo info : tilesets) {
-                    String url = String.format(Locale.getDefault(),
-                            templateUrl,
-                            SERVER_HOME_ADDRESS,
-                            info.getParameter(TilesetInfo.TILESET_NAME, String.class));
-                    String oruxmapsText = ServerFiles.formatTemplateForOruxmapsApp(info, url);
-                    String bounds = info.getBoundsAsString();
-                    String center = info.getCenterAsString();
-                    String text = itemTemplate
-                            .replace(TILESET_NAME, info.getParameter(TilesetInfo.TILESET_NAME, String.class))
-                            .replace(NAME, info.getParameter(TilesetInfo.NAME, String.class))
-                            .replace(VERSION, info.getParameter(TilesetInfo.VERSION, String.class))
-                            .replace(DESCRIPTION, info.getParameter(TilesetInfo.DESCRIPTION, String.class))
-                            .replace(FORMAT, info.getParameter(TilesetInfo.FORMAT, String.class))
-                            .replace(MIN_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class)))
-                            .replace(MAX_ZOOM, String.valueOf(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class)))
-                            .replace(BOUNDS, bounds)
-                            .replace(CENTER, center)
-                            .replace(ORUXMAPS, oruxmapsText)
-                            .replace(URL, url);
-
-                    services.add(text);
-                }
-            }
-
-            return result
-                    .replace(TITLE, title)
-                    .replace(HEADER, title)
-                    .replace(DETAILS, details)
-                    .replace(SERVICES, String.join("", services));
-        } catch (IOException e) {
-            e.printStackTrace();
+        switch (tilesetType) {
+            case MBTiles:
+                itemTemplate = ServerFiles.getTemplate(R.raw.mbtilesserviceinfo);
+                templateUrl = MBTILES_URL;
+                title = APP_RESOURCES.getString(R.string.web_page_title_mbtiles);
+                details = ServerFiles.APP_RESOURCES.getString(R.string.web_page_details_mbtiles);
+                break;
+            case DirectoryTiles:
+                itemTemplate = ServerFiles.getTemplate(R.raw.tileserviceinfo);
+                templateUrl = TILES_URL;
+                title = APP_RESOURCES.getString(R.string.web_page_title_tiles);
+                details = APP_RESOURCES.getString(R.string.web_page_details_tiles);
+                break;
         }
 
-        return "";
+        Template serviceTemplate = itemTemplate;
+        String serviceUrl = templateUrl;
+        String pageTitle = title;
+        String pageDetails = details;
+        return ServerFiles.getTemplate(R.raw.services).render((placeholder, out) -> {
+            switch (placeholder) {
+                case TITLE:
+                case HEADER:
+                    out.append(pageTitle);
+                    return true;
+                case DETAILS:
+                    out.append(pageDetails);
+                    return true;
+                case SERVICES:
+                    if (tilesets != null && serviceTemplate != null) {
+                        for (TilesetInfo info : tilesets) {
+                            ServerFiles.appendServiceInfo(out, serviceTemplate, info, serviceUrl);
+                        }
+                    }
+                    return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Appends the description of a tileset to the page for listing available tilesets.
+     *
+     * @param out          builder for the rendered page
+     * @param itemTemplate template for a tileset
+     * @param info         tileset info
+     * @param templateUrl  URL template for the tileset type
+     */
+    private static void appendServiceInfo(StringBuilder out, Template itemTemplate, TilesetInfo info, String templateUrl) {
+        String url = String.format(Locale.getDefault(),
+                templateUrl,
+                SERVER_HOME_ADDRESS,
+                info.getParameter(TilesetInfo.TILESET_NAME, String.class));
+        itemTemplate.renderTo(out, (placeholder, value) -> {
+            switch (placeholder) {
+                case TILESET_NAME:
+                    value.append(info.getParameter(TilesetInfo.TILESET_NAME, String.class));
+                    return true;
+                case NAME:
+                    value.append(info.getParameter(TilesetInfo.NAME, String.class));
+                    return true;
+                case VERSION:
+                    value.append(info.getParameter(TilesetInfo.VERSION, String.class));
+                    return true;
+                case DESCRIPTION:
+                    value.append(info.getParameter(TilesetInfo.DESCRIPTION, String.class));
+                    return true;
+                case FORMAT:
+                    value.append(info.getParameter(TilesetInfo.FORMAT, String.class));
+                    return true;
+                case MIN_ZOOM:
+                    value.append(info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class).intValue());
+                    return true;
+                case MAX_ZOOM:
+                    value.append(info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class).intValue());
+                    return true;
+                case BOUNDS:
+                    value.append(info.getBoundsAsString());
+                    return true;
+                case CENTER:
+                    value.append(info.getCenterAsString());
+                    return true;
+                case ORUXMAPS:
+                    ServerFiles.appendTemplateForOruxmapsApp(value, info, url);
+                    return true;
+                case URL:
+                    value.append(url);
+                    return true;
+            }
+            return false;
+        });
     }
 
     private static String getPageForAvailableStaticFiles(List<StaticFileInfo> staticFiles) {
-        try {
-            List<String> files = new ArrayList<>();
-            String result = ServerFiles.readToEnd(getRawResource(R.raw.staticfiles));
-            String itemTemplate = ServerFiles.readToEnd(ServerFiles.getRawResource(R.raw.staticfileinfo));
-            String templateUrl = STATIC_FILE_URL;
-            String title = APP_RESOURCES.getString(R.string.web_page_title_staticfiles);
-            String details = APP_RESOURCES.getString(R.string.web_page_details_staticfiles);
-
-            if (staticFiles != null) {
-                for (StaticFileInfo info : staticFiles) {
-                    String url = String.format(Locale.getDefault(),
-                            templateUrl,
-                            SERVER_HOME_ADDRESS,
-                            info.getFileName());
-                    String text = itemTemplate
-                            .replace(NAME, info.getFileName())
-                            .replace(CONTENT_TYPE, info.getContentType())
-                            .replace(FILE_SIZE, info.getSizeAsText())
-                            .replace(URL, url);
-
-                    files.add(text);
-                }
+        Template itemTemplate = ServerFiles.getTemplate(R.raw.staticfileinfo);
+        String title = APP_RESOURCES.getString(R.string.web_page_title_staticfiles);
+        String details = APP_RESOURCES.getString(R.string.web_page_details_staticfiles);
+
+        return ServerFiles.getTemplate(R.raw.staticfiles).render((placeholder, out) -> {
+            switch (placeholder) {
+                case TITLE:
+                case HEADER:
+                    out.append(title);
+                    return true;
+                case DETAILS:
+                    out.append(details);
+                    return true;
+                case STATIC_FILES:
+                    if (staticFiles != null) {
+                        for (StaticFileInfo info : staticFiles) {
+                            String url = String.format(Locale.getDefault(),
+                                    STATIC_FILE_URL,
+                                    SERVER_HOME_ADDRESS,
+                                    info.getFileName());
+                            itemTemplate.renderTo(out, (itemPlaceholder, value) -> {
+                                switch (itemPlaceholder) {
+                                    case NAME:
+                                        value.append(info.getFileName());
+                                        return true;
+                                    case CONTENT_TYPE:
+                                        value.append(info.getContentType());
+                                        return true;
+                                    case FILE_SIZE:
+                                        value.append(info.getSizeAsText());
+                                        return true;
+                                    case URL:
+                                        value.append(url);
+                                        return true;
+                                }
+                                return false;
+                            });
+                        }
+                    }
+                    return true;
             }
+            return false;
+        });
+    }
 
-            return result
-                    .replace(TITLE, title)
-                    .replace(HEADER, title)
-                    .replace(DETAILS, details)
-                    .replace(STATIC_FILES, String.join("", files));
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Gets a compiled template for a resource file stored in <i>res/raw</i> directory. Each
+     * template is read and parsed only once.
+     *
+     * @param id of the resource
+     * @return compiled template, empty if the resource cannot be read
+     */
+    private static Template getTemplate(int id) {
+        return TEMPLATES.computeIfAbsent(id, key -> {
+            try {
+                return new Template(ServerFiles.readToEnd(ServerFiles.getRawResource(key)));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return new Template("");
+            }
+        });
+    }
+
+    /**
+     * Gets a rendered page, rendering it again only if the data it was rendered from has changed.
+     *
+     * @param page    unique page name
+     * @param version version of the data, the page is rendered from
+     * @param render  renders the page
+     * @return web page as text
+     */
+    private static String getRenderedPage(String page, long version, Supplier<String> render) {
+        RenderedPage rendered = RENDERED_PAGES.get(page);
+        if (rendered != null && rendered.version == version && rendered.homeAddress.equals(SERVER_HOME_ADDRESS)) {
+            return rendered.html;
+        }
+        String html = render.get();
+        RENDERED_PAGES.put(page, new RenderedPage(version, SERVER_HOME_ADDRESS, html));
+        return html;
+    }
+
+    /**
+     * Page rendered for a specific version of the data.
+     */
+    private static class RenderedPage {
+        private final long version;
+        private final String homeAddress;
+        private final String html;
+
+        private RenderedPage(long version, String homeAddress, String html) {
+            this.version = version;
+            this.homeAddress = homeAddress;
+            this.html = html;
         }
+    }
 
-        return "";
+    /**
+     * TileJSON document created for a specific tileset info.
+     */
+    private static class RenderedTileJson {
+        private final TilesetInfo info;
+        private final String homeAddress;
+        private final String json;
+
+        private RenderedTileJson(TilesetInfo info, String homeAddress, String json) {
+            this.info = info;
+            this.homeAddress = homeAddress;
+            this.json = json;
+        }
     }
 
     /**
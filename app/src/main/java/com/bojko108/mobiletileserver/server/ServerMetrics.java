@@ -0,0 +1,325 @@
+package com.bojko108.mobiletileserver.server;
+
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * This class records metrics for the requests to the {@link TileServer}:
+ * <ul>
+ *     <li>number of requests and responses by status class, bytes sent and a
+ *     {@link LatencyHistogram} for each route</li>
+ *     <li>number of tiles, bytes sent and number of blank tiles ({@link ServerFiles#NO_TILE_IMAGE}
+ *     returned for missing tiles) for each tileset</li>
+ * </ul>
+ * Counters are {@link LongAdder}s, so threads recording at the same time do not contend. The
+ * metrics are written in Prometheus text format with {@link ServerMetrics#writePrometheus(StringBuilder)}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class ServerMetrics {
+    /**
+     * Prefix for the names of all metrics
+     */
+    static final String PREFIX = "mobiletileserver_";
+
+    /**
+     * Routes, for which metrics are recorded.
+     */
+    enum Route {
+        HOME("home"),
+        PREVIEW("preview"),
+        TILEJSON("tilejson"),
+        MBTILES("mbtiles"),
+        TILES("tiles"),
+        AVAILABLE_TILESETS("availabletilesets"),
+        BATCH("batch"),
+        STATIC_FILES("static"),
+        METRICS("metrics");
+
+        private final String label;
+
+        Route(String label) {
+            this.label = label;
+        }
+    }
+
+    private final RouteMetrics[] routes = new RouteMetrics[Route.values().length];
+    private final Map<String, TilesetMetrics> mbtilesTilesets = new ConcurrentSkipListMap<>();
+    private final Map<String, TilesetMetrics> directoryTilesets = new ConcurrentSkipListMap<>();
+
+    ServerMetrics() {
+        for (int i = 0; i < this.routes.length; i++) {
+            this.routes[i] = new RouteMetrics();
+        }
+    }
+
+    /**
+     * Wraps a request callback, so the request is recorded when its response is completed. The
+     * duration includes the time waiting for a worker thread.
+     *
+     * @param route    route of the callback
+     * @param callback request callback
+     * @return callback to register in {@link com.koushikdutta.async.http.server.AsyncHttpServer}
+     */
+    HttpServerRequestCallback track(Route route, HttpServerRequestCallback callback) {
+        RouteMetrics metrics = this.routes[route.ordinal()];
+        return (request, response) -> {
+            long start = System.nanoTime();
+            metrics.requests.increment();
+
+            CompletedCallback closedCallback = response.getClosedCallback();
+            response.setClosedCallback(ex -> {
+                metrics.record(response.code(), getContentLength(response.getHeaders().get("Content-Length")), System.nanoTime() - start);
+                if (closedCallback != null) {
+                    closedCallback.onCompleted(ex);
+                }
+            });
+
+            callback.onRequest(request, response);
+        };
+    }
+
+    /**
+     * Records a tile sent from a tileset. Record only tiles from existing tilesets, so the number
+     * of metrics does not grow with wrong requests.
+     *
+     * @param tilesetType tileset type
+     * @param tileset     tileset name
+     * @param bytes       tile size
+     * @param blank       true if {@link ServerFiles#NO_TILE_IMAGE} was sent, because the tile does not exist
+     */
+    void recordTile(ServerFiles.TilesetType tilesetType, String tileset, long bytes, boolean blank) {
+        Map<String, TilesetMetrics> tilesets = tilesetType == ServerFiles.TilesetType.MBTiles
+                ? this.mbtilesTilesets
+                : this.directoryTilesets;
+        TilesetMetrics metrics = tilesets.get(tileset);
+        if (metrics == null) {
+            metrics = tilesets.computeIfAbsent(tileset, name -> new TilesetMetrics());
+        }
+        metrics.tiles.increment();
+        metrics.bytes.add(bytes);
+        if (blank) {
+            metrics.blankTiles.increment();
+        }
+    }
+
+    /**
+     * Removes the metrics for a removed tileset.
+     *
+     * @param tilesetType tileset type
+     * @param tileset     tileset name
+     */
+    void removeTileset(ServerFiles.TilesetType tilesetType, String tileset) {
+        (tilesetType == ServerFiles.TilesetType.MBTiles ? this.mbtilesTilesets : this.directoryTilesets).remove(tileset);
+    }
+
+    /**
+     * Writes all metrics in Prometheus text format.
+     *
+     * @param out builder for the metrics text
+     * @see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus exposition formats</a>
+     */
+    void writePrometheus(StringBuilder out) {
+        writeHeader(out, "requests_total", "counter", "Number of requests by route");
+        for (Route route : Route.values()) {
+            writeSample(out, "requests_total", "route", route.label, this.routes[route.ordinal()].requests.sum());
+        }
+
+        writeHeader(out, "responses_total", "counter", "Number of responses by route and status class");
+        for (Route route : Route.values()) {
+            RouteMetrics metrics = this.routes[route.ordinal()];
+            for (int i = 0; i < metrics.responses.length; i++) {
+                out.append(PREFIX).append("responses_total{route=\"").append(route.label)
+                        .append("\",code=\"").append(i + 1).append("xx\"} ")
+                        .append(metrics.responses[i].sum()).append('\n');
+            }
+        }
+
+        writeHeader(out, "response_bytes_total", "counter", "Number of bytes sent by route, streamed responses are not included");
+        for (Route route : Route.values()) {
+            writeSample(out, "response_bytes_total", "route", route.label, this.routes[route.ordinal()].bytes.sum());
+        }
+
+        writeHeader(out, "request_duration_seconds", "histogram", "Request duration by route");
+        for (Route route : Route.values()) {
+            LatencyHistogram latency = this.routes[route.ordinal()].latency;
+            long cumulative = 0;
+            for (int i = 0; i < latency.getBucketCount(); i++) {
+                cumulative += latency.getCount(i);
+                double bound = latency.getUpperBound(i);
+                out.append(PREFIX).append("request_duration_seconds_bucket{route=\"").append(route.label)
+                        .append("\",le=\"").append(Double.isInfinite(bound) ? "+Inf" : formatDouble(bound))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(PREFIX).append("request_duration_seconds_sum{route=\"").append(route.label).append("\"} ")
+                    .append(formatDouble(latency.getSumNanos() / 1e9)).append('\n');
+            out.append(PREFIX).append("request_duration_seconds_count{route=\"").append(route.label).append("\"} ")
+                    .append(cumulative).append('\n');
+        }
+
+        writeHeader(out, "tileset_tiles_total", "counter", "Number of tiles sent by tileset");
+        this.writeTilesetSamples(out, "tileset_tiles_total", metrics -> metrics.tiles);
+        writeHeader(out, "tileset_bytes_total", "counter", "Number of tile bytes sent by tileset");
+        this.writeTilesetSamples(out, "tileset_bytes_total", metrics -> metrics.bytes);
+        writeHeader(out, "tileset_blank_tiles_total", "counter", "Number of blank tiles sent for missing tiles by tileset");
+        this.writeTilesetSamples(out, "tileset_blank_tiles_total", metrics -> metrics.blankTiles);
+    }
+
+    /**
+     * Gets a short summary of the metrics, e.g. for showing it in the app.
+     *
+     * @return summary text
+     */
+    String getSummary() {
+        long requests = 0;
+        long errors = 0;
+        for (RouteMetrics metrics : this.routes) {
+            requests += metrics.requests.sum();
+            errors += metrics.responses[4].sum();
+        }
+        long tiles = sum(this.mbtilesTilesets, metrics -> metrics.tiles) + sum(this.directoryTilesets, metrics -> metrics.tiles);
+        long blankTiles = sum(this.mbtilesTilesets, metrics -> metrics.blankTiles) + sum(this.directoryTilesets, metrics -> metrics.blankTiles);
+        long bytes = sum(this.mbtilesTilesets, metrics -> metrics.bytes) + sum(this.directoryTilesets, metrics -> metrics.bytes);
+        LatencyHistogram latency = this.routes[Route.MBTILES.ordinal()].latency;
+        if (latency.getCount() == 0) {
+            latency = this.routes[Route.TILES.ordinal()].latency;
+        }
+        return String.format(Locale.getDefault(),
+                "Requests: %d, errors: %d%nTiles: %d (%.1f MB), blank: %.1f%%%nTile latency p50: %.1f ms, p99: %.1f ms",
+                requests,
+                errors,
+                tiles,
+                bytes / (1024.0 * 1024.0),
+                tiles > 0 ? blankTiles * 100.0 / tiles : 0,
+                latency.getPercentile(0.5) * 1000,
+                latency.getPercentile(0.99) * 1000);
+    }
+
+    /**
+     * Writes the <i>HELP</i> and <i>TYPE</i> lines for a metric.
+     *
+     * @param out  builder for the metrics text
+     * @param name metric name without {@link ServerMetrics#PREFIX}
+     * @param type metric type - <i>counter</i>, <i>gauge</i> or <i>histogram</i>
+     * @param help metric description
+     */
+    static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Writes a metric value.
+     *
+     * @param out        builder for the metrics text
+     * @param name       metric name without {@link ServerMetrics#PREFIX}
+     * @param labelName  label name or null if the metric has no labels
+     * @param labelValue label value
+     * @param value      metric value
+     */
+    static void writeSample(StringBuilder out, String name, String labelName, String labelValue, double value) {
+        out.append(PREFIX).append(name);
+        if (labelName != null) {
+            out.append('{').append(labelName).append("=\"");
+            escapeLabelValue(out, labelValue);
+            out.append("\"}");
+        }
+        out.append(' ').append(formatDouble(value)).append('\n');
+    }
+
+    private void writeTilesetSamples(StringBuilder out, String name, Function<TilesetMetrics, LongAdder> counter) {
+        for (ServerFiles.TilesetType tilesetType : ServerFiles.TilesetType.values()) {
+            Map<String, TilesetMetrics> tilesets = tilesetType == ServerFiles.TilesetType.MBTiles
+                    ? this.mbtilesTilesets
+                    : this.directoryTilesets;
+            String type = tilesetType == ServerFiles.TilesetType.MBTiles ? "mbtiles" : "tiles";
+            for (Map.Entry<String, TilesetMetrics> entry : tilesets.entrySet()) {
+                out.append(PREFIX).append(name).append("{type=\"").append(type).append("\",tileset=\"");
+                escapeLabelValue(out, entry.getKey());
+                out.append("\"} ")
+                        .append(counter.apply(entry.getValue()).sum())
+                        .append('\n');
+            }
+        }
+    }
+
+    private static long sum(Map<String, TilesetMetrics> tilesets, Function<TilesetMetrics, LongAdder> counter) {
+        long sum = 0;
+        for (TilesetMetrics metrics : tilesets.values()) {
+            sum += counter.apply(metrics).sum();
+        }
+        return sum;
+    }
+
+    private static void escapeLabelValue(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static String formatDouble(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static long getContentLength(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * Metrics for a route.
+     */
+    private static class RouteMetrics {
+        private final LongAdder requests = new LongAdder();
+        /**
+         * Responses by status class - 1xx to 5xx
+         */
+        private final LongAdder[] responses = new LongAdder[5];
+        private final LongAdder bytes = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private RouteMetrics() {
+            for (int i = 0; i < this.responses.length; i++) {
+                this.responses[i] = new LongAdder();
+            }
+        }
+
+        private void record(int code, long bytes, long nanos) {
+            this.responses[Math.max(1, Math.min(5, code / 100)) - 1].increment();
+            this.bytes.add(bytes);
+            this.latency.record(nanos);
+        }
+    }
+
+    /**
+     * Metrics for a tileset.
+     */
+    private static class TilesetMetrics {
+        private final LongAdder tiles = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder blankTiles = new LongAdder();
+    }
+}
@@ -0,0 +1,138 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.Resources;
+
+import androidx.preference.PreferenceManager;
+
+import com.bojko108.mobiletileserver.R;
+
+/**
+ * This class reads the performance settings of the tile server from the app preferences. The
+ * listening port and the root directory are passed to {@link TileService} with the start intent,
+ * all other settings are read from here when the server is created.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class ServerSettings {
+    private final SharedPreferences preferences;
+    private final Resources resources;
+
+    ServerSettings(Context context) {
+        this.preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        this.resources = context.getResources();
+    }
+
+    /**
+     * Gets the memory budget for the in-memory tile cache.
+     *
+     * @return cache size in bytes, 0 if the cache is disabled
+     */
+    int getTileCacheSizeInBytes() {
+        return this.getMegabytes(R.string.tilecachesize, R.string.settings_tile_cache_size_default);
+    }
+
+    /**
+     * Gets the size of the memory-mapped file, used for caching tiles outside the Java heap.
+     *
+     * @return cache size in bytes, 0 if the cache is disabled
+     */
+    int getSlabTileCacheSizeInBytes() {
+        return this.getMegabytes(R.string.slabtilecachesize, R.string.settings_slab_tile_cache_size_default);
+    }
+
+    /**
+     * Gets how long clients can use a map tile before checking if it was changed. MBTiles
+     * tilesets can override this value with {@link com.bojko108.mobiletileserver.server.tilesets.TilesetInfo#MAX_AGE}.
+     *
+     * @return <i>Cache-Control</i> max-age in seconds
+     */
+    int getCacheMaxAge() {
+        return this.getInt(R.string.cachemaxage, R.string.settings_cache_max_age_default);
+    }
+
+    /**
+     * Checks if Directory Tilesets should be indexed in memory when the server starts.
+     *
+     * @return true if {@link com.bojko108.mobiletileserver.server.tilesets.DirectoryTileIndex} is used
+     */
+    boolean isDirectoryTileIndexEnabled() {
+        return this.preferences.getBoolean(this.resources.getString(R.string.directorytileindex), false);
+    }
+
+    /**
+     * Checks if the tiles around the requested ones should be loaded in the background.
+     *
+     * @return true if {@link TilePrefetcher} is used
+     */
+    boolean isTilePrefetchEnabled() {
+        return this.preferences.getBoolean(this.resources.getString(R.string.tileprefetch), false);
+    }
+
+    /**
+     * Checks if tiles above the highest zoom level of a tileset should be created from their
+     * ancestor tiles.
+     *
+     * @return true if {@link TileOverzoom} is used
+     */
+    boolean isOverzoomEnabled() {
+        return this.preferences.getBoolean(this.resources.getString(R.string.overzoom), false);
+    }
+
+    /**
+     * Gets how long a persistent connection can stay open without requests.
+     *
+     * @return idle timeout in seconds, 0 if idle connections are not closed
+     */
+    int getConnectionIdleTimeout() {
+        return this.getInt(R.string.connectionidletimeout, R.string.settings_connection_idle_timeout_default);
+    }
+
+    /**
+     * Gets how many requests a client can send on one connection before it is closed.
+     *
+     * @return maximum number of requests, 0 for no limit
+     */
+    int getMaxRequestsPerConnection() {
+        return this.getInt(R.string.maxrequestsperconnection, R.string.settings_max_requests_per_connection_default);
+    }
+
+    /**
+     * Gets the number of additional ports the server listens on, after the main port. Browsers
+     * open up to 6 connections to each host and port, so tiles are loaded faster from more ports.
+     *
+     * @return number of additional listening ports - up to 4
+     */
+    int getExtraListeningPorts() {
+        return Math.min(this.getInt(R.string.extralisteningports, R.string.settings_extra_listening_ports_default), 4);
+    }
+
+    /**
+     * Reads a size in megabytes and converts it to bytes. Sizes are limited to 1 GB.
+     *
+     * @param keyId          resource id of the preference key
+     * @param defaultValueId resource id of the default value
+     * @return size in bytes
+     */
+    private int getMegabytes(int keyId, int defaultValueId) {
+        return Math.min(this.getInt(keyId, defaultValueId), 1024) * 1024 * 1024;
+    }
+
+    /**
+     * Reads a number, stored as text by an EditTextPreference.
+     *
+     * @param keyId          resource id of the preference key
+     * @param defaultValueId resource id of the default value
+     * @return preference value or the default value if the stored value is not a number
+     */
+    private int getInt(int keyId, int defaultValueId) {
+        String defaultValue = this.resources.getString(defaultValueId);
+        try {
+            return Math.max(0, Integer.parseInt(this.preferences.getString(this.resources.getString(keyId), defaultValue).trim()));
+        } catch (NumberFormatException ex) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.bojko108.mobiletileserver.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class represents a compiled text template, used by {@link ServerFiles} for creating web
+ * pages. The template text is parsed once into literal text and placeholders like <i>{{url}}</i>.
+ * When rendered, the literal text and the placeholder values are appended in a single pass to one
+ * {@link StringBuilder}, reused by each thread - no intermediate strings are created for each
+ * placeholder. Templates can be nested by rendering another template from {@link Values#append}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class Template {
+    private static final String PLACEHOLDER_START = "{{";
+    private static final String PLACEHOLDER_END = "}}";
+    private static final ThreadLocal<StringBuilder> BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(8192));
+
+    /**
+     * Provides the values for the placeholders in a template.
+     */
+    interface Values {
+        /**
+         * Appends the value of a placeholder.
+         *
+         * @param placeholder placeholder, including the braces - e.g. <i>{{url}}</i>
+         * @param out         builder for the rendered text
+         * @return false if the placeholder is unknown - it is rendered as it is
+         */
+        boolean append(String placeholder, StringBuilder out);
+    }
+
+    /**
+     * Literal text and placeholders, in the order they appear in the template
+     */
+    private final String[] segments;
+    /**
+     * Marks which of the {@link Template#segments} are placeholders
+     */
+    private final boolean[] placeholders;
+    private final int length;
+
+    /**
+     * Parses a template text.
+     *
+     * @param text template text
+     */
+    Template(String text) {
+        List<String> segments = new ArrayList<>();
+        List<Boolean> placeholders = new ArrayList<>();
+
+        int position = 0;
+        while (position < text.length()) {
+            int start = text.indexOf(PLACEHOLDER_START, position);
+            int end = start < 0 ? -1 : text.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length());
+            if (start < 0 || end < 0) {
+                segments.add(text.substring(position));
+                placeholders.add(false);
+                break;
+            }
+            if (start > position) {
+                segments.add(text.substring(position, start));
+                placeholders.add(false);
+            }
+            segments.add(text.substring(start, end + PLACEHOLDER_END.length()));
+            placeholders.add(true);
+            position = end + PLACEHOLDER_END.length();
+        }
+
+        this.segments = segments.toArray(new String[0]);
+        this.placeholders = new boolean[this.segments.length];
+        for (int i = 0; i < this.placeholders.length; i++) {
+            this.placeholders[i] = placeholders.get(i);
+        }
+        this.length = text.length();
+    }
+
+    /**
+     * Renders the template to text.
+     *
+     * @param values provides the placeholder values
+     * @return rendered text
+     */
+    String render(Values values) {
+        StringBuilder out = BUILDER.get();
+        // nested templates are appended with renderTo() - this builder is never in use here
+        out.setLength(0);
+        this.renderTo(out, values);
+        String result = out.toString();
+        if (out.capacity() > 1024 * 1024) {
+            // do not keep huge pages in memory
+            BUILDER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Appends the rendered template to a builder - use this for rendering nested templates.
+     *
+     * @param out    builder for the rendered text
+     * @param values provides the placeholder values
+     */
+    void renderTo(StringBuilder out, Values values) {
+        out.ensureCapacity(out.length() + this.length);
+        for (int i = 0; i < this.segments.length; i++) {
+            if (!this.placeholders[i] || !values.append(this.segments[i], out)) {
+                out.append(this.segments[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * This class creates tiles above the highest zoom level of a tileset from their ancestor tiles,
+ * so maps are not blank when a client zooms in further than the tileset goes. Raster tiles are
+ * cropped to the area of the requested tile and scaled up - they are blurry, but still show the
+ * map. Vector tiles are clipped and scaled with {@link VectorTileClipper} and are rendered sharp
+ * by the client.
+ * <p>
+ * Creating a tile takes much longer than reading one, so the results should be cached.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class TileOverzoom {
+    /**
+     * Maximum number of zoom levels above the ancestor tile - a 256px raster tile is cropped to
+     * 4px at this level
+     */
+    static final int MAX_OVERZOOM_LEVELS = 6;
+    /**
+     * Quality for the lossy image formats
+     */
+    private static final int IMAGE_QUALITY = 90;
+
+    private TileOverzoom() {
+    }
+
+    /**
+     * Creates a tile from a part of its ancestor tile.
+     *
+     * @param tile    ancestor tile - PNG, JPEG or WebP image or vector tile
+     * @param vector  true if the tile is a vector tile
+     * @param dz      number of zoom levels between the ancestor and the new tile - from 1 to
+     *                {@link TileOverzoom#MAX_OVERZOOM_LEVELS}
+     * @param offsetX x coordinate of the new tile inside the ancestor - from 0 to <i>2^dz - 1</i>
+     * @param offsetY y coordinate of the new tile inside the ancestor - from 0 to <i>2^dz - 1</i>
+     * @return new tile in the same format or null if the ancestor tile can not be read
+     */
+    static byte[] createTile(byte[] tile, boolean vector, int dz, int offsetX, int offsetY) {
+        if (tile == null || tile.length == 0 || dz < 1 || dz > MAX_OVERZOOM_LEVELS) {
+            return null;
+        }
+        return vector
+                ? VectorTileClipper.clip(tile, dz, offsetX, offsetY)
+                : scaleImage(tile, dz, offsetX, offsetY);
+    }
+
+    /**
+     * Crops a raster tile and scales the cropped part to the size of the tile.
+     *
+     * @return new tile or null if the image format is not supported
+     */
+    private static byte[] scaleImage(byte[] tile, int dz, int offsetX, int offsetY) {
+        Bitmap.CompressFormat format = getImageFormat(tile);
+        if (format == null) {
+            return null;
+        }
+        Bitmap image = BitmapFactory.decodeByteArray(tile, 0, tile.length);
+        if (image == null) {
+            return null;
+        }
+
+        Bitmap cropped = null;
+        Bitmap scaled = null;
+        try {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] area = getCropArea(width, height, dz, offsetX, offsetY);
+            cropped = Bitmap.createBitmap(image, area[0], area[1], area[2], area[3]);
+            // bilinear filtering - nearest neighbour makes the map look like a pixel grid
+            scaled = Bitmap.createScaledBitmap(cropped, width, height, true);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(tile.length * 2);
+            if (!scaled.compress(format, IMAGE_QUALITY, output)) {
+                return null;
+            }
+            return output.toByteArray();
+        } finally {
+            // the returned bitmaps can be the same objects, when nothing was changed
+            image.recycle();
+            if (cropped != null && cropped != image) {
+                cropped.recycle();
+            }
+            if (scaled != null && scaled != cropped && scaled != image) {
+                scaled.recycle();
+            }
+        }
+    }
+
+    /**
+     * Gets the part of an ancestor tile, which covers the new tile. Images smaller than
+     * <i>2^dz</i> pixels are cropped to one pixel.
+     *
+     * @param width   width of the ancestor tile in pixels
+     * @param height  height of the ancestor tile in pixels
+     * @param dz      number of zoom levels between the ancestor and the new tile
+     * @param offsetX x coordinate of the new tile inside the ancestor
+     * @param offsetY y coordinate of the new tile inside the ancestor
+     * @return <i>left, top, width, height</i> of the cropped part in pixels
+     */
+    static int[] getCropArea(int width, int height, int dz, int offsetX, int offsetY) {
+        int cropWidth = Math.max(1, width >> dz);
+        int cropHeight = Math.max(1, height >> dz);
+        return new int[]{
+                Math.min(width - cropWidth, offsetX * cropWidth),
+                Math.min(height - cropHeight, offsetY * cropHeight),
+                cropWidth,
+                cropHeight};
+    }
+
+    /**
+     * Detects the image format from the file signature - tilesets often do not set it or set it
+     * for the whole tileset, while single tiles are stored in another format.
+     *
+     * @return format for writing the new tile or null if the image is not PNG, JPEG or WebP
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getImageFormat(byte[] tile) {
+        if (tile.length >= 8 && (tile[0] & 0xff) == 0x89 && tile[1] == 'P' && tile[2] == 'N' && tile[3] == 'G') {
+            return Bitmap.CompressFormat.PNG;
+        }
+        if (tile.length >= 3 && (tile[0] & 0xff) == 0xff && (tile[1] & 0xff) == 0xd8 && (tile[2] & 0xff) == 0xff) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        if (tile.length >= 12 && tile[0] == 'R' && tile[1] == 'I' && tile[2] == 'F' && tile[3] == 'F'
+                && tile[8] == 'W' && tile[9] == 'E' && tile[10] == 'B' && tile[11] == 'P') {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,258 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.Process;
+
+import com.bojko108.mobiletileserver.server.cache.TileCache;
+import com.bojko108.mobiletileserver.utils.TileGrid;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class loads the tiles, which a map client will most likely request next, while the server
+ * is idle. When a tile is requested, the ring of its neighbours and the four tiles at the next zoom
+ * level are loaded on a single background thread - MBTiles tiles are stored in {@link TileCache},
+ * Directory Tileset files are read into the OS page cache.
+ * <p>
+ * Prefetching never competes with requests:
+ * <ul>
+ *     <li>it is skipped while requests are waiting for a worker thread in {@link TileWorkerPool}</li>
+ *     <li>only the most recent requests are prefetched - older ones are dropped</li>
+ *     <li>it is skipped in power save mode and while the battery is low and not charging</li>
+ * </ul>
+ * Prefetched tiles are tracked, so the hit rate - prefetched tiles, which were requested later -
+ * can be reported.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class TilePrefetcher {
+    /**
+     * Maximum number of requested tiles waiting to be prefetched
+     */
+    private static final int MAX_QUEUED_PREFETCHES = 8;
+    /**
+     * Number of recently requested or prefetched tiles, which are remembered for the hit rate
+     * and are not prefetched again
+     */
+    private static final int MAX_TRACKED_TILES = 4096;
+    /**
+     * Prefetching is stopped below this battery level, unless the device is charging
+     */
+    private static final int MIN_BATTERY_LEVEL = 30;
+    /**
+     * The battery state is checked at most once in this interval
+     */
+    private static final long BATTERY_CHECK_INTERVAL = 60_000;
+
+    /**
+     * Loads a tile from a tileset - called on the prefetch thread.
+     */
+    interface TileLoader {
+        /**
+         * @param z zoom level
+         * @param x tile's x coordinate
+         * @param y tile's y coordinate in XYZ schema
+         * @return true if the tile exists and was loaded
+         */
+        boolean load(int z, int x, int y);
+    }
+
+    private final TileWorkerPool workerPool;
+    private final BatteryManager batteryManager;
+    private final PowerManager powerManager;
+    private final ThreadPoolExecutor executor;
+    /**
+     * Tile keys - true for prefetched tiles, which were not requested yet
+     */
+    private final Map<String, Boolean> trackedTiles = new LinkedHashMap<String, Boolean>(MAX_TRACKED_TILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return this.size() > MAX_TRACKED_TILES;
+        }
+    };
+
+    private final AtomicLong prefetchedCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+    private volatile long batteryCheckTime;
+    private volatile boolean batteryLow;
+
+    /**
+     * Creates a new prefetcher.
+     *
+     * @param context    application context - used for reading the battery state
+     * @param workerPool worker threads, executing requests - prefetching waits while they are busy
+     */
+    TilePrefetcher(Context context, TileWorkerPool workerPool) {
+        this.workerPool = workerPool;
+        this.batteryManager = context.getSystemService(BatteryManager.class);
+        this.powerManager = context.getSystemService(PowerManager.class);
+        this.executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED_PREFETCHES),
+                runnable -> new Thread(() -> {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "TilePrefetcher"),
+                (runnable, executor) -> {
+                    // the client moved on - the oldest request is not worth prefetching any more
+                    if (!executor.isShutdown()) {
+                        executor.getQueue().poll();
+                        this.skippedCount.incrementAndGet();
+                        executor.execute(runnable);
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Records a tile request - if the tile was prefetched, it is counted as a hit. Call it for
+     * each requested tile.
+     *
+     * @param tileset unique name of the tileset, as used in {@link TileCache#keyFor(String, int, int, int)}
+     * @param z       zoom level
+     * @param x       tile's x coordinate
+     * @param y       tile's y coordinate in XYZ schema
+     */
+    void onTileRequested(String tileset, int z, int x, int y) {
+        String key = TileCache.keyFor(tileset, z, x, y);
+        Boolean prefetched;
+        synchronized (this.trackedTiles) {
+            prefetched = this.trackedTiles.put(key, Boolean.FALSE);
+        }
+        if (prefetched != null && prefetched) {
+            this.hitCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Queues the neighbours and the child tiles of a requested tile for prefetching.
+     *
+     * @param tileset unique name of the tileset, as used in {@link TileCache#keyFor(String, int, int, int)}
+     * @param z       zoom level of the requested tile
+     * @param x       x coordinate of the requested tile
+     * @param y       y coordinate of the requested tile in XYZ schema
+     * @param maxZoom the highest zoom level of the tileset - child tiles are not prefetched above it
+     * @param loader  loads the tiles
+     */
+    void prefetch(String tileset, int z, int x, int y, int maxZoom, TileLoader loader) {
+        if (!TileGrid.isValid(z, x, y) || this.isThrottled()) {
+            this.skippedCount.incrementAndGet();
+            return;
+        }
+        try {
+            this.executor.execute(() -> this.prefetchTiles(tileset, z, x, y, maxZoom, loader));
+        } catch (RuntimeException ex) {
+            // the prefetcher is stopped
+            this.skippedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stops prefetching - queued tiles are dropped.
+     */
+    void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @return number of prefetched tiles
+     */
+    long getPrefetchedCount() {
+        return this.prefetchedCount.get();
+    }
+
+    /**
+     * @return number of prefetched tiles, which were requested later
+     */
+    long getHitCount() {
+        return this.hitCount.get();
+    }
+
+    /**
+     * @return number of requests, which were not prefetched, because the server was busy or the battery was low
+     */
+    long getSkippedCount() {
+        return this.skippedCount.get();
+    }
+
+    /**
+     * @return part of the prefetched tiles, which were requested later - from 0 to 1
+     */
+    double getHitRatio() {
+        long prefetched = this.getPrefetchedCount();
+        return prefetched > 0 ? this.getHitCount() / (double) prefetched : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "TilePrefetcher[prefetched=%d, hits=%d, hitRatio=%.2f, skipped=%d]",
+                this.getPrefetchedCount(), this.getHitCount(), this.getHitRatio(), this.getSkippedCount());
+    }
+
+    private void prefetchTiles(String tileset, int z, int x, int y, int maxZoom, TileLoader loader) {
+        int[] neighbours = TileGrid.getNeighbours(z, x, y);
+        if (!this.prefetchTiles(tileset, z, neighbours, loader)) {
+            return;
+        }
+        if (z < maxZoom) {
+            this.prefetchTiles(tileset, z + 1, TileGrid.getChildren(z, x, y), loader);
+        }
+    }
+
+    /**
+     * @return false if prefetching was stopped, because the server is busy
+     */
+    private boolean prefetchTiles(String tileset, int z, int[] tiles, TileLoader loader) {
+        for (int i = 0; i < tiles.length; i += 2) {
+            if (this.workerPool.getQueueDepth() > 0 || Thread.currentThread().isInterrupted()) {
+                this.skippedCount.incrementAndGet();
+                return false;
+            }
+            String key = TileCache.keyFor(tileset, z, tiles[i], tiles[i + 1]);
+            synchronized (this.trackedTiles) {
+                if (this.trackedTiles.containsKey(key)) {
+                    // requested or prefetched recently
+                    continue;
+                }
+            }
+            if (loader.load(z, tiles[i], tiles[i + 1])) {
+                this.prefetchedCount.incrementAndGet();
+                synchronized (this.trackedTiles) {
+                    this.trackedTiles.putIfAbsent(key, Boolean.TRUE);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if tiles should not be prefetched now
+     */
+    private boolean isThrottled() {
+        if (this.workerPool.getQueueDepth() > 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now - this.batteryCheckTime > BATTERY_CHECK_INTERVAL) {
+            this.batteryCheckTime = now;
+            boolean powerSave = this.powerManager != null && this.powerManager.isPowerSaveMode();
+            boolean lowBattery = false;
+            if (this.batteryManager != null && !this.batteryManager.isCharging()) {
+                // the level is not positive if the device does not report it
+                int level = this.batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+                lowBattery = level > 0 && level < MIN_BATTERY_LEVEL;
+            }
+            this.batteryLow = powerSave || lowBattery;
+        }
+        return this.batteryLow;
+    }
+}
@@ -2,27 +2,46 @@ package com.bojko108.mobiletileserver.server;
 
 import android.content.Context;
 import android.os.FileUtils;
+import android.util.JsonWriter;
 import android.util.Log;
 
+import com.bojko108.mobiletileserver.server.cache.SlabTileCache;
+import com.bojko108.mobiletileserver.server.cache.TileCache;
+import com.bojko108.mobiletileserver.server.tilesets.DirectoryTileIndex;
 import com.bojko108.mobiletileserver.server.tilesets.MBTilesDatabase;
+import com.bojko108.mobiletileserver.server.tilesets.MBTilesDatabasePool;
+import com.bojko108.mobiletileserver.server.tilesets.MBTilesTileFilter;
 import com.bojko108.mobiletileserver.server.tilesets.StaticFileInfo;
+import com.bojko108.mobiletileserver.server.tilesets.TilesetCatalog;
 import com.bojko108.mobiletileserver.server.tilesets.TilesetInfo;
+import com.bojko108.mobiletileserver.server.tilesets.TilesetInfoCache;
 import com.bojko108.mobiletileserver.utils.HelperClass;
+import com.bojko108.mobiletileserver.utils.TileGrid;
 import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.callback.ListenCallback;
 import com.koushikdutta.async.http.Multimap;
 import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * This is the main class, responsible for managing GET requests to the tile server. The class
@@ -33,9 +52,12 @@ import java.util.Locale;
  *     <li><i>/preview/tiles</i> - address on which you can preview a specific Directory Tileset</li>
  *     <li><i>/mbtiles</i> - address on which you can access a specific MBTiles Tileset</li>
  *     <li><i>/tiles</i> - address on which you can access a specific Directory Tileset</li>
+ *     <li><i>/mbtiles/{tileset}.json</i> and <i>/tiles/{tileset}.json</i> - TileJSON for a specific tileset</li>
  *     <li><i>/availabletilesets</i> - address on which you can get all available tilesets in JSON format</li>
+ *     <li><i>/batch/mbtiles</i> - address on which you can get many tiles from a MBTiles Tileset with one request</li>
  *     <li><i>/static</i> - address on which you can access static files</li>
  *     <li><i>/liststaticfiles</i> - lists all static files served by the server</li>
+ *     <li><i>/metrics</i> - request metrics in Prometheus text format</li>
  * </ul>
  * <p>
  * Mobile Tile Server, Copyright (c) 2020 by bojko108
@@ -68,15 +90,28 @@ class TileServer {
      * Represents the address of the Tiles operation, relative to the home page
      */
     private static final String URL_TILES = "/tiles";
+    /**
+     * Represents the extension of the TileJSON address for a tileset - <i>/mbtiles/{tileset}.json</i>
+     * or <i>/tiles/{tileset}.json</i>
+     */
+    private static final String URL_TILEJSON = ".json";
     /**
      * Represents the address of the available tilesets as JSON
      * - used in <b>Mobile Geodesy App</b>
      */
     private static final String URL_AVAILABLE_TILESETS = "/availabletilesets";
+    /**
+     * Represents the address of the batch MBTiles operation, relative to the home page
+     */
+    private static final String URL_BATCH_MBTILES = "/batch/mbtiles";
     /**
      * Represents the address of the Static Files operation, relative to the home page
      */
     private static final String URL_STATIC_FILES = "/static";
+    /**
+     * Represents the address of the server metrics, relative to the home page
+     */
+    private static final String URL_METRICS = "/metrics";
     /**
      * Represents the tileset parameter, used to set the MBTiles file in MBTiles operation
      */
@@ -98,6 +133,54 @@ class TileServer {
      * Represents the y coordinate of a tile, use negative values if TMS is used
      */
     private static final String PARAMETER_Y = "y";
+    /**
+     * Represents a list of tiles - <i>z/x/y,z/x/y,...</i>, used in batch operations
+     */
+    private static final String PARAMETER_TILES = "tiles";
+
+    /**
+     * Maximum number of MBTiles files kept open at the same time
+     */
+    private static final int MAX_OPEN_MBTILES_DATABASES = 8;
+    /**
+     * Represents the file, used for storing cached tiles outside the Java heap, relative to the root directory
+     */
+    private static final String TILE_CACHE_SLAB_FILE = "/.cache/tiles.slab";
+    /**
+     * Represents the file, used for saving the tileset catalog between restarts, relative to the root directory
+     */
+    private static final String TILESET_CATALOG_SNAPSHOT_FILE = "/.cache/catalog.json";
+    /**
+     * Maximum number of requests waiting for a free worker thread
+     */
+    private static final int MAX_QUEUED_REQUESTS = 64;
+    /**
+     * Maximum number of tiles returned from one batch request
+     */
+    private static final int MAX_BATCH_TILES = 256;
+    /**
+     * Maximum number of tiles in a Directory Tileset, which can be indexed - about 8 bytes of memory per tile
+     */
+    private static final int MAX_INDEXED_DIRECTORY_TILES = 4_000_000;
+    /**
+     * A changed Directory Tileset is indexed again after no more changes were made for this
+     * time - copying a tileset changes it many times
+     */
+    private static final long DIRECTORY_TILE_INDEX_DELAY_MS = 5000;
+    /**
+     * Maximum number of tiles in a MBTiles file, which are added to a {@link MBTilesTileFilter} -
+     * about 10 bits of memory per tile
+     */
+    private static final int MAX_FILTERED_MBTILES_TILES = 4_000_000;
+    /**
+     * Image ids in deduplicated MBTiles files, which are content hashes - MD5 or longer
+     */
+    private static final Pattern CONTENT_HASH_PATTERN = Pattern.compile("[0-9a-fA-F]{32,}");
+
+    /**
+     * Returned by {@link TileServer#getIndexedDirectoryTileFile(String)} for tiles, which are not in the index
+     */
+    private static final File NO_DIRECTORY_TILE = new File("");
 
     private AsyncServer server;
     private AsyncHttpServer httpServer;
@@ -105,7 +188,36 @@ class TileServer {
     private String rootPath;
     private int port;
     private Context appContext;
-    private MBTilesDatabase mbTilesDatabase;
+    private MBTilesDatabasePool mbTilesDatabasePool;
+    private TilesetInfoCache mbTilesInfoCache;
+    private TileCache tileCache;
+    private TileWorkerPool workerPool;
+    /**
+     * Null if prefetching is disabled in the settings
+     */
+    private TilePrefetcher tilePrefetcher;
+    /**
+     * Used for reading Directory Tileset files on the prefetch thread only
+     */
+    private final byte[] prefetchBuffer = new byte[16 * 1024];
+    private ConnectionMonitor connectionMonitor;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int connectionIdleTimeout;
+    private int maxRequestsPerConnection;
+    private int extraListeningPorts;
+    /**
+     * Used in validators, which change on each restart - e.g. for the catalog version
+     */
+    private final long startTime = System.currentTimeMillis();
+    private int cacheMaxAge;
+    private boolean useDirectoryTileIndex;
+    private boolean useOverzoom;
+    private int slabTileCacheSize;
+    private final Map<String, DirectoryTileIndex> directoryTileIndexes = new ConcurrentHashMap<>();
+    private final Map<String, MBTilesTileFilter> mbTilesFilters = new ConcurrentHashMap<>();
+    private TilesetCatalog tilesetCatalog;
+    private final Map<String, ScheduledFuture<?>> pendingDirectoryTileIndexes = new ConcurrentHashMap<>();
+    private ScheduledExecutorService backgroundExecutor;
 
     /**
      * Creates a new tile server. To start it call {@link TileServer#start(int)}.
@@ -119,13 +231,63 @@ class TileServer {
         this.appContext = context;
         this.rootPath = rootPath;
 
-        // this object is set on each request, but it's reference is kept
-        // here so each successive request will use the same object
-        this.mbTilesDatabase = null;
+        // keeps the recently used MBTiles files open, so requests for
+        // different tilesets do not close and reopen the databases
+        this.mbTilesDatabasePool = new MBTilesDatabasePool(MAX_OPEN_MBTILES_DATABASES);
+        // keeps the metadata of all MBTiles files in memory, it is read again
+        // only when a file is modified
+        this.mbTilesInfoCache = new TilesetInfoCache(this::readMBTilesInfoFor);
+        // keeps recently served tiles from all tilesets in memory
+        ServerSettings settings = new ServerSettings(context);
+        // the slab cache is attached when it is opened in the background
+        this.tileCache = new TileCache(settings.getTileCacheSizeInBytes());
+        // clients can use downloaded tiles for this time without revalidating them
+        this.cacheMaxAge = settings.getCacheMaxAge();
+        // Directory Tilesets are scanned once, so missing tiles are not looked up on the storage
+        this.useDirectoryTileIndex = settings.isDirectoryTileIndexEnabled();
+        this.useOverzoom = settings.isOverzoomEnabled();
+        // persistent connections are reused for many tiles, but are not kept open forever
+        this.connectionIdleTimeout = settings.getConnectionIdleTimeout();
+        this.maxRequestsPerConnection = settings.getMaxRequestsPerConnection();
+        // more ports let browsers open more parallel connections for loading tiles
+        this.extraListeningPorts = settings.getExtraListeningPorts();
+        // scanning tilesets is executed here, so it does not compete with tile requests
+        this.backgroundExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "TileServerBackground");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        // all tilesets are listed once and the list is updated when files are changed
+        this.tilesetCatalog = new TilesetCatalog(new File(rootPath + URL_MBTILES), new File(rootPath + URL_TILES),
+                new File(rootPath + URL_STATIC_FILES), new File(rootPath + TILESET_CATALOG_SNAPSHOT_FILE),
+                this.mbTilesInfoCache, this.tilesetCatalogListener, this.backgroundExecutor);
+        // SQLite queries and file reads are executed here instead of the server thread
+        int workerThreads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.workerPool = new TileWorkerPool(workerThreads, MAX_QUEUED_REQUESTS);
+        // tiles around the requested ones are loaded while the workers are idle
+        if (settings.isTilePrefetchEnabled()) {
+            this.tilePrefetcher = new TilePrefetcher(context, this.workerPool);
+        }
+
+        // the slab cache is opened after the tilesets are loaded in start()
+        this.slabTileCacheSize = settings.getSlabTileCacheSizeInBytes();
 
         this.createRootDirectoryIfDoesNotExist();
     }
 
+    /**
+     * Opens the slab cache file and attaches it as a second level of the tile cache. Executed
+     * from the background thread.
+     *
+     * @param sizeInBytes size of the slab cache file, 0 disables it
+     */
+    private void openSlabTileCache(int sizeInBytes) {
+        SlabTileCache slabTileCache = new SlabTileCache(new File(this.rootPath + TILE_CACHE_SLAB_FILE), sizeInBytes);
+        if (slabTileCache.open()) {
+            this.tileCache.setSecondLevel(slabTileCache);
+        }
+    }
+
     /**
      * Creates all needed files and directories if does not exist. The path to the directory
      * is set in app settings.
@@ -150,23 +312,50 @@ class TileServer {
      */
     void start(int port) {
         try {
-            // create the server and set the paths
-            this.httpServer = new AsyncHttpServer();
-            this.httpServer.get(URL_HOME_PAGE, this.homePageCallback);
-            this.httpServer.get(URL_PREVIEW_MBTILES, this.previewMBTilesPageCallback);
-            this.httpServer.get(URL_PREVIEW_TILES, this.previewTilesPageCallback);
-            this.httpServer.get(URL_MBTILES + ".*", this.getMBTileCallback);
-            this.httpServer.get(URL_TILES, this.getAvailableDirectoryTiles);
-            this.httpServer.get(URL_TILES + ".*", this.getTileCallback);
-            this.httpServer.get(URL_AVAILABLE_TILESETS, this.getAvailableTilesetsAsJson);
-            this.httpServer.get(URL_STATIC_FILES, this.getStaticFile);
-
             this.port = port;
+            // the catalog saved last time is served until the tilesets are scanned again, so
+            // requests received before the scan is finished do not scan them on a worker thread
+            this.tilesetCatalog.loadSnapshot();
 
             this.server = new AsyncServer();
-            this.httpServer.listen(this.server, this.port);
+            this.connectionMonitor = new ConnectionMonitor(this.server, this.connectionIdleTimeout, this.maxRequestsPerConnection);
+
+            // create the server and set the paths
+            this.httpServer = new AsyncHttpServer();
+            this.addRoute(URL_HOME_PAGE, ServerMetrics.Route.HOME, this.homePageCallback);
+            this.addRoute(URL_PREVIEW_MBTILES, ServerMetrics.Route.PREVIEW, this.onWorkerThread(this.previewMBTilesPageCallback));
+            this.addRoute(URL_PREVIEW_TILES, ServerMetrics.Route.PREVIEW, this.onWorkerThread(this.previewTilesPageCallback));
+            // TileJSON routes must be registered before the tile routes, which match them too
+            this.addRoute(URL_MBTILES + "/[^/]+\\" + URL_TILEJSON, ServerMetrics.Route.TILEJSON, this.onWorkerThread(this.getTileJsonCallback));
+            this.addRoute(URL_TILES + "/[^/]+\\" + URL_TILEJSON, ServerMetrics.Route.TILEJSON, this.onWorkerThread(this.getTileJsonCallback));
+            this.addRoute(URL_MBTILES + ".*", ServerMetrics.Route.MBTILES, this.onWorkerThread(this.getMBTileCallback));
+            this.addRoute(URL_TILES, ServerMetrics.Route.TILES, this.onWorkerThread(this.getAvailableDirectoryTiles));
+            this.addRoute(URL_TILES + ".*", ServerMetrics.Route.TILES, this.onWorkerThread(this.getTileCallback));
+            this.addRoute(URL_AVAILABLE_TILESETS, ServerMetrics.Route.AVAILABLE_TILESETS, this.onWorkerThread(this.getAvailableTilesetsAsJson));
+            this.addRoute(URL_BATCH_MBTILES, ServerMetrics.Route.BATCH, this.onWorkerThread(this.getMBTilesBatchCallback));
+            this.addRoute(URL_STATIC_FILES, ServerMetrics.Route.STATIC_FILES, this.onWorkerThread(this.getStaticFile));
+            this.addRoute(URL_METRICS, ServerMetrics.Route.METRICS, this.onWorkerThread(this.getMetricsCallback));
+
+            // accepted connections are tracked for the keep-alive settings and statistics
+            ListenCallback listenCallback = this.connectionMonitor.wrap(this.httpServer.getListenCallback());
+            this.server.listen(null, this.port, listenCallback);
+            this.connectionMonitor.start();
 
             ServerFiles.setServerUrlAddress(this.getHomeAddress());
+            ServerFiles.setServerPorts(this.listenOnExtraPorts(listenCallback));
+
+            this.backgroundExecutor.execute(() -> {
+                // only tilesets modified since the snapshot was saved are read again
+                this.tilesetCatalog.load();
+                this.createTileJsons();
+                this.buildMBTilesFilters();
+                if (this.useDirectoryTileIndex) {
+                    this.buildDirectoryTileIndexes();
+                }
+            });
+            // mapping the slab file extends it on the storage, so it is not done on the main
+            // thread - it is queued after the tilesets, which are needed by all requests
+            this.backgroundExecutor.execute(() -> this.openSlabTileCache(this.slabTileCacheSize));
 
             Log.i(TAG, "TileServer started");
         } catch (Exception ex) {
@@ -174,15 +363,80 @@ class TileServer {
         }
     }
 
+    /**
+     * Starts listening on the additional ports after the main port - all ports serve the same routes.
+     *
+     * @param listenCallback callback for accepted connections
+     * @return all ports the server is listening on, starting with the main port
+     */
+    private int[] listenOnExtraPorts(ListenCallback listenCallback) {
+        List<Integer> ports = new ArrayList<>();
+        ports.add(this.port);
+        for (int i = 1; i <= this.extraListeningPorts; i++) {
+            if (this.server.listen(null, this.port + i, listenCallback) != null) {
+                ports.add(this.port + i);
+            } else {
+                Log.w(TAG, "Unable to listen on port " + (this.port + i));
+            }
+        }
+        int[] result = new int[ports.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ports.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Registers a HTTP route. Requests are counted by {@link ConnectionMonitor} and recorded in
+     * {@link ServerMetrics} before the callback is executed.
+     *
+     * @param regex    route path
+     * @param route    route for the metrics
+     * @param callback request callback
+     */
+    private void addRoute(String regex, ServerMetrics.Route route, HttpServerRequestCallback callback) {
+        this.httpServer.get(regex, this.connectionMonitor.track(this.metrics.track(route, callback)));
+    }
+
     /**
      * Stops the {@link TileServer}
      */
     void stop() {
-        this.httpServer.stop();
-        this.server.stop();
+        if (this.server != null) {
+            this.connectionMonitor.stop();
+            this.httpServer.stop();
+            this.server.stop();
+            Log.i(TAG, this.connectionMonitor.toString());
+        }
+        Log.i(TAG, this.workerPool.toString());
+        this.workerPool.shutdown();
+        if (this.tilePrefetcher != null) {
+            Log.i(TAG, this.tilePrefetcher.toString());
+            this.tilePrefetcher.shutdown();
+        }
+        Log.i(TAG, this.mbTilesDatabasePool.toString());
+        this.mbTilesDatabasePool.closeAll();
+        this.backgroundExecutor.shutdownNow();
+        this.tilesetCatalog.close();
+        this.mbTilesInfoCache.clear();
+        this.pendingDirectoryTileIndexes.clear();
+        this.directoryTileIndexes.clear();
+        this.mbTilesFilters.clear();
+        Log.i(TAG, this.tileCache.toString());
+        this.tileCache.close();
         Log.i(TAG, "TileServer stopped");
     }
 
+    /**
+     * Releases cached map tiles when the system is running low on memory.
+     *
+     * @param level memory trim level, passed to {@link TileService#onTrimMemory(int)}
+     */
+    void trimMemory(int level) {
+        this.tileCache.trimMemory(level);
+        Log.i(TAG, "trimMemory(" + level + "): " + this.tileCache.toString());
+    }
+
     /**
      * Gets the Server Home Address
      *
@@ -276,7 +530,7 @@ class TileServer {
      * @param y_req   - specifies tile's y coordinate. Use negative value if TMS schema is used by your mapping application
      * @return Image
      */
-    private byte[] getTileFromMBTilesFile(String tileset, String z_req, String x_req, String y_req) {
+    byte[] getTileFromMBTilesFile(String tileset, String z_req, String x_req, String y_req) {
         try {
             String mbtilesFilePath = this.getPathToMBTilesTileset(tileset);
             if (!mbtilesFilePath.endsWith(".mbtiles")) {
@@ -293,23 +547,107 @@ class TileServer {
             int x = Integer.parseInt(x_req);
             int y = Integer.parseInt(y_req);
 
-            if (this.mbTilesDatabase == null) {
-                this.mbTilesDatabase = new MBTilesDatabase(appContext, mbtilesFilePath);
-            } else {
-                if (!mbtilesFilePath.equals(this.mbTilesDatabase.getDatabaseName())) {
-                    // close current mbtiles tileset
-                    this.mbTilesDatabase.close();
-                    // open a new mbtiles tileset
-                    this.mbTilesDatabase = new MBTilesDatabase(appContext, mbtilesFilePath);
-                }
+            // cached tiles are returned without taking a database from the pool
+            String cacheKey = TileCache.keyFor(this.getCacheNameForMBTilesTileset(file), z, x, y);
+            byte[] data = this.tileCache.get(cacheKey);
+            if (data != null) {
+                return data;
             }
 
-            return this.mbTilesDatabase.getTile(z, x, y);
+            try (MBTilesDatabasePool.Handle handle = this.mbTilesDatabasePool.acquire(file.getAbsolutePath())) {
+                MBTilesDatabase database = handle.getDatabase();
+                if (database.isDeduplicated()) {
+                    // identical tiles are cached once - by their id
+                    String tileId = database.getTileId(z, x, y);
+                    return tileId != null ? this.getTileFromMBTilesFile(file, database, tileId) : null;
+                }
+
+                data = database.getTile(z, x, y);
+                this.tileCache.put(cacheKey, data);
+                return data;
+            }
         } catch (NullPointerException ex) {
             return null;
         }
     }
 
+    /**
+     * Takes an opened MBTiles file from {@link MBTilesDatabasePool}. The returned handle must be
+     * closed, so the file is returned to the pool.
+     *
+     * @param tileset - specifies the name of the MBTiles file (relative to the server's root directory)
+     * @return handle or null if the file does not exist
+     */
+    private MBTilesDatabasePool.Handle acquireMBTilesFile(String tileset) {
+        File file = new File(this.getPathToMBTilesTileset(tileset));
+        if (!file.exists() || file.isDirectory()) {
+            return null;
+        }
+        return this.mbTilesDatabasePool.acquire(file.getAbsolutePath());
+    }
+
+    /**
+     * Gets the id of the image stored for a tile in a deduplicated MBTiles file -
+     * see {@link TilesetInfo#isDeduplicated()}.
+     *
+     * @param database - opened MBTiles file, see {@link TileServer#acquireMBTilesFile(String)}
+     * @param z_req    - specifies the zoom level
+     * @param x_req    - specifies tile's x coordinate
+     * @param y_req    - specifies tile's y coordinate. Use negative value if TMS schema is used by your mapping application
+     * @return tile id or null if the tile does not exist
+     */
+    private String getTileIdFromMBTilesFile(MBTilesDatabase database, String z_req, String x_req, String y_req) {
+        return database.getTileId(Integer.parseInt(z_req), Integer.parseInt(x_req), Integer.parseInt(y_req));
+    }
+
+    /**
+     * Gets an image from a deduplicated MBTiles file by its id. The image is cached by its id,
+     * so all tiles sharing it (e.g. ocean or blank tiles) use one cache entry.
+     *
+     * @param file     MBTiles file
+     * @param database opened MBTiles file
+     * @param tileId   id of the image
+     * @return Image
+     */
+    private byte[] getTileFromMBTilesFile(File file, MBTilesDatabase database, String tileId) {
+        String cacheKey = TileCache.keyForTileId(this.getCacheNameForMBTilesTileset(file), tileId);
+        byte[] data = this.tileCache.get(cacheKey);
+        if (data == null) {
+            data = database.getTileData(tileId);
+            this.tileCache.put(cacheKey, data);
+        }
+        return data;
+    }
+
+    /**
+     * Gets all tiles in a range of tile coordinates from a MBTiles file with a single query.
+     * Tiles from tilesets, which are not deduplicated, are also stored in {@link TileCache}.
+     *
+     * @param tileset  specifies the name of the MBTiles file to query data from (relative to the server's root directory)
+     * @param range    tile range - <i>z, min_x, max_x, min_y, max_y</i>, y in XYZ schema
+     * @param consumer receives each tile
+     * @return number of returned tiles
+     */
+    private int getTilesFromMBTilesFile(String tileset, int[] range, MBTilesDatabase.TileConsumer consumer) {
+        File file = new File(this.getPathToMBTilesTileset(tileset));
+        if (!file.exists() || file.isDirectory()) {
+            return 0;
+        }
+
+        try (MBTilesDatabasePool.Handle handle = this.mbTilesDatabasePool.acquire(file.getAbsolutePath())) {
+            MBTilesDatabase database = handle.getDatabase();
+            if (database.isDeduplicated()) {
+                return database.getTiles(range[0], range[1], range[2], range[3], range[4], consumer);
+            }
+
+            String cacheName = this.getCacheNameForMBTilesTileset(file);
+            return database.getTiles(range[0], range[1], range[2], range[3], range[4], (z, x, y, data) -> {
+                this.tileCache.put(TileCache.keyFor(cacheName, z, x, y), data);
+                consumer.accept(z, x, y, data);
+            });
+        }
+    }
+
     /**
      * Reads the information about a MBTiles tileset and returns it.
      *
@@ -332,14 +670,34 @@ class TileServer {
     }
 
     /**
-     * Reads the information about a MBTiles tileset and returns it.
+     * Gets the information about a MBTiles tileset. The information is cached and is read
+     * again only if the file was modified.
      *
      * @param file MBTiles file to read
      * @return tileset info
      */
     private TilesetInfo getMBTilesInfoFor(File file) {
+        return this.mbTilesInfoCache.get(file);
+    }
+
+    /**
+     * Reads the information about a MBTiles tileset and returns it. Called by {@link TilesetInfoCache}
+     * when the file is new or was modified - in the second case the database opened in
+     * {@link MBTilesDatabasePool} is also stale and is removed from the pool.
+     *
+     * @param file MBTiles file to read
+     * @return tileset info
+     */
+    private TilesetInfo readMBTilesInfoFor(File file) {
         try {
-            MBTilesDatabase tileset = new MBTilesDatabase(this.appContext, file.getAbsolutePath());
+            this.mbTilesDatabasePool.invalidate(file.getAbsolutePath());
+            this.tileCache.invalidate(this.getCacheNameForMBTilesTileset(file));
+            this.mbTilesFilters.remove(file.getName());
+            if (!this.backgroundExecutor.isShutdown()) {
+                this.backgroundExecutor.execute(() -> this.buildMBTilesFilter(file));
+            }
+
+            MBTilesDatabase tileset = new MBTilesDatabase(file.getAbsolutePath());
             tileset.close();
             return tileset.getInfo();
         } catch (NullPointerException ex) {
@@ -354,84 +712,660 @@ class TileServer {
      * @return list of tileset info
      */
     private List<TilesetInfo> getInfoForAllMBTilesTilesets() {
-        List<TilesetInfo> result = new ArrayList<>();
+        return this.tilesetCatalog.getMBTilesTilesets();
+    }
 
+    private List<StaticFileInfo> getInfoForAllStaticFiles() {
+        return this.tilesetCatalog.getStaticFiles();
+    }
+
+    /**
+     * Gets the information for all available directories with tilesets, served by the server.
+     * Tiles are located in {@link TileServer#URL_TILES}.
+     *
+     * @return list of tileset info
+     */
+    private List<TilesetInfo> getInfoForAllDirectoryTilesets() {
+        return this.tilesetCatalog.getDirectoryTilesets();
+    }
+
+    /**
+     * Returns a map tile file from the specified path - use for Directory Tilesets.
+     *
+     * @param path File path, relative to the server's root directory
+     * @return map tile file or null if the tile does not exist
+     */
+    private File getDirectoryTileFile(String path) {
+        return HelperClass.getFileFromPath(this.getRootDirectoryPath() + path);
+    }
+
+    /**
+     * Finds the file of a map tile in a Directory Tileset. Tiles outside of the tileset or
+     * missing in its {@link DirectoryTileIndex} are not looked up on the storage.
+     *
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return map tile file or null if the tile does not exist
+     */
+    File findDirectoryTileFile(String path) {
+        File tileFile = this.isMissingDirectoryTile(path) ? NO_DIRECTORY_TILE : this.getIndexedDirectoryTileFile(path);
+        if (tileFile == null) {
+            return this.getDirectoryTileFile(path);
+        }
+        return tileFile != NO_DIRECTORY_TILE ? tileFile : null;
+    }
+
+    /**
+     * Creates the TileJSON documents for all tilesets in advance, so the first request from a
+     * mapping library is answered from memory. Call it on a background thread.
+     */
+    private void createTileJsons() {
+        for (TilesetInfo tileset : this.tilesetCatalog.getMBTilesTilesets()) {
+            ServerFiles.getTileJsonFor(tileset, ServerFiles.TilesetType.MBTiles);
+        }
+        for (TilesetInfo tileset : this.tilesetCatalog.getDirectoryTilesets()) {
+            ServerFiles.getTileJsonFor(tileset, ServerFiles.TilesetType.DirectoryTiles);
+        }
+    }
+
+    /**
+     * Builds a {@link DirectoryTileIndex} for each Directory Tileset. Until an index is ready
+     * the tiles from that tileset are looked up on the storage. Call it on a background thread.
+     */
+    private void buildDirectoryTileIndexes() {
+        File directory = new File(this.rootPath + URL_TILES);
+        for (TilesetInfo tileset : this.tilesetCatalog.getDirectoryTilesets()) {
+            this.buildDirectoryTileIndex(new File(directory, tileset.getParameter(TilesetInfo.TILESET_NAME, String.class)));
+        }
+    }
+
+    /**
+     * Builds the {@link DirectoryTileIndex} for a Directory Tileset.
+     *
+     * @param tileset Directory Tileset - its index is removed if the directory does not exist
+     */
+    private void buildDirectoryTileIndex(File tileset) {
+        if (!tileset.isDirectory()) {
+            this.directoryTileIndexes.remove(tileset.getName());
+            return;
+        }
+        DirectoryTileIndex index = new DirectoryTileIndex(tileset, MAX_INDEXED_DIRECTORY_TILES);
+        if (index.build()) {
+            this.directoryTileIndexes.put(tileset.getName(), index);
+        } else {
+            this.directoryTileIndexes.remove(tileset.getName());
+        }
+        Log.i(TAG, index.toString());
+    }
+
+    /**
+     * Removes the {@link DirectoryTileIndex} of a changed Directory Tileset and builds it again
+     * when the tileset is not changed for {@link TileServer#DIRECTORY_TILE_INDEX_DELAY_MS}. Until
+     * then the tiles are looked up on the storage.
+     *
+     * @param tileset changed Directory Tileset
+     */
+    private void scheduleDirectoryTileIndex(File tileset) {
+        this.directoryTileIndexes.remove(tileset.getName());
+        if (this.backgroundExecutor.isShutdown()) {
+            return;
+        }
+        ScheduledFuture<?> previous = this.pendingDirectoryTileIndexes.put(tileset.getName(),
+                this.backgroundExecutor.schedule(() -> {
+                    this.pendingDirectoryTileIndexes.remove(tileset.getName());
+                    this.buildDirectoryTileIndex(tileset);
+                }, DIRECTORY_TILE_INDEX_DELAY_MS, TimeUnit.MILLISECONDS));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Builds a {@link MBTilesTileFilter} for each MBTiles tileset. Until a filter is ready all
+     * tiles from that tileset are looked up in the file. Call it on a background thread.
+     */
+    private void buildMBTilesFilters() {
+        File directory = new File(this.rootPath + URL_MBTILES);
+        for (TilesetInfo tileset : this.tilesetCatalog.getMBTilesTilesets()) {
+            this.buildMBTilesFilter(new File(directory, tileset.getParameter(TilesetInfo.TILESET_NAME, String.class)));
+        }
+    }
+
+    /**
+     * Builds the {@link MBTilesTileFilter} for a MBTiles file, unless it was already built from
+     * the current version of the file.
+     *
+     * @param file MBTiles file
+     */
+    private void buildMBTilesFilter(File file) {
+        MBTilesTileFilter current = this.mbTilesFilters.get(file.getName());
+        if (current != null && current.isBuiltFrom(file)) {
+            return;
+        }
+        if (!file.isFile()) {
+            this.mbTilesFilters.remove(file.getName());
+            return;
+        }
+        MBTilesTileFilter filter = new MBTilesTileFilter(file, MAX_FILTERED_MBTILES_TILES);
+        // the file can be modified while the filter is built - a new filter is then scheduled
+        // by readMBTilesInfoFor() and this one is dropped
+        if (filter.build() && filter.isBuiltFrom(file)) {
+            this.mbTilesFilters.put(file.getName(), filter);
+        } else {
+            this.mbTilesFilters.remove(file.getName());
+        }
+        Log.i(TAG, filter.toString());
+    }
+
+    /**
+     * Checks if a tile surely does not exist in a MBTiles tileset - it is outside of the zoom
+     * range or the extent of the tileset, or it is not in its {@link MBTilesTileFilter}. No
+     * storage is accessed, so missing tiles are answered without a query.
+     *
+     * @param tilesetInfo tileset info
+     * @param z_req       zoom level
+     * @param x_req       tile's x coordinate
+     * @param y_req       tile's y coordinate, negative if TMS schema is used
+     * @return true if the tile does not have to be looked up
+     */
+    private boolean isMissingMBTile(TilesetInfo tilesetInfo, String z_req, String x_req, String y_req) {
+        int z;
+        int x;
+        int y;
         try {
-            File directory = new File(this.rootPath + URL_MBTILES);
-            if (directory.exists() && directory.isDirectory()) {
-                File[] files = HelperClass.getFilesFrom(directory, ".mbtiles");
-                for (File file : files) {
-                    TilesetInfo info = this.getMBTilesInfoFor(file);
-                    result.add(info);
-                }
-            }
-        } catch (NullPointerException ex) {
-            ex.printStackTrace();
+            z = Integer.parseInt(z_req);
+            x = Integer.parseInt(x_req);
+            y = Integer.parseInt(y_req);
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        if (z < 0 || z > TileGrid.MAX_ZOOM) {
+            return true;
         }
+        y = toXyzRow(z, y);
+        if (!tilesetInfo.containsTile(z, x, y)) {
+            return true;
+        }
+        MBTilesTileFilter filter = this.mbTilesFilters.get(tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class));
+        // a filter built from another version of the file is not used
+        return filter != null && filter.isReady()
+                && filter.isBuiltFrom(tilesetInfo.getLastModified(), tilesetInfo.getFileSize())
+                && !filter.mightContain(z, x, y);
+    }
 
-        return result;
+    /**
+     * Checks if a tile surely does not exist in a Directory Tileset, because it is outside of the
+     * zoom levels of the tileset - no storage is accessed.
+     *
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return true if the tile file does not have to be looked up
+     */
+    private boolean isMissingDirectoryTile(String path) {
+        String[] parts = path.split("/");
+        if (parts.length != 6) {
+            return false;
+        }
+        TilesetInfo tilesetInfo = this.tilesetCatalog.getDirectoryTileset(parts[2]);
+        if (tilesetInfo == null) {
+            return false;
+        }
+        try {
+            int z = Integer.parseInt(parts[3]);
+            int x = Integer.parseInt(parts[4]);
+            int dot = parts[5].indexOf('.');
+            int y = Integer.parseInt(dot < 0 ? parts[5] : parts[5].substring(0, dot));
+            return !tilesetInfo.containsTile(z, x, y);
+        } catch (NumberFormatException ex) {
+            return false;
+        }
     }
 
-    private List<StaticFileInfo> getInfoForAllStaticFiles() {
-        List<StaticFileInfo> result = new ArrayList<>();
+    /**
+     * Converts the tile row of a MBTiles request to XYZ schema - rows, which are not positive,
+     * are TMS rows, see {@link TileServer#getTileFromMBTilesFile(String, String, String, String)}.
+     *
+     * @param z zoom level
+     * @param y tile's y coordinate, negative if TMS schema is used
+     * @return tile's y coordinate in XYZ schema
+     */
+    private static int toXyzRow(int z, int y) {
+        return y <= 0 ? TileGrid.flipY(z, -y) : y;
+    }
 
+    /**
+     * Gets a map tile file from a Directory Tileset using its {@link DirectoryTileIndex} - the
+     * storage is accessed only to check if tiles were added to the tile's <i>{z}/{x}</i> directory
+     * after the index was built.
+     *
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return <i>tile file</i> if the tile exists, {@link TileServer#NO_DIRECTORY_TILE} if it does
+     * not exist or null if the tileset is not indexed and the storage must be checked
+     */
+    private File getIndexedDirectoryTileFile(String path) {
+        String[] parts = path.split("/");
+        if (parts.length != 6) {
+            return null;
+        }
+        DirectoryTileIndex index = this.directoryTileIndexes.get(parts[2]);
+        if (index == null || !index.isReady()) {
+            return null;
+        }
         try {
-            File directory = new File(this.rootPath + URL_STATIC_FILES);
-            if (directory.exists() && directory.isDirectory()) {
-                File[] files = HelperClass.getFilesFrom(directory, null);
-                for (File file : files) {
-                    StaticFileInfo info = new StaticFileInfo(file);
-                    result.add(info);
-                }
+            int z = Integer.parseInt(parts[3]);
+            int x = Integer.parseInt(parts[4]);
+            int dot = parts[5].indexOf('.');
+            if (dot <= 0) {
+                return NO_DIRECTORY_TILE;
             }
-        } catch (NullPointerException ex) {
-            ex.printStackTrace();
+            int y = Integer.parseInt(parts[5].substring(0, dot));
+            if (index.contains(z, x, y, parts[5].substring(dot))) {
+                return new File(this.getRootDirectoryPath() + path);
+            }
+            // files added to an existing {z}/{x} directory are not reported by the tileset watcher
+            if (index.isColumnModified(z, x)) {
+                this.scheduleDirectoryTileIndex(new File(this.rootPath + URL_TILES, parts[2]));
+                return null;
+            }
+            return NO_DIRECTORY_TILE;
+        } catch (NumberFormatException ex) {
+            return NO_DIRECTORY_TILE;
         }
+    }
 
-        return result;
+    /**
+     * Gets the name used for storing tiles from a MBTiles tileset in {@link TileCache}.
+     *
+     * @param file MBTiles file
+     * @return tileset name for the cache, e.g. <i>mbtiles/basemap.mbtiles</i>
+     */
+    private String getCacheNameForMBTilesTileset(File file) {
+        return URL_MBTILES.substring(1) + "/" + file.getName();
     }
 
     /**
-     * Gets the information for all available directories with tilesets, served by the server.
-     * Tiles are located in {@link TileServer#URL_TILES}.
+     * Gets the key used for storing a tile from a Directory Tileset in {@link TileCache}.
      *
-     * @return list of tileset info
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return cache key or null if the path does not point to a map tile
      */
-    private List<TilesetInfo> getInfoForAllDirectoryTilesets() {
-        List<TilesetInfo> result = new ArrayList<>();
+    private String getCacheKeyForDirectoryTile(String path) {
+        String[] parts = path.split("/");
+        if (parts.length != 6) {
+            return null;
+        }
+        try {
+            int z = Integer.parseInt(parts[3]);
+            int x = Integer.parseInt(parts[4]);
+            int dot = parts[5].indexOf('.');
+            int y = Integer.parseInt(dot < 0 ? parts[5] : parts[5].substring(0, dot));
+            return TileCache.keyFor(URL_TILES.substring(1) + "/" + parts[2], z, x, y);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
 
+    /**
+     * Records a tile from a Directory Tileset in {@link ServerMetrics}, if the tileset exists.
+     *
+     * @param path  tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @param bytes tile size
+     * @param blank true if the tile does not exist
+     */
+    private void recordDirectoryTile(String path, long bytes, boolean blank) {
+        String[] parts = path.split("/");
+        if (parts.length > 2 && this.tilesetCatalog.getDirectoryTileset(parts[2]) != null) {
+            this.metrics.recordTile(ServerFiles.TilesetType.DirectoryTiles, parts[2], bytes, blank);
+        }
+    }
+
+    /**
+     * Records a tile request from a MBTiles tileset in {@link TilePrefetcher} and prefetches the
+     * tiles around it if it exists. Tiles are prefetched in the schema of the request, so they
+     * are stored in {@link TileCache} under the keys of the following requests.
+     *
+     * @param tilesetInfo tileset info
+     * @param z_req       zoom level
+     * @param x_req       tile's x coordinate
+     * @param y_req       tile's y coordinate, negative if TMS schema is used
+     * @param found       true if the requested tile exists
+     */
+    private void prefetchMBTiles(TilesetInfo tilesetInfo, String z_req, String x_req, String y_req, boolean found) {
+        if (this.tilePrefetcher == null) {
+            return;
+        }
+        int z;
+        int x;
+        int y;
         try {
-            File directory = new File(this.rootPath + URL_TILES);
-            if (directory.exists() && directory.isDirectory()) {
-                File[] files = HelperClass.getDirectoriesFrom(directory);
-                for (File file : files) {
-                    result.add(new TilesetInfo(file));
-                }
+            z = Integer.parseInt(z_req);
+            x = Integer.parseInt(x_req);
+            y = Integer.parseInt(y_req);
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        if (z < 0 || z > TileGrid.MAX_ZOOM) {
+            return;
+        }
+        // the same rule as in MBTilesDatabase - rows, which are not positive, are TMS rows
+        boolean tms = y <= 0;
+        String tilesetName = tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class);
+        String cacheName = URL_MBTILES.substring(1) + "/" + tilesetName;
+        this.tilePrefetcher.onTileRequested(cacheName, z, x, toXyzRow(z, y));
+        if (!found) {
+            return;
+        }
+
+        this.tilePrefetcher.prefetch(cacheName, z, x, toXyzRow(z, y),
+                tilesetInfo.getParameter(TilesetInfo.MAX_ZOOM, Integer.class),
+                (tileZ, tileX, tileY) -> {
+                    if (!tms && tileY == 0) {
+                        // this row can be requested only as TMS row - see MBTilesDatabase
+                        return false;
+                    }
+                    String tileZReq = String.valueOf(tileZ);
+                    String tileXReq = String.valueOf(tileX);
+                    String tileYReq = String.valueOf(tms ? -TileGrid.flipY(tileZ, tileY) : tileY);
+                    return this.readMBTile(tilesetInfo, tileZReq, tileXReq, tileYReq) != null;
+                });
+    }
+
+    /**
+     * Reads a tile from a MBTiles tileset, unless it surely does not exist - see
+     * {@link TileServer#isMissingMBTile(TilesetInfo, String, String, String)}.
+     *
+     * @param tilesetInfo tileset info
+     * @param z_req       zoom level
+     * @param x_req       tile's x coordinate
+     * @param y_req       tile's y coordinate, negative if TMS schema is used
+     * @return tile data or null if the tile does not exist
+     */
+    private byte[] readMBTile(TilesetInfo tilesetInfo, String z_req, String x_req, String y_req) {
+        if (this.isMissingMBTile(tilesetInfo, z_req, x_req, y_req)) {
+            return null;
+        }
+        // deduplicated tilesets are read by the image id, resolved with the same database
+        return this.getTileFromMBTilesFile(tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class), z_req, x_req, y_req);
+    }
+
+    /**
+     * Creates a tile above the highest zoom level of a MBTiles tileset from its nearest ancestor
+     * tile - see {@link TileOverzoom}. Created tiles are stored in {@link TileCache}.
+     *
+     * @param tilesetInfo tileset info
+     * @param z_req       zoom level
+     * @param x_req       tile's x coordinate
+     * @param y_req       tile's y coordinate, negative if TMS schema is used
+     * @return tile data or null if the tile is not above the highest zoom level or no ancestor
+     * tile exists
+     */
+    private byte[] getOverzoomedMBTile(TilesetInfo tilesetInfo, String z_req, String x_req, String y_req) {
+        int z;
+        int x;
+        int y;
+        try {
+            z = Integer.parseInt(z_req);
+            x = Integer.parseInt(x_req);
+            y = Integer.parseInt(y_req);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        int maxZoom = tilesetInfo.getParameter(TilesetInfo.MAX_ZOOM, Integer.class);
+        if (maxZoom < 0 || z <= maxZoom || z > TileGrid.MAX_ZOOM) {
+            return null;
+        }
+        y = toXyzRow(z, y);
+        if (!TileGrid.isValid(z, x, y)) {
+            return null;
+        }
+
+        String tilesetName = tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class);
+        String cacheKey = TileCache.keyFor(URL_MBTILES.substring(1) + "/" + tilesetName, z, x, y);
+        byte[] data = this.tileCache.get(cacheKey);
+        if (data != null) {
+            return data;
+        }
+
+        // ancestors above the highest zoom level are missing, the nearest one below it is used
+        boolean vector = "pbf".equals(tilesetInfo.getParameter(TilesetInfo.FORMAT, String.class));
+        for (int parentZ = maxZoom; parentZ >= Math.max(0, z - TileOverzoom.MAX_OVERZOOM_LEVELS); parentZ--) {
+            int dz = z - parentZ;
+            int parentX = x >> dz;
+            int parentY = y >> dz;
+            // requested as TMS row, so row 0 is not mistaken for a TMS row
+            byte[] parent = this.readMBTile(tilesetInfo, String.valueOf(parentZ), String.valueOf(parentX),
+                    String.valueOf(-TileGrid.flipY(parentZ, parentY)));
+            if (parent != null) {
+                data = TileOverzoom.createTile(parent, vector, dz, x - (parentX << dz), y - (parentY << dz));
+                this.tileCache.put(cacheKey, data);
+                return data;
             }
-        } catch (NullPointerException ex) {
-            ex.printStackTrace();
         }
+        return null;
+    }
 
-        return result;
+    /**
+     * Creates a tile above the highest zoom level of a Directory Tileset from its nearest
+     * ancestor tile file - see {@link TileOverzoom}. Created tiles are stored in {@link TileCache}.
+     *
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return tile data or null if the tile is not above the highest zoom level or no ancestor
+     * tile exists
+     */
+    private byte[] getOverzoomedDirectoryTile(String path) throws IOException {
+        String[] parts = path.split("/");
+        if (parts.length != 6) {
+            return null;
+        }
+        TilesetInfo tilesetInfo = this.tilesetCatalog.getDirectoryTileset(parts[2]);
+        if (tilesetInfo == null) {
+            return null;
+        }
+        int z;
+        int x;
+        int y;
+        int dot = parts[5].indexOf('.');
+        try {
+            z = Integer.parseInt(parts[3]);
+            x = Integer.parseInt(parts[4]);
+            y = Integer.parseInt(dot < 0 ? parts[5] : parts[5].substring(0, dot));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        int maxZoom = tilesetInfo.getParameter(TilesetInfo.MAX_ZOOM, Integer.class);
+        if (maxZoom < 0 || z <= maxZoom || !TileGrid.isValid(z, x, y)) {
+            return null;
+        }
+
+        String extension = dot < 0 ? "" : parts[5].substring(dot);
+        boolean vector = extension.equalsIgnoreCase(".pbf") || extension.equalsIgnoreCase(".mvt");
+        for (int parentZ = maxZoom; parentZ >= Math.max(0, z - TileOverzoom.MAX_OVERZOOM_LEVELS); parentZ--) {
+            int dz = z - parentZ;
+            int parentX = x >> dz;
+            int parentY = y >> dz;
+            String parentPath = URL_TILES + "/" + parts[2] + "/" + parentZ + "/" + parentX + "/" + parentY + extension;
+            File parentFile = this.getIndexedDirectoryTileFile(parentPath);
+            if (parentFile == null) {
+                parentFile = this.getDirectoryTileFile(parentPath);
+            }
+            if (parentFile != null && parentFile != NO_DIRECTORY_TILE) {
+                byte[] data = TileOverzoom.createTile(Files.readAllBytes(parentFile.toPath()), vector,
+                        dz, x - (parentX << dz), y - (parentY << dz));
+                this.tileCache.put(TileCache.keyFor(URL_TILES.substring(1) + "/" + parts[2], z, x, y), data);
+                return data;
+            }
+        }
+        return null;
     }
 
     /**
-     * Returns a map tile from the specified path - use for Directory Tilesets.
+     * Records a tile request from a Directory Tileset in {@link TilePrefetcher} and prefetches the
+     * tiles around it if it exists. Tile files are served directly from the storage, so they are
+     * only read into the OS page cache.
      *
-     * @param path File path, relative to the server's root directory
-     * @return Image
+     * @param path  tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @param found true if the requested tile exists
      */
-    private byte[] returnTile(String path) {
-        byte[] data = null;
+    private void prefetchDirectoryTiles(String path, boolean found) {
+        if (this.tilePrefetcher == null) {
+            return;
+        }
+        String[] parts = path.split("/");
+        if (parts.length != 6) {
+            return;
+        }
+        int z;
+        int x;
+        int y;
+        int dot = parts[5].indexOf('.');
         try {
-            File file = HelperClass.getFileFromPath(this.getRootDirectoryPath() + path);
-            if (file != null && file.exists() && !file.isDirectory()) {
-                data = Files.readAllBytes(file.toPath());
+            z = Integer.parseInt(parts[3]);
+            x = Integer.parseInt(parts[4]);
+            y = Integer.parseInt(dot < 0 ? parts[5] : parts[5].substring(0, dot));
+        } catch (NumberFormatException ex) {
+            return;
+        }
+        String cacheName = URL_TILES.substring(1) + "/" + parts[2];
+        this.tilePrefetcher.onTileRequested(cacheName, z, x, y);
+        TilesetInfo tilesetInfo = this.tilesetCatalog.getDirectoryTileset(parts[2]);
+        if (!found || tilesetInfo == null) {
+            return;
+        }
+
+        String directory = URL_TILES + "/" + parts[2] + "/";
+        String extension = dot < 0 ? "" : parts[5].substring(dot);
+        this.tilePrefetcher.prefetch(cacheName, z, x, y, tilesetInfo.getParameter(TilesetInfo.MAX_ZOOM, Integer.class),
+                (tileZ, tileX, tileY) -> this.readDirectoryTile(directory + tileZ + "/" + tileX + "/" + tileY + extension));
+    }
+
+    /**
+     * Reads a tile file from a Directory Tileset, so it is in the OS page cache when it is
+     * requested. Called on the prefetch thread only.
+     *
+     * @param path tile path - <i>/tiles/{tileset}/{z}/{x}/{y}.png</i>
+     * @return true if the tile exists
+     */
+    private boolean readDirectoryTile(String path) {
+        File tileFile = this.findDirectoryTileFile(path);
+        if (tileFile == null) {
+            return false;
+        }
+        try (FileInputStream stream = new FileInputStream(tileFile)) {
+            while (stream.read(this.prefetchBuffer) != -1) {
+                // the data is not needed
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Gets a short summary of the server metrics, shown in the app.
+     *
+     * @return summary text
+     */
+    String getMetricsSummary() {
+        if (this.connectionMonitor == null) {
+            // the server is not started
+            return this.metrics.getSummary();
+        }
+        String summary = String.format(Locale.getDefault(), "%s%nTile cache hits: %.1f%%%nConnections: %d open, %.2f/s, %.1f requests each",
+                this.metrics.getSummary(),
+                this.tileCache.getHitRatio() * 100,
+                this.connectionMonitor.getOpenConnections(),
+                this.connectionMonitor.getAcceptRate(),
+                this.connectionMonitor.getAcceptedConnections() > 0
+                        ? this.connectionMonitor.getRequests() / (double) this.connectionMonitor.getAcceptedConnections()
+                        : 0);
+        if (this.tilePrefetcher != null) {
+            summary += String.format(Locale.getDefault(), "%nPrefetched tiles: %d, %.1f%% used",
+                    this.tilePrefetcher.getPrefetchedCount(),
+                    this.tilePrefetcher.getHitRatio() * 100);
         }
-        return returnTile(data);
+        return summary;
+    }
+
+    /**
+     * Writes the metrics of the tile cache, the worker threads and the connections in Prometheus
+     * text format - see {@link ServerMetrics#writePrometheus(StringBuilder)}.
+     *
+     * @param out builder for the metrics text
+     */
+    private void writeServerMetrics(StringBuilder out) {
+        ServerMetrics.writeHeader(out, "uptime_seconds", "gauge", "Time since the server was started");
+        ServerMetrics.writeSample(out, "uptime_seconds", null, null, (System.currentTimeMillis() - this.startTime) / 1000);
+
+        ServerMetrics.writeHeader(out, "tile_cache_hits_total", "counter", "Number of tiles found in the tile cache");
+        ServerMetrics.writeSample(out, "tile_cache_hits_total", null, null, this.tileCache.getHitCount());
+        ServerMetrics.writeHeader(out, "tile_cache_misses_total", "counter", "Number of tiles not found in the tile cache");
+        ServerMetrics.writeSample(out, "tile_cache_misses_total", null, null, this.tileCache.getMissCount());
+        ServerMetrics.writeHeader(out, "tile_cache_size_bytes", "gauge", "Size of the tiles in the tile cache");
+        ServerMetrics.writeSample(out, "tile_cache_size_bytes", null, null, this.tileCache.getSizeInBytes());
+
+        ServerMetrics.writeHeader(out, "worker_active_threads", "gauge", "Number of worker threads executing requests");
+        ServerMetrics.writeSample(out, "worker_active_threads", null, null, this.workerPool.getActiveCount());
+        ServerMetrics.writeHeader(out, "worker_queued_requests", "gauge", "Number of requests waiting for a worker thread");
+        ServerMetrics.writeSample(out, "worker_queued_requests", null, null, this.workerPool.getQueueDepth());
+        ServerMetrics.writeHeader(out, "worker_rejected_requests_total", "counter", "Number of requests rejected because all workers were busy");
+        ServerMetrics.writeSample(out, "worker_rejected_requests_total", null, null, this.workerPool.getRejectedCount());
+
+        if (this.tilePrefetcher != null) {
+            ServerMetrics.writeHeader(out, "prefetched_tiles_total", "counter", "Number of tiles loaded before they were requested");
+            ServerMetrics.writeSample(out, "prefetched_tiles_total", null, null, this.tilePrefetcher.getPrefetchedCount());
+            ServerMetrics.writeHeader(out, "prefetch_hits_total", "counter", "Number of prefetched tiles, which were requested later");
+            ServerMetrics.writeSample(out, "prefetch_hits_total", null, null, this.tilePrefetcher.getHitCount());
+            ServerMetrics.writeHeader(out, "prefetch_skipped_total", "counter", "Number of requests, which were not prefetched because the server was busy or the battery was low");
+            ServerMetrics.writeSample(out, "prefetch_skipped_total", null, null, this.tilePrefetcher.getSkippedCount());
+        }
+
+        ServerMetrics.writeHeader(out, "connections_accepted_total", "counter", "Number of accepted connections");
+        ServerMetrics.writeSample(out, "connections_accepted_total", null, null, this.connectionMonitor.getAcceptedConnections());
+        ServerMetrics.writeHeader(out, "connections_open", "gauge", "Number of open connections");
+        ServerMetrics.writeSample(out, "connections_open", null, null, this.connectionMonitor.getOpenConnections());
+        ServerMetrics.writeHeader(out, "connections_idle_closed_total", "counter", "Number of connections closed because they were idle");
+        ServerMetrics.writeSample(out, "connections_idle_closed_total", null, null, this.connectionMonitor.getIdleClosedConnections());
+        ServerMetrics.writeHeader(out, "connections_accept_rate", "gauge", "Accepted connections per second in the last minute");
+        ServerMetrics.writeSample(out, "connections_accept_rate", null, null, this.connectionMonitor.getAcceptRate());
+
+        ServerMetrics.writeHeader(out, "connection_requests", "histogram", "Number of requests sent on closed connections");
+        long[] requestsPerConnection = this.connectionMonitor.getRequestsPerConnection();
+        long cumulative = 0;
+        for (int i = 0; i < requestsPerConnection.length; i++) {
+            cumulative += requestsPerConnection[i];
+            String bound = i < ConnectionMonitor.REQUESTS_PER_CONNECTION_BUCKETS.length
+                    ? String.valueOf(ConnectionMonitor.REQUESTS_PER_CONNECTION_BUCKETS[i])
+                    : "+Inf";
+            ServerMetrics.writeSample(out, "connection_requests_bucket", "le", bound, cumulative);
+        }
+        ServerMetrics.writeSample(out, "connection_requests_count", null, null, cumulative);
+    }
+
+    /**
+     * Creates a validator for a tile from a MBTiles tileset. Tiles change only when the whole
+     * file changes, so the validator is created from the file attributes and the tile coordinates
+     * or the image id for deduplicated tilesets. Image ids, which are content hashes (e.g. MD5),
+     * are used as they are - they stay valid even when the file is replaced with a newer version.
+     *
+     * @param tilesetInfo tileset info
+     * @param tileId      image id for deduplicated tilesets, can be null
+     * @param tile        tile coordinates
+     * @return ETag value
+     */
+    private String getEtagForMBTile(TilesetInfo tilesetInfo, String tileId, String tile) {
+        if (tileId != null && CONTENT_HASH_PATTERN.matcher(tileId).matches()) {
+            return HttpCacheHeaders.etagFor(tileId);
+        }
+        return HttpCacheHeaders.etagFor(tilesetInfo.getLastModified(), tilesetInfo.getFileSize(), tileId != null ? "id" + tileId : tile);
+    }
+
+    /**
+     * Gets the number of seconds clients can cache tiles from a tileset.
+     *
+     * @param tilesetInfo tileset info
+     * @return value from the tileset metadata or the default value from the app settings
+     */
+    private int getCacheMaxAgeFor(TilesetInfo tilesetInfo) {
+        Integer maxAge = tilesetInfo.getParameter(TilesetInfo.MAX_AGE, Integer.class);
+        return maxAge != null && maxAge >= 0 ? maxAge : this.cacheMaxAge;
     }
 
     /**
@@ -447,6 +1381,54 @@ class TileServer {
         return data;
     }
 
+    /**
+     * Removes stale data for changed tilesets. Called on the {@link android.os.FileObserver} thread.
+     */
+    private final TilesetCatalog.Listener tilesetCatalogListener = new TilesetCatalog.Listener() {
+        @Override
+        public void onMBTilesChanged(File file) {
+            if (!file.exists()) {
+                // modified files are handled by the info cache - see readMBTilesInfoFor()
+                mbTilesInfoCache.invalidate(file);
+                mbTilesDatabasePool.invalidate(file.getAbsolutePath());
+                tileCache.invalidate(getCacheNameForMBTilesTileset(file));
+                mbTilesFilters.remove(file.getName());
+                metrics.removeTileset(ServerFiles.TilesetType.MBTiles, file.getName());
+            }
+        }
+
+        @Override
+        public void onDirectoryTilesetChanged(File directory) {
+            tileCache.invalidate(URL_TILES.substring(1) + "/" + directory.getName());
+            if (!directory.exists()) {
+                metrics.removeTileset(ServerFiles.TilesetType.DirectoryTiles, directory.getName());
+            }
+            if (useDirectoryTileIndex) {
+                scheduleDirectoryTileIndex(directory);
+            }
+        }
+    };
+
+    /**
+     * Wraps a request callback, so it is executed on a {@link TileWorkerPool} thread instead of
+     * the server thread. The response is completed from the worker thread - {@link AsyncServer}
+     * moves the socket writes back to the server thread. If all workers are busy and the queue
+     * is full the request is answered with <i>503 Service Unavailable</i>.
+     *
+     * @param callback request callback doing blocking work
+     * @return callback to register in {@link AsyncHttpServer}
+     */
+    private HttpServerRequestCallback onWorkerThread(HttpServerRequestCallback callback) {
+        return (request, response) -> {
+            boolean queued = this.workerPool.execute(() -> callback.onRequest(request, response));
+            if (!queued) {
+                response.code(503);
+                response.getHeaders().set("Retry-After", "1");
+                response.send("Server is busy, try again later");
+            }
+        };
+    }
+
     /**
      * @see <a href="http://192.168.100.7:1886/">Go to server's home page</a>
      */
@@ -559,20 +1541,60 @@ class TileServer {
         try {
             if (reqparams.length != 6) {
                 // send a list of available MBTiles tilesets
+                long catalogVersion = this.tilesetCatalog.getVersion();
                 List<TilesetInfo> tilesets = getInfoForAllMBTilesTilesets();
-                responseData = ServerFiles.getAvailableMBTilesPageHtmlFor(tilesets);
+                responseData = ServerFiles.getAvailableMBTilesPageHtmlFor(tilesets, catalogVersion);
             } else {
                 String tilesetName = reqparams[2];
                 String z_req = reqparams[3];
                 String x_req = reqparams[4];
                 String y_req = reqparams[5];
 
-                responseDataArray = returnTile(getTileFromMBTilesFile(tilesetName, z_req, x_req, y_req));
-
-                // read and set content type and encoding for this tileset
+                // read content type and encoding for this tileset - this also
+                // checks if the file was modified since the last request
                 TilesetInfo tilesetInfo = getMBTilesInfoFor(tilesetName);
+
+                // tiles outside of the tileset are answered without a query
+                boolean missing = tilesetInfo != null && this.isMissingMBTile(tilesetInfo, z_req, x_req, y_req);
+
+                // deduplicated tilesets are queried by the image id, which is also used as a validator -
+                // the id and the image are read from the same database handle
+                boolean deduplicated = tilesetInfo != null && tilesetInfo.isDeduplicated();
+                try (MBTilesDatabasePool.Handle handle = deduplicated && !missing ? acquireMBTilesFile(tilesetName) : null) {
+                    String tileId = handle != null ? getTileIdFromMBTilesFile(handle.getDatabase(), z_req, x_req, y_req) : null;
+
+                    if (tilesetInfo != null) {
+                        long lastModified = tilesetInfo.getLastModified();
+                        String etag = getEtagForMBTile(tilesetInfo, tileId, z_req + "-" + x_req + "-" + y_req);
+                        int maxAge = getCacheMaxAgeFor(tilesetInfo);
+                        if (HttpCacheHeaders.isNotModified(request, etag, lastModified)) {
+                            HttpCacheHeaders.sendNotModified(response, etag, lastModified, maxAge);
+                            return;
+                        }
+                        HttpCacheHeaders.setHeaders(response, etag, lastModified, maxAge);
+                    }
+
+                    if (missing) {
+                        responseDataArray = null;
+                    } else if (deduplicated) {
+                        responseDataArray = tileId != null
+                                ? getTileFromMBTilesFile(new File(getPathToMBTilesTileset(tilesetName)), handle.getDatabase(), tileId)
+                                : null;
+                    } else {
+                        responseDataArray = getTileFromMBTilesFile(tilesetName, z_req, x_req, y_req);
+                    }
+                }
+                if (responseDataArray == null && this.useOverzoom && tilesetInfo != null) {
+                    // tiles above the highest zoom level are created from their ancestors
+                    responseDataArray = getOverzoomedMBTile(tilesetInfo, z_req, x_req, y_req);
+                }
+                responseDataArray = returnTile(responseDataArray);
+
                 contentType = tilesetInfo != null ? tilesetInfo.getContentType() : "image/png";
                 if (tilesetInfo != null) {
+                    this.prefetchMBTiles(tilesetInfo, z_req, x_req, y_req, responseDataArray != ServerFiles.NO_TILE_IMAGE);
+                    this.metrics.recordTile(ServerFiles.TilesetType.MBTiles, tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class),
+                            responseDataArray.length, responseDataArray == ServerFiles.NO_TILE_IMAGE);
                     String format = tilesetInfo.getParameter(TilesetInfo.FORMAT, String.class);
                     if (format != null && format.equals("pbf"))
                         response.getHeaders().set("Content-Encoding", "gzip");
@@ -605,8 +1627,9 @@ class TileServer {
 
         try {
             // send a list of available Directory tilesets
+            long catalogVersion = this.tilesetCatalog.getVersion();
             List<TilesetInfo> tilesets = getInfoForAllDirectoryTilesets();
-            responseData = ServerFiles.getAvailableDirectoryTilesPageHtmlFor(tilesets);
+            responseData = ServerFiles.getAvailableDirectoryTilesPageHtmlFor(tilesets, catalogVersion);
         } catch (Exception ex) {
             responseCode = 500;
             responseData = HelperClass.formatException(ex);
@@ -628,9 +1651,40 @@ class TileServer {
         int responseCode = 200;
         String responseData = "";
         byte[] responseDataArray = null;
+        String contentType = "image/png";
+        File tileFile = null;
 
         try {
-            responseDataArray = returnTile(request.getPath());
+            String path = request.getPath();
+            // tiles are streamed from the file to the socket, the validators
+            // are created from the file attributes
+            tileFile = findDirectoryTileFile(path);
+            if (tileFile != null) {
+                long lastModified = tileFile.lastModified();
+                String etag = HttpCacheHeaders.etagFor(tileFile);
+                if (HttpCacheHeaders.isNotModified(request, etag, lastModified)) {
+                    HttpCacheHeaders.sendNotModified(response, etag, lastModified, this.cacheMaxAge);
+                    return;
+                }
+                HttpCacheHeaders.setHeaders(response, etag, lastModified, this.cacheMaxAge);
+                this.recordDirectoryTile(path, tileFile.length(), false);
+                this.prefetchDirectoryTiles(path, true);
+            } else {
+                // tiles, which are not stored as files, can still be in the cache
+                String cacheKey = getCacheKeyForDirectoryTile(path);
+                responseDataArray = cacheKey != null ? this.tileCache.get(cacheKey) : null;
+                if (responseDataArray == null && this.useOverzoom) {
+                    // tiles above the highest zoom level are created from their ancestors
+                    responseDataArray = getOverzoomedDirectoryTile(path);
+                }
+                if (responseDataArray != null) {
+                    contentType = HelperClass.getContentTypeForFile(new File(path));
+                } else {
+                    responseDataArray = returnTile((byte[]) null);
+                }
+                this.recordDirectoryTile(path, responseDataArray.length, responseDataArray == ServerFiles.NO_TILE_IMAGE);
+                this.prefetchDirectoryTiles(path, false);
+            }
         } catch (Exception ex) {
             responseCode = 500;
             responseData = HelperClass.formatException(ex);
@@ -641,8 +1695,10 @@ class TileServer {
         if (responseCode == 500) {
             response.send(ServerFiles.getInternalServerErrorPage(responseData));
         } else {
-            if (responseDataArray != null) {
-                response.send("image/png", responseDataArray);
+            if (tileFile != null) {
+                response.sendFile(tileFile);
+            } else if (responseDataArray != null) {
+                response.send(contentType, responseDataArray);
             } else {
                 response.send(responseData);
             }
@@ -650,34 +1706,38 @@ class TileServer {
     };
 
     /**
-     * @see <a href="http://192.168.100.7:1886/availabletiles">Go to available Tilesets as JSON</a>
+     * Returns the TileJSON document for a MBTiles or a Directory Tileset. The document is created
+     * from the cached tileset info and changes only when the tileset is modified.
+     *
+     * @see <a href="http://192.168.100.7:1886/mbtiles/glavatar-kaleto-M5000-zoom1_17.json">Get TileJSON for a MBTiles Tileset</a>
+     * @see <a href="http://192.168.100.7:1886/tiles/default.json">Get TileJSON for a Directory Tileset</a>
      */
-    private final HttpServerRequestCallback getAvailableTilesetsAsJson = (request, response) -> {
+    private final HttpServerRequestCallback getTileJsonCallback = (request, response) -> {
+        String[] reqparams = request.getPath().split("/");
+        boolean mbtiles = URL_MBTILES.equals("/" + reqparams[1]);
+        String tilesetName = reqparams[2].substring(0, reqparams[2].length() - URL_TILEJSON.length());
+
         int responseCode = 200;
-        String responseData = "";
-        JSONArray result = new JSONArray();
+        String responseData;
 
         try {
-            // get all available directory tilesets
-            List<TilesetInfo> tilesets = getInfoForAllMBTilesTilesets();
-            for (int i = 0; i < tilesets.size(); i++) {
-                TilesetInfo info = tilesets.get(i);
-                JSONObject infoJson = info.toJson();
-                String url = ServerFiles.getUrlAddressFor(info, ServerFiles.TilesetType.MBTiles);
-                infoJson.put("url", url);
-                result.put(i, infoJson);
-            }
-
-            int tmp = result.length();
-            // get all available mbtiles tilesets
-            tilesets.clear();
-            tilesets = getInfoForAllDirectoryTilesets();
-            for (int i = 0; i < tilesets.size(); i++, tmp++) {
-                TilesetInfo info = tilesets.get(i);
-                JSONObject infoJson = info.toJson();
-                String url = ServerFiles.getUrlAddressFor(info, ServerFiles.TilesetType.DirectoryTiles);
-                infoJson.put("url", url);
-                result.put(tmp, infoJson);
+            TilesetInfo tilesetInfo = mbtiles
+                    ? getMBTilesInfoFor(tilesetName)
+                    : this.tilesetCatalog.getDirectoryTileset(tilesetName);
+            if (tilesetInfo == null) {
+                responseCode = 400;
+                responseData = "Tileset with name '" + tilesetName + "' is not available. Check the name of the tileset and try again.";
+            } else {
+                // the document contains the server address, so the port is part of the validator
+                long lastModified = tilesetInfo.getLastModified();
+                String etag = HttpCacheHeaders.etagFor(lastModified, tilesetInfo.getFileSize(), "tilejson-" + this.port);
+                if (HttpCacheHeaders.isNotModified(request, etag, lastModified)) {
+                    HttpCacheHeaders.sendNotModified(response, etag, lastModified, 0);
+                    return;
+                }
+                HttpCacheHeaders.setHeaders(response, etag, lastModified, 0);
+                responseData = ServerFiles.getTileJsonFor(tilesetInfo,
+                        mbtiles ? ServerFiles.TilesetType.MBTiles : ServerFiles.TilesetType.DirectoryTiles);
             }
         } catch (Exception ex) {
             responseCode = 500;
@@ -688,9 +1748,256 @@ class TileServer {
         response.code(responseCode);
         if (responseCode == 500) {
             response.send(ServerFiles.getInternalServerErrorPage(responseData));
+        } else if (responseCode == 400) {
+            response.send(ServerFiles.getBadRequestPage(responseData));
         } else {
-            response.send(result);
+            response.send("application/json; charset=utf-8", responseData);
+        }
+    };
+
+    /**
+     * Returns many tiles from a MBTiles Tileset in one response, so clients can download a whole
+     * map view with one request. Tiles are selected with one of:
+     * <ul>
+     *     <li><i>z</i>, <i>x</i> and <i>y</i> - tile ranges like <i>x=9320-9327&amp;y=6058-6063</i>,
+     *     all tiles in the range are read with a single query</li>
+     *     <li><i>tiles</i> - list of tiles like <i>tiles=14/9323/6061,14/9324/6061</i></li>
+     * </ul>
+     * The response is a sequence of frames, one for each existing tile - missing tiles are
+     * skipped. Each frame contains big-endian <i>int</i> values for <i>z</i>, <i>x</i>, <i>y</i>
+     * (XYZ schema) and the data length, followed by the tile data as it is stored in the
+     * tileset. The content type and encoding of the tiles are sent in <i>X-Tile-Content-Type</i>
+     * and <i>X-Tile-Content-Encoding</i> headers. Up to {@link TileServer#MAX_BATCH_TILES}
+     * tiles can be requested at once.
+     *
+     * @see <a href="http://192.168.100.7:1886/batch/mbtiles?tileset=glavatar-kaleto-M5000-zoom1_17.mbtiles&z=14&x=9320-9327&y=6058-6063">Get a range of MBTiles Tiles</a>
+     */
+    private final HttpServerRequestCallback getMBTilesBatchCallback = (request, response) -> {
+        Multimap parameters = request.getQuery();
+        String tilesetName = parameters.getString(PARAMETER_TILESET);
+        int[] range = null;
+        int[][] tiles = null;
+
+        String error = null;
+        try {
+            if (tilesetName == null) {
+                error = "'tileset' is required URL parameter but was not provided";
+            } else if (parameters.getString(PARAMETER_TILES) != null) {
+                tiles = parseTileList(parameters.getString(PARAMETER_TILES));
+            } else {
+                range = parseTileRange(parameters.getString(PARAMETER_Z), parameters.getString(PARAMETER_X), parameters.getString(PARAMETER_Y));
+            }
+        } catch (IllegalArgumentException ex) {
+            error = ex.getMessage();
+        }
+
+        TilesetInfo tilesetInfo = error == null ? getMBTilesInfoFor(tilesetName) : null;
+        if (error == null && tilesetInfo == null) {
+            error = "Tileset with name '" + tilesetName + "' is not available. Check the name of the tileset and try again.";
+        }
+        if (error != null) {
+            response.code(400);
+            response.send(ServerFiles.getBadRequestPage(error));
+            return;
+        }
+
+        response.code(200);
+        response.setContentType("application/octet-stream");
+        response.getHeaders().set("X-Tile-Content-Type", tilesetInfo.getContentType());
+        if ("pbf".equals(tilesetInfo.getParameter(TilesetInfo.FORMAT, String.class))) {
+            response.getHeaders().set("X-Tile-Content-Encoding", "gzip");
         }
+
+        ResponseOutputStream body = new ResponseOutputStream(response);
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            MBTilesDatabase.TileConsumer writer = (z, x, y, data) -> {
+                try {
+                    out.writeInt(z);
+                    out.writeInt(x);
+                    out.writeInt(y);
+                    out.writeInt(data.length);
+                    out.write(data);
+                } catch (IOException ex) {
+                    // the client stopped reading - the remaining tiles are not read
+                    throw new UncheckedIOException(ex);
+                }
+                this.metrics.recordTile(ServerFiles.TilesetType.MBTiles, tilesetInfo.getParameter(TilesetInfo.TILESET_NAME, String.class), data.length, false);
+            };
+
+            if (range != null) {
+                // ranges outside of the zoom levels of the tileset are answered without a query
+                if (tilesetInfo.containsZoom(range[0])) {
+                    getTilesFromMBTilesFile(tilesetName, range, writer);
+                }
+            } else {
+                for (int[] tile : tiles) {
+                    // the rows are in XYZ schema - passed as negative TMS rows, as row 0 is always TMS
+                    byte[] data = readMBTile(tilesetInfo, String.valueOf(tile[0]), String.valueOf(tile[1]),
+                            String.valueOf(-TileGrid.flipY(tile[0], tile[2])));
+                    if (data != null && data.length > 0) {
+                        writer.accept(tile[0], tile[1], tile[2], data);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "getMBTilesBatchCallback: unable to read the tiles", ex);
+        } finally {
+            // the response is already started - it is ended even if reading the tiles failed
+            body.close();
+        }
+    };
+
+    /**
+     * Reads a tile range for a batch request.
+     *
+     * @param z_req zoom level
+     * @param x_req x coordinates - <i>min_x-max_x</i> or a single value
+     * @param y_req y coordinates in XYZ schema - <i>min_y-max_y</i> or a single value
+     * @return tile range - <i>z, min_x, max_x, min_y, max_y</i>
+     * @throws IllegalArgumentException if the range is not valid or contains too many tiles
+     */
+    static int[] parseTileRange(String z_req, String x_req, String y_req) {
+        if (z_req == null || x_req == null || y_req == null) {
+            throw new IllegalArgumentException("'tiles' or 'z', 'x' and 'y' are required URL parameters but were not provided");
+        }
+        int z = parseTileCoordinate(z_req, 30);
+        int[] x = parseCoordinateRange(x_req, (1 << z) - 1);
+        int[] y = parseCoordinateRange(y_req, (1 << z) - 1);
+        if ((long) (x[1] - x[0] + 1) * (y[1] - y[0] + 1) > MAX_BATCH_TILES) {
+            throw new IllegalArgumentException("Up to " + MAX_BATCH_TILES + " tiles can be requested at once");
+        }
+        return new int[]{z, x[0], x[1], y[0], y[1]};
+    }
+
+    /**
+     * Reads a list of tiles for a batch request.
+     *
+     * @param tiles_req list of tiles - <i>z/x/y,z/x/y,...</i>, y in XYZ schema
+     * @return tiles - <i>z, x, y</i> for each tile
+     * @throws IllegalArgumentException if the list is not valid or contains too many tiles
+     */
+    static int[][] parseTileList(String tiles_req) {
+        String[] values = tiles_req.split(",");
+        if (values.length > MAX_BATCH_TILES) {
+            throw new IllegalArgumentException("Up to " + MAX_BATCH_TILES + " tiles can be requested at once");
+        }
+        int[][] tiles = new int[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            String[] coordinates = values[i].trim().split("/");
+            if (coordinates.length != 3) {
+                throw new IllegalArgumentException("'tiles' must be a list of 'z/x/y' values");
+            }
+            int z = parseTileCoordinate(coordinates[0], 30);
+            tiles[i] = new int[]{z,
+                    parseTileCoordinate(coordinates[1], (1 << z) - 1),
+                    parseTileCoordinate(coordinates[2], (1 << z) - 1)};
+        }
+        return tiles;
+    }
+
+    /**
+     * @param value    <i>min-max</i> or a single value
+     * @param maxValue the highest valid value
+     * @return min and max values
+     */
+    private static int[] parseCoordinateRange(String value, int maxValue) {
+        int separator = value.indexOf('-', 1);
+        if (separator < 0) {
+            int coordinate = parseTileCoordinate(value, maxValue);
+            return new int[]{coordinate, coordinate};
+        }
+        int min = parseTileCoordinate(value.substring(0, separator), maxValue);
+        int max = parseTileCoordinate(value.substring(separator + 1), maxValue);
+        if (min > max) {
+            throw new IllegalArgumentException("'" + value + "' is not a valid tile range");
+        }
+        return new int[]{min, max};
+    }
+
+    /**
+     * @param value    tile coordinate or zoom level
+     * @param maxValue the highest valid value
+     * @return parsed value
+     */
+    private static int parseTileCoordinate(String value, int maxValue) {
+        try {
+            int coordinate = Integer.parseInt(value.trim());
+            if (coordinate >= 0 && coordinate <= maxValue) {
+                return coordinate;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException("'" + value + "' is not a valid tile coordinate");
+    }
+
+    /**
+     * Tilesets are written one by one to the response, instead of building the whole JSON
+     * in memory. Use the query parameters from {@link TilesetFilter} to select only some of them.
+     *
+     * @see <a href="http://192.168.100.7:1886/availabletiles">Go to available Tilesets as JSON</a>
+     * @see <a href="http://192.168.100.7:1886/availabletilesets?type=mbtiles&format=pbf&minzoom=10&maxzoom=14">Get the vector MBTiles Tilesets for zoom levels 10 to 14</a>
+     */
+    private final HttpServerRequestCallback getAvailableTilesetsAsJson = (request, response) -> {
+        TilesetFilter filter;
+        try {
+            filter = TilesetFilter.fromQuery(request.getQuery());
+        } catch (IllegalArgumentException ex) {
+            response.code(400);
+            response.send(ServerFiles.getBadRequestPage(ex.getMessage()));
+            return;
+        }
+
+        // the list changes only with the catalog, clients always revalidate it
+        long catalogVersion = this.tilesetCatalog.getVersion();
+        String etag = HttpCacheHeaders.etagFor(this.startTime, catalogVersion, null);
+        if (HttpCacheHeaders.isNotModified(request, etag, 0)) {
+            HttpCacheHeaders.sendNotModified(response, etag, 0, 0);
+            return;
+        }
+
+        response.code(200);
+        response.setContentType("application/json; charset=utf-8");
+        HttpCacheHeaders.setHeaders(response, etag, 0, 0);
+
+        ResponseOutputStream body = new ResponseOutputStream(response);
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8))) {
+            writer.beginArray();
+            if (filter.accepts(ServerFiles.TilesetType.MBTiles)) {
+                for (TilesetInfo info : getInfoForAllMBTilesTilesets()) {
+                    if (filter.accepts(info, ServerFiles.TilesetType.MBTiles)) {
+                        info.writeJson(writer, ServerFiles.getUrlAddressFor(info, ServerFiles.TilesetType.MBTiles));
+                    }
+                }
+            }
+            if (filter.accepts(ServerFiles.TilesetType.DirectoryTiles)) {
+                for (TilesetInfo info : getInfoForAllDirectoryTilesets()) {
+                    if (filter.accepts(info, ServerFiles.TilesetType.DirectoryTiles)) {
+                        info.writeJson(writer, ServerFiles.getUrlAddressFor(info, ServerFiles.TilesetType.DirectoryTiles));
+                    }
+                }
+            }
+            writer.endArray();
+        } catch (IOException | RuntimeException ex) {
+            Log.e(TAG, "getAvailableTilesetsAsJson: unable to write the tilesets", ex);
+        } finally {
+            // the response is already started - it is ended even if writing the tilesets failed
+            body.close();
+        }
+    };
+
+    /**
+     * Returns the request metrics, tile cache, worker and connection statistics in Prometheus
+     * text format.
+     *
+     * @see <a href="http://192.168.100.7:1886/metrics">Get the server metrics</a>
+     */
+    private final HttpServerRequestCallback getMetricsCallback = (request, response) -> {
+        StringBuilder out = new StringBuilder(32 * 1024);
+        this.metrics.writePrometheus(out);
+        this.writeServerMetrics(out);
+        response.code(200);
+        response.send("text/plain; version=0.0.4; charset=utf-8", out.toString());
     };
 
     /**
@@ -707,8 +2014,9 @@ class TileServer {
         try {
             if (parameters.isEmpty()) {
                 // send a list of all static files
+                long catalogVersion = this.tilesetCatalog.getVersion();
                 List<StaticFileInfo> staticFiles = getInfoForAllStaticFiles();
-                responseData = ServerFiles.getAvailableStaticFilesPageHtmlFor(staticFiles);
+                responseData = ServerFiles.getAvailableStaticFilesPageHtmlFor(staticFiles, catalogVersion);
             } else {
                 String fileName = parameters.getString(PARAMETER_STATICFILE);
                 String pathToFile = this.getPathToStaticFile(fileName);
@@ -67,6 +67,10 @@ public class TileService extends Service {
      * Use this key to set the server root directory path as <i>String</i>
      */
     public static final String KEY_ROOT_PATH = "KEY_ROOT_PATH";
+    /**
+     * Use this key to get a summary of the server metrics as <i>String</i> from {@link TileService#ACTION_RUNNING}
+     */
+    public static final String KEY_METRICS_SUMMARY = "KEY_METRICS_SUMMARY";
 
     /**
      * NotificationChannel used by this Service
@@ -129,6 +133,15 @@ public class TileService extends Service {
         stopForeground(true);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        if (this.server != null) {
+            this.server.trimMemory(level);
+        }
+    }
+
     /**
      * Creates a notification channel for this service
      */
@@ -227,7 +240,11 @@ public class TileService extends Service {
         public void onReceive(Context context, Intent intent) {
             if (ACTION_PING.equals(intent.getAction())) {
                 LocalBroadcastManager manager = LocalBroadcastManager.getInstance(getApplicationContext());
-                manager.sendBroadcast(new Intent(ACTION_RUNNING));
+                Intent runningIntent = new Intent(ACTION_RUNNING);
+                if (server != null) {
+                    runningIntent.putExtra(KEY_METRICS_SUMMARY, server.getMetricsSummary());
+                }
+                manager.sendBroadcast(runningIntent);
             }
         }
     };
@@ -0,0 +1,95 @@
+package com.bojko108.mobiletileserver.server;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs blocking work (SQLite queries, file reads and directory listings) for
+ * {@link TileServer}, so the single {@link com.koushikdutta.async.AsyncServer} thread is free to
+ * accept and read other connections while tiles are loaded. The pool has a fixed number of threads
+ * and a bounded queue - when the queue is full new tasks are rejected and the request should be
+ * answered with <i>503 Service Unavailable</i>.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class TileWorkerPool {
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates a new worker pool.
+     *
+     * @param threads       number of worker threads
+     * @param queueCapacity maximum number of tasks waiting for a free worker
+     */
+    TileWorkerPool(int threads, int queueCapacity) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, "TileWorker-" + threadNumber.incrementAndGet()));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task for execution on a worker thread.
+     *
+     * @param task to execute
+     * @return false if the queue is full or the pool is stopped and the task was not queued
+     */
+    boolean execute(Runnable task) {
+        try {
+            this.executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            this.rejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * @return number of tasks waiting for a free worker
+     */
+    int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    /**
+     * @return number of tasks being executed at the moment
+     */
+    int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * @return number of tasks rejected because the queue was full
+     */
+    long getRejectedCount() {
+        return this.rejectedCount.get();
+    }
+
+    /**
+     * @return number of completed tasks
+     */
+    long getCompletedCount() {
+        return this.executor.getCompletedTaskCount();
+    }
+
+    /**
+     * Stops the pool - queued tasks are still executed, new ones are rejected.
+     */
+    void shutdown() {
+        this.executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "TileWorkerPool[threads=%d, active=%d, queued=%d, completed=%d, rejected=%d]",
+                this.executor.getPoolSize(), this.getActiveCount(), this.getQueueDepth(), this.getCompletedCount(), this.getRejectedCount());
+    }
+}
@@ -0,0 +1,122 @@
+package com.bojko108.mobiletileserver.server;
+
+import com.bojko108.mobiletileserver.server.tilesets.TilesetInfo;
+import com.koushikdutta.async.http.Multimap;
+
+/**
+ * This class selects tilesets from the catalog by the query parameters of a request, so clients
+ * can get only the tilesets they need from <i>/availabletilesets</i>. Supported parameters:
+ * <ul>
+ *     <li><i>type</i> - <i>mbtiles</i> or <i>tiles</i></li>
+ *     <li><i>format</i> - tileset format, e.g. <i>png</i> or <i>pbf</i></li>
+ *     <li><i>bbox</i> - <i>longitude_min,latitude_min,longitude_max,latitude_max</i> - only tilesets
+ *     intersecting this extent are selected</li>
+ *     <li><i>minzoom</i> and <i>maxzoom</i> - only tilesets with data in this zoom range are selected</li>
+ * </ul>
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class TilesetFilter {
+    private static final String PARAMETER_TYPE = "type";
+    private static final String PARAMETER_FORMAT = "format";
+    private static final String PARAMETER_BBOX = "bbox";
+    private static final String PARAMETER_MIN_ZOOM = "minzoom";
+    private static final String PARAMETER_MAX_ZOOM = "maxzoom";
+
+    private final ServerFiles.TilesetType type;
+    private final String format;
+    private final double[] bbox;
+    private final int minZoom;
+    private final int maxZoom;
+
+    private TilesetFilter(ServerFiles.TilesetType type, String format, double[] bbox, int minZoom, int maxZoom) {
+        this.type = type;
+        this.format = format;
+        this.bbox = bbox;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Creates a filter from the query parameters of a request.
+     *
+     * @param parameters request query parameters
+     * @return filter, which selects all tilesets if no parameters are set
+     * @throws IllegalArgumentException if a parameter value is not valid
+     */
+    static TilesetFilter fromQuery(Multimap parameters) {
+        ServerFiles.TilesetType type = null;
+        String typeValue = parameters.getString(PARAMETER_TYPE);
+        if (typeValue != null) {
+            switch (typeValue.toLowerCase()) {
+                case "mbtiles":
+                    type = ServerFiles.TilesetType.MBTiles;
+                    break;
+                case "tiles":
+                    type = ServerFiles.TilesetType.DirectoryTiles;
+                    break;
+                default:
+                    throw new IllegalArgumentException("'type' must be 'mbtiles' or 'tiles'");
+            }
+        }
+
+        double[] bbox = null;
+        String bboxValue = parameters.getString(PARAMETER_BBOX);
+        if (bboxValue != null) {
+            String[] values = bboxValue.split(",");
+            if (values.length != 4) {
+                throw new IllegalArgumentException("'bbox' must be 'longitude_min,latitude_min,longitude_max,latitude_max'");
+            }
+            bbox = new double[4];
+            for (int i = 0; i < 4; i++) {
+                bbox[i] = Double.parseDouble(values[i].trim());
+            }
+        }
+
+        String minZoom = parameters.getString(PARAMETER_MIN_ZOOM);
+        String maxZoom = parameters.getString(PARAMETER_MAX_ZOOM);
+        return new TilesetFilter(type,
+                parameters.getString(PARAMETER_FORMAT),
+                bbox,
+                minZoom != null ? Integer.parseInt(minZoom) : Integer.MIN_VALUE,
+                maxZoom != null ? Integer.parseInt(maxZoom) : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Checks if the filter selects tilesets of a type at all.
+     *
+     * @param type tileset type
+     * @return false if no tileset of this type is selected
+     */
+    boolean accepts(ServerFiles.TilesetType type) {
+        return this.type == null || this.type == type;
+    }
+
+    /**
+     * Checks if the filter selects a tileset.
+     *
+     * @param info tileset info
+     * @param type tileset type
+     * @return true if the tileset is selected
+     */
+    boolean accepts(TilesetInfo info, ServerFiles.TilesetType type) {
+        if (!this.accepts(type)) {
+            return false;
+        }
+        if (this.format != null && !this.format.equalsIgnoreCase(info.getParameter(TilesetInfo.FORMAT, String.class))) {
+            return false;
+        }
+        int tilesetMinZoom = info.getParameter(TilesetInfo.MIN_ZOOM, Integer.class);
+        int tilesetMaxZoom = info.getParameter(TilesetInfo.MAX_ZOOM, Integer.class);
+        if (tilesetMaxZoom < this.minZoom || tilesetMinZoom > this.maxZoom) {
+            return false;
+        }
+        if (this.bbox != null) {
+            double[] bounds = info.getBounds();
+            return bounds[0] <= this.bbox[2] && bounds[2] >= this.bbox[0]
+                    && bounds[1] <= this.bbox[3] && bounds[3] >= this.bbox[1];
+        }
+        return true;
+    }
+}
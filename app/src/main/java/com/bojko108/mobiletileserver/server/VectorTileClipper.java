@@ -0,0 +1,707 @@
+package com.bojko108.mobiletileserver.server;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class creates a vector tile at a higher zoom level from one of its ancestor tiles -
+ * used for overzooming vector tilesets. The geometries in the ancestor tile are scaled up, so
+ * the area of the requested tile fills the whole tile extent, and are clipped to that area and a
+ * small buffer around it. Features, which are outside of the area, and layers without features
+ * are removed. Everything else - feature ids, tags, keys and values - is copied unchanged.
+ * <p>
+ * Tiles are read and written in <a href="https://github.com/mapbox/vector-tile-spec/tree/master/2.1">Mapbox
+ * Vector Tile 2.1</a> format with a minimal protocol buffers reader and writer, so no objects are
+ * created for the features. Gzip compressed tiles are returned compressed.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+class VectorTileClipper {
+    private static final String TAG = VectorTileClipper.class.getName();
+    private static final int TILE_LAYERS = 3;
+    private static final int LAYER_FEATURES = 2;
+    private static final int LAYER_EXTENT = 5;
+    private static final int FEATURE_TYPE = 3;
+    private static final int FEATURE_GEOMETRY = 4;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_FIXED32 = 5;
+
+    private static final int GEOMETRY_POINT = 1;
+    private static final int GEOMETRY_LINESTRING = 2;
+    private static final int GEOMETRY_POLYGON = 3;
+
+    private static final int COMMAND_MOVE_TO = 1;
+    private static final int COMMAND_LINE_TO = 2;
+    private static final int COMMAND_CLOSE_PATH = 7;
+
+    private static final int DEFAULT_EXTENT = 4096;
+    /**
+     * Geometries are kept up to this part of the extent outside of the tile - enough for line
+     * joins and labels near the tile edges
+     */
+    private static final int BUFFER_DIVISOR = 16;
+
+    private VectorTileClipper() {
+    }
+
+    /**
+     * Creates a tile from a part of an ancestor tile.
+     *
+     * @param tile    ancestor tile, gzip compressed or not
+     * @param dz      number of zoom levels between the ancestor and the new tile
+     * @param offsetX x coordinate of the new tile inside the ancestor - from 0 to <i>2^dz - 1</i>
+     * @param offsetY y coordinate of the new tile inside the ancestor - from 0 to <i>2^dz - 1</i>
+     * @return new tile, compressed if the ancestor tile was compressed, or null if the ancestor
+     * tile is not a valid vector tile
+     */
+    static byte[] clip(byte[] tile, int dz, int offsetX, int offsetY) {
+        try {
+            boolean gzip = isGzip(tile);
+            byte[] data = gzip ? gunzip(tile) : tile;
+
+            ProtobufWriter result = new ProtobufWriter(data.length);
+            ProtobufReader reader = new ProtobufReader(data, 0, data.length);
+            while (reader.hasNext()) {
+                int start = reader.position;
+                int tag = reader.readTag();
+                if (tag >>> 3 == TILE_LAYERS && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                    int length = reader.readLength();
+                    ProtobufWriter layer = clipLayer(data, reader.position, reader.position + length, dz, offsetX, offsetY);
+                    reader.position += length;
+                    if (layer != null) {
+                        result.writeMessage(TILE_LAYERS, layer);
+                    }
+                } else {
+                    reader.skip(tag & 7);
+                    result.writeRaw(data, start, reader.position - start);
+                }
+            }
+
+            byte[] clipped = result.toByteArray();
+            return gzip ? gzip(clipped) : clipped;
+        } catch (IOException | RuntimeException ex) {
+            Log.e(TAG, "clip: unable to read the vector tile", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return clipped layer or null if no features are left
+     */
+    private static ProtobufWriter clipLayer(byte[] data, int start, int end, int dz, int offsetX, int offsetY) {
+        // the extent can be written after the features
+        int extent = DEFAULT_EXTENT;
+        ProtobufReader reader = new ProtobufReader(data, start, end);
+        while (reader.hasNext()) {
+            int tag = reader.readTag();
+            if (tag >>> 3 == LAYER_EXTENT && (tag & 7) == WIRE_VARINT) {
+                extent = (int) reader.readVarint();
+            } else {
+                reader.skip(tag & 7);
+            }
+        }
+        if (extent <= 0) {
+            return null;
+        }
+
+        ClipBox box = new ClipBox(extent, dz, offsetX, offsetY);
+        ProtobufWriter layer = new ProtobufWriter(end - start);
+        int features = 0;
+        reader = new ProtobufReader(data, start, end);
+        while (reader.hasNext()) {
+            int fieldStart = reader.position;
+            int tag = reader.readTag();
+            if (tag >>> 3 == LAYER_FEATURES && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                int length = reader.readLength();
+                ProtobufWriter feature = clipFeature(data, reader.position, reader.position + length, box);
+                reader.position += length;
+                if (feature != null) {
+                    layer.writeMessage(LAYER_FEATURES, feature);
+                    features++;
+                }
+            } else {
+                reader.skip(tag & 7);
+                layer.writeRaw(data, fieldStart, reader.position - fieldStart);
+            }
+        }
+        return features > 0 ? layer : null;
+    }
+
+    /**
+     * @return clipped feature or null if its geometry is outside of the tile
+     */
+    private static ProtobufWriter clipFeature(byte[] data, int start, int end, ClipBox box) {
+        ProtobufWriter feature = new ProtobufWriter(end - start);
+        int type = 0;
+        int geometryStart = -1;
+        int geometryEnd = -1;
+
+        ProtobufReader reader = new ProtobufReader(data, start, end);
+        while (reader.hasNext()) {
+            int fieldStart = reader.position;
+            int tag = reader.readTag();
+            if (tag >>> 3 == FEATURE_TYPE && (tag & 7) == WIRE_VARINT) {
+                type = (int) reader.readVarint();
+            } else if (tag >>> 3 == FEATURE_GEOMETRY && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+                int length = reader.readLength();
+                geometryStart = reader.position;
+                geometryEnd = reader.position + length;
+                reader.position += length;
+            } else {
+                // id, tags and unknown fields
+                reader.skip(tag & 7);
+                feature.writeRaw(data, fieldStart, reader.position - fieldStart);
+            }
+        }
+        if (geometryStart < 0) {
+            return null;
+        }
+
+        IntList geometry = clipGeometry(type, new ProtobufReader(data, geometryStart, geometryEnd), box);
+        if (geometry == null || geometry.size == 0) {
+            return null;
+        }
+        feature.writeTag(FEATURE_TYPE, WIRE_VARINT);
+        feature.writeVarint(type);
+        feature.writePacked(FEATURE_GEOMETRY, geometry);
+        return feature;
+    }
+
+    /**
+     * Decodes the geometry commands, scales and clips the geometry and encodes it again.
+     *
+     * @return geometry commands or null for unknown geometry types
+     */
+    private static IntList clipGeometry(int type, ProtobufReader reader, ClipBox box) {
+        GeometryEncoder encoder = new GeometryEncoder();
+        IntList part = new IntList();
+        IntList clipped = new IntList();
+        boolean exteriorKept = false;
+        // the first ring is an exterior ring - its winding order identifies the other exterior rings
+        long exteriorSign = 0;
+        int x = 0;
+        int y = 0;
+
+        while (reader.hasNext()) {
+            int command = (int) reader.readVarint();
+            int id = command & 7;
+            int count = command >>> 3;
+            if (id == COMMAND_MOVE_TO || id == COMMAND_LINE_TO) {
+                if (id == COMMAND_MOVE_TO && type != GEOMETRY_POINT && part.size > 0) {
+                    // a line without ClosePath
+                    if (type == GEOMETRY_LINESTRING) {
+                        box.clipLine(part, encoder);
+                    }
+                    part.clear();
+                }
+                for (int i = 0; i < count; i++) {
+                    x += zigZagDecode((int) reader.readVarint());
+                    y += zigZagDecode((int) reader.readVarint());
+                    int scaledX = box.scaleX(x);
+                    int scaledY = box.scaleY(y);
+                    if (type == GEOMETRY_POINT) {
+                        if (box.contains(scaledX, scaledY)) {
+                            encoder.addPoint(scaledX, scaledY);
+                        }
+                    } else {
+                        part.add(scaledX, scaledY);
+                    }
+                }
+            } else if (id == COMMAND_CLOSE_PATH) {
+                if (type == GEOMETRY_POLYGON && part.size > 0) {
+                    // interior rings follow their exterior ring and are kept only with it
+                    long sign = Long.signum(signedArea(part));
+                    if (exteriorSign == 0) {
+                        exteriorSign = sign;
+                    }
+                    boolean exterior = sign != 0 && sign == exteriorSign;
+                    if (exterior || exteriorKept) {
+                        box.clipRing(part, clipped);
+                        boolean kept = encoder.addRing(clipped);
+                        if (exterior) {
+                            exteriorKept = kept;
+                        }
+                    }
+                }
+                part.clear();
+            } else {
+                throw new IllegalArgumentException("Unknown geometry command: " + id);
+            }
+        }
+        if (type == GEOMETRY_LINESTRING && part.size > 0) {
+            box.clipLine(part, encoder);
+        }
+
+        switch (type) {
+            case GEOMETRY_POINT:
+                return encoder.encodePoints();
+            case GEOMETRY_LINESTRING:
+            case GEOMETRY_POLYGON:
+                return encoder.commands;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Calculates the doubled signed area of a ring - positive for exterior rings in vector tiles.
+     */
+    private static long signedArea(IntList ring) {
+        long area = 0;
+        int[] values = ring.values;
+        int size = ring.size;
+        for (int i = 0; i < size; i += 2) {
+            int j = (i + 2) % size;
+            area += (long) values[i] * values[j + 1] - (long) values[j] * values[i + 1];
+        }
+        return area;
+    }
+
+    private static int zigZagDecode(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int zigZagEncode(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static boolean isGzip(byte[] data) {
+        return data.length > 2 && (data[0] & 0xff) == 0x1f && (data[1] & 0xff) == 0x8b;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * The area of the new tile in the scaled coordinates of the ancestor tile, including the buffer.
+     */
+    private static class ClipBox {
+        private final int scale;
+        private final int shiftX;
+        private final int shiftY;
+        private final int min;
+        private final int max;
+
+        private ClipBox(int extent, int dz, int offsetX, int offsetY) {
+            this.scale = 1 << dz;
+            this.shiftX = offsetX * extent;
+            this.shiftY = offsetY * extent;
+            this.min = -extent / BUFFER_DIVISOR;
+            this.max = extent + extent / BUFFER_DIVISOR;
+        }
+
+        private int scaleX(int x) {
+            return x * this.scale - this.shiftX;
+        }
+
+        private int scaleY(int y) {
+            return y * this.scale - this.shiftY;
+        }
+
+        private boolean contains(int x, int y) {
+            return x >= this.min && x <= this.max && y >= this.min && y <= this.max;
+        }
+
+        /**
+         * Clips a line with the Liang-Barsky algorithm - parts of the line inside the box are
+         * added to the encoder as separate lines.
+         */
+        private void clipLine(IntList line, GeometryEncoder encoder) {
+            IntList current = new IntList();
+            int[] values = line.values;
+            for (int i = 0; i + 3 < line.size; i += 2) {
+                double x0 = values[i];
+                double y0 = values[i + 1];
+                double dx = values[i + 2] - x0;
+                double dy = values[i + 3] - y0;
+                double[] t = {0, 1};
+                if (!clipT(-dx, x0 - this.min, t) || !clipT(dx, this.max - x0, t)
+                        || !clipT(-dy, y0 - this.min, t) || !clipT(dy, this.max - y0, t)) {
+                    encoder.addLine(current);
+                    current.clear();
+                    continue;
+                }
+                int startX = (int) Math.round(x0 + t[0] * dx);
+                int startY = (int) Math.round(y0 + t[0] * dy);
+                int endX = (int) Math.round(x0 + t[1] * dx);
+                int endY = (int) Math.round(y0 + t[1] * dy);
+                if (current.size == 0 || !current.endsWith(startX, startY)) {
+                    encoder.addLine(current);
+                    current.clear();
+                    current.add(startX, startY);
+                }
+                if (!current.endsWith(endX, endY)) {
+                    current.add(endX, endY);
+                }
+                if (t[1] < 1) {
+                    // the line leaves the box
+                    encoder.addLine(current);
+                    current.clear();
+                }
+            }
+            encoder.addLine(current);
+        }
+
+        private static boolean clipT(double p, double q, double[] t) {
+            if (p == 0) {
+                return q >= 0;
+            }
+            double r = q / p;
+            if (p < 0) {
+                if (r > t[1]) {
+                    return false;
+                }
+                t[0] = Math.max(t[0], r);
+            } else {
+                if (r < t[0]) {
+                    return false;
+                }
+                t[1] = Math.min(t[1], r);
+            }
+            return true;
+        }
+
+        /**
+         * Clips a ring with the Sutherland-Hodgman algorithm, one box edge at a time.
+         *
+         * @param ring   ring points, without repeating the first point
+         * @param result receives the clipped ring
+         */
+        private void clipRing(IntList ring, IntList result) {
+            IntList input = ring.copy();
+            IntList output = new IntList();
+            for (int edge = 0; edge < 4 && input.size > 0; edge++) {
+                output.clear();
+                int[] values = input.values;
+                for (int i = 0; i < input.size; i += 2) {
+                    int j = (i + input.size - 2) % input.size;
+                    int x = values[i];
+                    int y = values[i + 1];
+                    int previousX = values[j];
+                    int previousY = values[j + 1];
+                    boolean inside = this.isInside(edge, x, y);
+                    if (inside != this.isInside(edge, previousX, previousY)) {
+                        this.addIntersection(edge, previousX, previousY, x, y, output);
+                    }
+                    if (inside) {
+                        output.add(x, y);
+                    }
+                }
+                IntList swap = input;
+                input = output;
+                output = swap;
+            }
+            result.clear();
+            result.addAll(input);
+        }
+
+        private boolean isInside(int edge, int x, int y) {
+            switch (edge) {
+                case 0:
+                    return x >= this.min;
+                case 1:
+                    return x <= this.max;
+                case 2:
+                    return y >= this.min;
+                default:
+                    return y <= this.max;
+            }
+        }
+
+        private void addIntersection(int edge, int x0, int y0, int x1, int y1, IntList output) {
+            double t;
+            if (edge < 2) {
+                int edgeX = edge == 0 ? this.min : this.max;
+                t = (edgeX - x0) / (double) (x1 - x0);
+                output.add(edgeX, (int) Math.round(y0 + t * (y1 - y0)));
+            } else {
+                int edgeY = edge == 2 ? this.min : this.max;
+                t = (edgeY - y0) / (double) (y1 - y0);
+                output.add((int) Math.round(x0 + t * (x1 - x0)), edgeY);
+            }
+        }
+    }
+
+    /**
+     * Encodes geometries to vector tile commands with coordinates relative to the previous point.
+     */
+    private static class GeometryEncoder {
+        private final IntList commands = new IntList();
+        private final IntList points = new IntList();
+        private int x;
+        private int y;
+
+        private void addPoint(int x, int y) {
+            this.points.add(x, y);
+        }
+
+        private void addLine(IntList line) {
+            IntList points = removeRepeatedPoints(line, false);
+            if (points.size < 4) {
+                return;
+            }
+            this.moveTo(points.values[0], points.values[1]);
+            this.lineTo(points, points.size);
+        }
+
+        /**
+         * @return false if the ring has no area and was not added
+         */
+        private boolean addRing(IntList ring) {
+            IntList points = removeRepeatedPoints(ring, true);
+            if (points.size < 6 || signedArea(points) == 0) {
+                return false;
+            }
+            this.moveTo(points.values[0], points.values[1]);
+            this.lineTo(points, points.size);
+            this.commands.add(command(COMMAND_CLOSE_PATH, 1));
+            return true;
+        }
+
+        /**
+         * LineTo must not repeat the previous point - clipping and rounding can create such points.
+         *
+         * @param closed true for rings, which must not repeat the first point at the end
+         */
+        private static IntList removeRepeatedPoints(IntList points, boolean closed) {
+            IntList result = new IntList();
+            for (int i = 0; i < points.size; i += 2) {
+                if (!result.endsWith(points.values[i], points.values[i + 1])) {
+                    result.add(points.values[i], points.values[i + 1]);
+                }
+            }
+            if (closed && result.size > 2 && result.endsWith(result.values[0], result.values[1])) {
+                result.size -= 2;
+            }
+            return result;
+        }
+
+        /**
+         * @return all points as one MoveTo command
+         */
+        private IntList encodePoints() {
+            if (this.points.size > 0) {
+                this.commands.add(command(COMMAND_MOVE_TO, this.points.size / 2));
+                for (int i = 0; i < this.points.size; i += 2) {
+                    this.addCoordinates(this.points.values[i], this.points.values[i + 1]);
+                }
+            }
+            return this.commands;
+        }
+
+        private void moveTo(int x, int y) {
+            this.commands.add(command(COMMAND_MOVE_TO, 1));
+            this.addCoordinates(x, y);
+        }
+
+        private void lineTo(IntList points, int size) {
+            this.commands.add(command(COMMAND_LINE_TO, size / 2 - 1));
+            for (int i = 2; i < size; i += 2) {
+                this.addCoordinates(points.values[i], points.values[i + 1]);
+            }
+        }
+
+        private void addCoordinates(int x, int y) {
+            this.commands.add(zigZagEncode(x - this.x));
+            this.commands.add(zigZagEncode(y - this.y));
+            this.x = x;
+            this.y = y;
+        }
+
+        private static int command(int id, int count) {
+            return (count << 3) | id;
+        }
+    }
+
+    /**
+     * Growable array of ints - coordinates are stored as <i>x, y</i> pairs.
+     */
+    private static class IntList {
+        private int[] values = new int[64];
+        private int size;
+
+        private void add(int value) {
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.values[this.size++] = value;
+        }
+
+        private void add(int x, int y) {
+            this.add(x);
+            this.add(y);
+        }
+
+        private void addAll(IntList other) {
+            for (int i = 0; i < other.size; i++) {
+                this.add(other.values[i]);
+            }
+        }
+
+        private boolean endsWith(int x, int y) {
+            return this.size >= 2 && this.values[this.size - 2] == x && this.values[this.size - 1] == y;
+        }
+
+        private IntList copy() {
+            IntList result = new IntList();
+            result.addAll(this);
+            return result;
+        }
+
+        private void clear() {
+            this.size = 0;
+        }
+    }
+
+    /**
+     * Reads protocol buffers fields from a part of a byte array.
+     */
+    private static class ProtobufReader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        private ProtobufReader(byte[] data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        private boolean hasNext() {
+            return this.position < this.end;
+        }
+
+        private int readTag() {
+            return (int) this.readVarint();
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (this.position >= this.end) {
+                    throw new IllegalArgumentException("Truncated varint");
+                }
+                byte b = this.data[this.position++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        private int readLength() {
+            int length = (int) this.readVarint();
+            if (length < 0 || length > this.end - this.position) {
+                throw new IllegalArgumentException("Invalid field length: " + length);
+            }
+            return length;
+        }
+
+        private void skip(int wireType) {
+            switch (wireType) {
+                case WIRE_VARINT:
+                    this.readVarint();
+                    break;
+                case WIRE_FIXED64:
+                    this.position += 8;
+                    break;
+                case WIRE_LENGTH_DELIMITED:
+                    int length = this.readLength();
+                    this.position += length;
+                    break;
+                case WIRE_FIXED32:
+                    this.position += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown wire type: " + wireType);
+            }
+            if (this.position > this.end) {
+                throw new IllegalArgumentException("Truncated field");
+            }
+        }
+    }
+
+    /**
+     * Writes protocol buffers fields to a growable byte array.
+     */
+    private static class ProtobufWriter {
+        private byte[] data;
+        private int size;
+
+        private ProtobufWriter(int capacity) {
+            this.data = new byte[Math.max(16, capacity)];
+        }
+
+        private void writeTag(int field, int wireType) {
+            this.writeVarint((field << 3) | wireType);
+        }
+
+        private void writeVarint(long value) {
+            this.ensureCapacity(10);
+            while ((value & ~0x7fL) != 0) {
+                this.data[this.size++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.data[this.size++] = (byte) value;
+        }
+
+        private void writeRaw(byte[] bytes, int offset, int length) {
+            this.ensureCapacity(length);
+            System.arraycopy(bytes, offset, this.data, this.size, length);
+            this.size += length;
+        }
+
+        private void writeMessage(int field, ProtobufWriter message) {
+            this.writeTag(field, WIRE_LENGTH_DELIMITED);
+            this.writeVarint(message.size);
+            this.writeRaw(message.data, 0, message.size);
+        }
+
+        private void writePacked(int field, IntList values) {
+            ProtobufWriter packed = new ProtobufWriter(values.size * 2);
+            for (int i = 0; i < values.size; i++) {
+                // commands and zigzag encoded parameters are unsigned
+                packed.writeVarint(values.values[i] & 0xffffffffL);
+            }
+            this.writeMessage(field, packed);
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+
+        private void ensureCapacity(int length) {
+            if (this.size + length > this.data.length) {
+                this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.size + length));
+            }
+        }
+    }
+}
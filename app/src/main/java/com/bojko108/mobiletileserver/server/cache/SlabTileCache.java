@@ -0,0 +1,216 @@
+package com.bojko108.mobiletileserver.server.cache;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * This class stores map tiles in a memory-mapped slab file, so cached tiles live in the OS page
+ * cache instead of the app's Java heap. It is used as a second level by {@link TileCache} - tiles
+ * evicted from the heap cache are moved here and are read from here before the storage is queried.
+ * <p>
+ * The slab is used as a ring buffer: tiles are appended one after another and when the end of
+ * the file is reached writing continues from the beginning, overwriting the oldest tiles. Only
+ * the index (tile key, offset and length) is kept on the heap. The contents of the slab file are
+ * not reused after a restart.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class SlabTileCache {
+    private static final String TAG = SlabTileCache.class.getName();
+
+    private final File file;
+    private final int capacity;
+    private final Map<String, Record> index = new HashMap<>();
+    /**
+     * All records in the order they were written - the oldest one is first
+     */
+    private final ArrayDeque<Record> records = new ArrayDeque<>();
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer slab;
+    private int writePosition;
+    private long hitCount;
+    private long missCount;
+
+    /**
+     * Creates a new slab cache. Call {@link SlabTileCache#open()} before using it.
+     *
+     * @param file        slab file - it is created if it does not exist
+     * @param sizeInBytes size of the slab file
+     */
+    public SlabTileCache(File file, int sizeInBytes) {
+        this.file = file;
+        this.capacity = Math.max(0, sizeInBytes);
+    }
+
+    /**
+     * Creates the slab file and maps it in memory.
+     *
+     * @return true if the slab is ready to use
+     */
+    public synchronized boolean open() {
+        if (this.capacity == 0) {
+            return false;
+        }
+        try {
+            File directory = this.file.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("unable to create directory: " + directory);
+            }
+            this.randomAccessFile = new RandomAccessFile(this.file, "rw");
+            this.randomAccessFile.setLength(this.capacity);
+            this.slab = this.randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+            return true;
+        } catch (IOException ex) {
+            Log.e(TAG, "open: unable to map slab file: " + this.file, ex);
+            this.close();
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the slab file is mapped
+     */
+    public synchronized boolean isOpen() {
+        return this.slab != null;
+    }
+
+    /**
+     * Gets a map tile from the slab.
+     *
+     * @param key created with {@link TileCache#keyFor(String, int, int, int)}
+     * @return copy of the tile data or null if the tile is not in the slab
+     */
+    public synchronized byte[] get(String key) {
+        Record record = this.slab != null ? this.index.get(key) : null;
+        if (record == null) {
+            this.missCount++;
+            return null;
+        }
+
+        byte[] data = new byte[record.length];
+        this.slab.position(record.offset);
+        this.slab.get(data);
+        this.hitCount++;
+        return data;
+    }
+
+    /**
+     * Stores a map tile in the slab, overwriting the oldest tiles if needed. Tiles larger than
+     * a quarter of the slab are not stored.
+     *
+     * @param key  created with {@link TileCache#keyFor(String, int, int, int)}
+     * @param data tile data
+     */
+    public synchronized void put(String key, byte[] data) {
+        if (this.slab == null || data == null || data.length == 0 || data.length > this.capacity / 4) {
+            return;
+        }
+
+        if (this.writePosition + data.length > this.capacity) {
+            // the tiles at the end of the slab are the oldest ones - drop them and start from the beginning
+            while (!this.records.isEmpty() && this.records.peekFirst().offset >= this.writePosition) {
+                this.drop(this.records.pollFirst());
+            }
+            this.writePosition = 0;
+        }
+
+        int end = this.writePosition + data.length;
+        while (!this.records.isEmpty()
+                && this.records.peekFirst().offset >= this.writePosition
+                && this.records.peekFirst().offset < end) {
+            this.drop(this.records.pollFirst());
+        }
+
+        this.slab.position(this.writePosition);
+        this.slab.put(data);
+
+        Record record = new Record(key, this.writePosition, data.length);
+        this.records.addLast(record);
+        this.index.put(key, record);
+        this.writePosition = end;
+    }
+
+    /**
+     * Removes all tiles of a tileset.
+     *
+     * @param tileset unique name of the tileset, as used in {@link TileCache#keyFor(String, int, int, int)}
+     */
+    public synchronized void invalidate(String tileset) {
+        String prefix = tileset + '/';
+        Iterator<Map.Entry<String, Record>> iterator = this.index.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getKey().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all tiles and unmaps the slab file.
+     */
+    public synchronized void close() {
+        this.index.clear();
+        this.records.clear();
+        this.slab = null;
+        this.writePosition = 0;
+        if (this.randomAccessFile != null) {
+            try {
+                this.randomAccessFile.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            this.randomAccessFile = null;
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return this.hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return this.missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.getDefault(), "SlabTileCache[tiles=%d, capacity=%d, hits=%d, misses=%d]",
+                this.index.size(), this.capacity, this.hitCount, this.missCount);
+    }
+
+    /**
+     * Removes an overwritten record from the index, unless the tile was stored again meanwhile.
+     *
+     * @param record overwritten record
+     */
+    private void drop(Record record) {
+        if (this.index.get(record.key) == record) {
+            this.index.remove(record.key);
+        }
+    }
+
+    /**
+     * Location of a tile in the slab.
+     */
+    private static class Record {
+        private final String key;
+        private final int offset;
+        private final int length;
+
+        private Record(String key, int offset, int length) {
+            this.key = key;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.bojko108.mobiletileserver.server.cache;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * This class keeps recently served map tiles in memory, so tiles requested again (map clients
+ * redraw the same viewport tiles over and over) are not read from the storage again. It is shared
+ * by all tilesets - MBTiles and Directory Tilesets. Tiles are stored by tileset and tile
+ * coordinates - use {@link TileCache#keyFor(String, int, int, int)} to create the key.
+ * <p>
+ * The cache is bounded by the total size of the stored tiles in bytes. When it is full the least
+ * recently used tiles are removed. If a {@link SlabTileCache} is set as a second level, removed
+ * tiles are moved there and tiles not found on the heap are looked up there before returning null.
+ * The second level can be attached later with {@link TileCache#setSecondLevel(SlabTileCache)},
+ * as opening it accesses the storage.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class TileCache {
+    private final LruCache<String, byte[]> tiles;
+    private final int maxSizeInBytes;
+    private volatile SlabTileCache secondLevel;
+    private volatile boolean closed;
+    /**
+     * Tiles removed on this thread are dropped instead of moved to the second level - see
+     * {@link TileCache#trimMemory(int)}
+     */
+    private volatile Thread trimmingThread;
+
+    /**
+     * Creates a new tile cache.
+     *
+     * @param maxSizeInBytes memory budget for stored tiles, use 0 to disable the cache
+     */
+    public TileCache(int maxSizeInBytes) {
+        this(maxSizeInBytes, null);
+    }
+
+    /**
+     * Creates a new tile cache with a second level outside the Java heap.
+     *
+     * @param maxSizeInBytes memory budget for stored tiles, use 0 to disable the cache
+     * @param secondLevel    opened slab cache for tiles removed from the heap, can be null
+     */
+    public TileCache(int maxSizeInBytes, SlabTileCache secondLevel) {
+        this.maxSizeInBytes = Math.max(0, maxSizeInBytes);
+        this.secondLevel = secondLevel != null && secondLevel.isOpen() ? secondLevel : null;
+        this.tiles = new LruCache<String, byte[]>(Math.max(1, this.maxSizeInBytes)) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, byte[] oldValue, byte[] newValue) {
+                // tiles pushed out of the heap are moved to the slab
+                SlabTileCache secondLevel = TileCache.this.secondLevel;
+                if (evicted && secondLevel != null && !TileCache.this.closed
+                        && Thread.currentThread() != TileCache.this.trimmingThread) {
+                    secondLevel.put(key, oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Attaches a second level, opened after the cache was created. If the cache is already
+     * closed, the second level is closed too.
+     *
+     * @param secondLevel opened slab cache for tiles removed from the heap
+     */
+    public void setSecondLevel(SlabTileCache secondLevel) {
+        if (secondLevel == null || !secondLevel.isOpen()) {
+            return;
+        }
+        synchronized (this) {
+            if (!this.closed) {
+                this.secondLevel = secondLevel;
+                return;
+            }
+        }
+        secondLevel.close();
+    }
+
+    /**
+     * Creates the key for a map tile.
+     *
+     * @param tileset unique name of the tileset, e.g. <i>mbtiles/basemap.mbtiles</i>
+     * @param z       zoom level
+     * @param x       tile's x coordinate
+     * @param y       tile's y coordinate
+     * @return cache key
+     */
+    public static String keyFor(String tileset, int z, int x, int y) {
+        return tileset + '/' + z + '/' + x + '/' + y;
+    }
+
+    /**
+     * Creates the key for a map tile from a deduplicated tileset, where identical tiles share
+     * one id - this way all of them are stored in the cache only once.
+     *
+     * @param tileset unique name of the tileset, e.g. <i>mbtiles/basemap.mbtiles</i>
+     * @param tileId  id of the tile image in the tileset
+     * @return cache key
+     */
+    public static String keyForTileId(String tileset, String tileId) {
+        return tileset + "/id/" + tileId;
+    }
+
+    /**
+     * @return true if tiles are stored in this cache
+     */
+    public boolean isEnabled() {
+        return this.maxSizeInBytes > 0 || this.secondLevel != null;
+    }
+
+    /**
+     * Gets a map tile from the cache. Tiles found in the second level are moved back to the heap.
+     *
+     * @param key created with {@link TileCache#keyFor(String, int, int, int)}
+     * @return tile data or null if the tile is not in the cache
+     */
+    public byte[] get(String key) {
+        byte[] data = this.maxSizeInBytes > 0 ? this.tiles.get(key) : null;
+        SlabTileCache secondLevel = this.secondLevel;
+        if (data == null && secondLevel != null) {
+            data = secondLevel.get(key);
+            if (data != null && this.maxSizeInBytes > 0) {
+                this.tiles.put(key, data);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Stores a map tile in the cache. Empty tiles are not stored and tiles larger than
+     * the whole memory budget are stored only in the second level.
+     *
+     * @param key  created with {@link TileCache#keyFor(String, int, int, int)}
+     * @param data tile data
+     */
+    public void put(String key, byte[] data) {
+        if (data == null || data.length == 0) {
+            return;
+        }
+        SlabTileCache secondLevel = this.secondLevel;
+        if (data.length <= this.maxSizeInBytes) {
+            this.tiles.put(key, data);
+        } else if (secondLevel != null) {
+            secondLevel.put(key, data);
+        }
+    }
+
+    /**
+     * Removes all tiles of a tileset - use this when the tileset was modified.
+     *
+     * @param tileset unique name of the tileset, as used in {@link TileCache#keyFor(String, int, int, int)}
+     */
+    public void invalidate(String tileset) {
+        if (!this.isEnabled()) {
+            return;
+        }
+        String prefix = tileset + '/';
+        for (String key : this.tiles.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                this.tiles.remove(key);
+            }
+        }
+        SlabTileCache secondLevel = this.secondLevel;
+        if (secondLevel != null) {
+            secondLevel.invalidate(tileset);
+        }
+    }
+
+    /**
+     * Releases memory when the system is running low on memory. Called from
+     * {@link android.app.Service#onTrimMemory(int)}. Tiles removed from the heap are dropped -
+     * copying them to the second level would touch even more memory under pressure.
+     *
+     * @param level memory trim level - see {@link ComponentCallbacks2}
+     */
+    public synchronized void trimMemory(int level) {
+        this.trimmingThread = Thread.currentThread();
+        try {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                this.tiles.evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                    || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                this.tiles.trimToSize(this.tiles.size() / 2);
+            }
+        } finally {
+            this.trimmingThread = null;
+        }
+    }
+
+    /**
+     * Removes all tiles from the cache and closes the second level.
+     */
+    public void close() {
+        SlabTileCache secondLevel;
+        synchronized (this) {
+            this.closed = true;
+            secondLevel = this.secondLevel;
+        }
+        this.tiles.evictAll();
+        if (secondLevel != null) {
+            secondLevel.close();
+        }
+    }
+
+    /**
+     * @return number of requests for which the tile was found in the cache - on the heap or in the second level
+     */
+    public long getHitCount() {
+        SlabTileCache secondLevel = this.secondLevel;
+        return this.tiles.hitCount() + (secondLevel != null ? secondLevel.getHitCount() : 0);
+    }
+
+    /**
+     * @return number of requests for which the tile was not in the cache
+     */
+    public long getMissCount() {
+        SlabTileCache secondLevel = this.secondLevel;
+        return secondLevel != null ? secondLevel.getMissCount() : this.tiles.missCount();
+    }
+
+    /**
+     * @return part of requests served from the cache, from 0 to 1
+     */
+    public double getHitRatio() {
+        long hits = this.getHitCount();
+        long total = hits + this.getMissCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return total size of the stored tiles in bytes
+     */
+    public int getSizeInBytes() {
+        return this.tiles.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "TileCache[size=%d, max=%d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d, secondLevel=%s]",
+                this.getSizeInBytes(), this.maxSizeInBytes, this.getHitCount(), this.getMissCount(), this.getHitRatio(), this.tiles.evictionCount(),
+                this.secondLevel);
+    }
+}
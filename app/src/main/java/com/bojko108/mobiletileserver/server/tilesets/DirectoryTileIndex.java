@@ -0,0 +1,225 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps in memory the list of all map tiles stored in a Directory Tileset, so
+ * requests for missing tiles are answered without touching the storage and present tiles are
+ * opened directly, without checking if the file exists first. This matters on slow external
+ * SD cards, where each file system call is expensive.
+ * <p>
+ * The index is built once by scanning the <i>{tileset}/{z}/{x}/{y}.{ext}</i> directory tree -
+ * call {@link DirectoryTileIndex#build()} from a background thread. For each zoom level and file
+ * extension tiles are stored as a sorted array of <i>x &lt;&lt; 32 | y</i> values and are
+ * looked up with a binary search.
+ * <p>
+ * Tiles added to the directory after the index was built are not in it. The tileset directory
+ * is watched only for its own changes, so files added to an existing <i>{z}/{x}</i> directory
+ * must be detected with {@link DirectoryTileIndex#isColumnModified(int, int)} - it compares the
+ * modification time of that directory with the time the index was built and the index must be
+ * built again when it returns true.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class DirectoryTileIndex {
+    /**
+     * A <i>{z}/{x}</i> directory is checked on the storage at most once in this time
+     */
+    private static final long COLUMN_CHECK_INTERVAL_MS = 5000;
+    /**
+     * FAT file systems on SD cards store modification times with 2 seconds resolution
+     */
+    private static final long MODIFICATION_TIME_RESOLUTION_MS = 2000;
+
+    private final File directory;
+    private final int maxTiles;
+    /**
+     * Last check of each <i>{z}/{x}</i> directory by <i>z &lt;&lt; 32 | x</i>
+     */
+    private final Map<Long, Long> columnChecks = new ConcurrentHashMap<>();
+    /**
+     * Sorted tile keys by zoom level and file extension, e.g. <i>14.png</i>
+     */
+    private volatile Map<String, long[]> tiles;
+    private volatile int tileCount;
+    private volatile long buildTime;
+
+    /**
+     * Creates a new index. Call {@link DirectoryTileIndex#build()} before using it.
+     *
+     * @param directory Directory Tileset root directory
+     * @param maxTiles  maximum number of tiles to index - larger tilesets are not indexed
+     */
+    public DirectoryTileIndex(File directory, int maxTiles) {
+        this.directory = directory;
+        this.maxTiles = maxTiles;
+    }
+
+    /**
+     * Scans the tileset directory and builds the index. Files and directories, which names are
+     * not tile coordinates, are skipped.
+     *
+     * @return true if the index was built, false if the tileset has too many tiles
+     */
+    public boolean build() {
+        // files added while the tileset is scanned may be missed, so the time is taken first
+        long buildTime = System.currentTimeMillis() - MODIFICATION_TIME_RESOLUTION_MS;
+        Map<String, TileKeys> result = new HashMap<>();
+        int count = 0;
+
+        File[] zoomDirectories = this.directory.listFiles(File::isDirectory);
+        if (zoomDirectories != null) {
+            for (File zoomDirectory : zoomDirectories) {
+                if (!isNumber(zoomDirectory.getName())) {
+                    continue;
+                }
+                int z = Integer.parseInt(zoomDirectory.getName());
+                File[] xDirectories = zoomDirectory.listFiles(File::isDirectory);
+                if (xDirectories == null) {
+                    continue;
+                }
+                for (File xDirectory : xDirectories) {
+                    if (!isNumber(xDirectory.getName())) {
+                        continue;
+                    }
+                    long x = Long.parseLong(xDirectory.getName());
+                    // list() returns only names - no file attributes are read
+                    String[] names = xDirectory.list();
+                    if (names == null) {
+                        continue;
+                    }
+                    for (String name : names) {
+                        int dot = name.indexOf('.');
+                        if (dot <= 0 || !isNumber(name.substring(0, dot))) {
+                            continue;
+                        }
+                        long y = Long.parseLong(name.substring(0, dot));
+                        String key = z + name.substring(dot).toLowerCase(Locale.ROOT);
+                        TileKeys keys = result.get(key);
+                        if (keys == null) {
+                            keys = new TileKeys();
+                            result.put(key, keys);
+                        }
+                        keys.add(x << 32 | y);
+                        if (++count > this.maxTiles) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, long[]> tiles = new HashMap<>();
+        for (Map.Entry<String, TileKeys> entry : result.entrySet()) {
+            tiles.put(entry.getKey(), entry.getValue().toSortedArray());
+        }
+        this.tileCount = count;
+        this.buildTime = buildTime;
+        this.tiles = tiles;
+        this.columnChecks.clear();
+        return true;
+    }
+
+    /**
+     * @return true if the index was built and can be used
+     */
+    public boolean isReady() {
+        return this.tiles != null;
+    }
+
+    /**
+     * Checks if a map tile exists in the tileset. Call it only when {@link DirectoryTileIndex#isReady()}
+     * returns true.
+     *
+     * @param z         zoom level
+     * @param x         tile's x coordinate
+     * @param y         tile's y coordinate
+     * @param extension file extension with the leading dot, e.g. <i>.png</i>
+     * @return true if the tile file exists
+     */
+    public boolean contains(int z, int x, int y, String extension) {
+        Map<String, long[]> tiles = this.tiles;
+        if (tiles == null || x < 0 || y < 0) {
+            return false;
+        }
+        long[] keys = tiles.get(z + extension.toLowerCase(Locale.ROOT));
+        return keys != null && Arrays.binarySearch(keys, (long) x << 32 | y) >= 0;
+    }
+
+    /**
+     * Checks if files were added to a <i>{z}/{x}</i> directory after the index was built - call
+     * it for tiles, which are not in the index. The directory is checked on the storage at most
+     * once in {@link DirectoryTileIndex#COLUMN_CHECK_INTERVAL_MS}.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @return true if the directory was modified and the index must be built again
+     */
+    public boolean isColumnModified(int z, int x) {
+        if (z < 0 || x < 0) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Long lastCheck = this.columnChecks.get((long) z << 32 | x);
+        if (lastCheck != null && now - lastCheck < COLUMN_CHECK_INTERVAL_MS) {
+            return false;
+        }
+        this.columnChecks.put((long) z << 32 | x, now);
+        // lastModified() returns 0 if the directory does not exist
+        File column = new File(new File(this.directory, String.valueOf(z)), String.valueOf(x));
+        return column.lastModified() > this.buildTime;
+    }
+
+    /**
+     * @return number of indexed tiles
+     */
+    public int getTileCount() {
+        return this.tileCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.getDefault(), "DirectoryTileIndex[%s, tiles=%d, ready=%b]",
+                this.directory.getName(), this.tileCount, this.isReady());
+    }
+
+    private static boolean isNumber(String text) {
+        if (text.isEmpty() || text.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Growable array of tile keys, used while building the index.
+     */
+    private static class TileKeys {
+        private long[] keys = new long[64];
+        private int size;
+
+        private void add(long key) {
+            if (this.size == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            }
+            this.keys[this.size++] = key;
+        }
+
+        private long[] toSortedArray() {
+            long[] result = Arrays.copyOf(this.keys, this.size);
+            Arrays.sort(result);
+            return result;
+        }
+    }
+}
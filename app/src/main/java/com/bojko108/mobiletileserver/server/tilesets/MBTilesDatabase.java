@@ -1,83 +1,611 @@
 package com.bojko108.mobiletileserver.server.tilesets;
 
-import java.util.Locale;
-
-import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Process;
 
-import androidx.annotation.Nullable;
+import com.bojko108.mobiletileserver.utils.TileGrid;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Locale;
 
-public class MBTilesDatabase extends SQLiteOpenHelper {
-    private static final String GET_TILE_SQL_STRING = "SELECT \"tile_data\" FROM \"tiles\" where zoom_level = %d and tile_column=%d and tile_row=%d";
+/**
+ * This class reads map tiles and metadata from an MBTiles file. The file is opened read-only and
+ * tuned for serving tiles - it is never written, so no journal is used and no schema version is
+ * stored in it. The file is memory-mapped up to its size, so tiles are read from the OS page cache
+ * without a read system call for each database page, and a larger page cache keeps the index pages
+ * in memory.
+ * <p>
+ * A SQLite connection runs one query at a time, so the file is opened by a small pool of
+ * connections and tiles from the same file are read in parallel by the worker threads. A new
+ * connection is opened only when all open ones are busy, up to {@link MBTilesDatabase#MAX_CONNECTIONS}.
+ * The memory-mapped pages are shared by all connections. In 32-bit processes all open files share
+ * {@link MBTilesDatabase#MMAP_BUDGET_32_BIT} of address space and only the first connection of
+ * each file maps it.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class MBTilesDatabase implements AutoCloseable {
+    /**
+     * The SQL text never changes, so SQLite compiles it once per connection and keeps it in the
+     * connection's prepared statement cache - tile coordinates are bound as parameters
+     */
+    private static final String GET_TILE_SQL_STRING = "SELECT \"tile_data\" FROM \"tiles\" where zoom_level = ? and tile_column = ? and tile_row = ?";
+    private static final String GET_TILES_IN_RANGE_SQL_STRING = "SELECT \"tile_column\", \"tile_row\", \"tile_data\" FROM \"tiles\" where zoom_level = ? and tile_column between ? and ? and tile_row between ? and ?";
     private static final String GET_INFO_SQL_STRING = "SELECT * FROM \"metadata\"";
+    /**
+     * Deduplicated MBTiles files store each distinct tile once in the "images" table and map
+     * tile coordinates to it in the "map" table - "tiles" is only a view joining both
+     */
+    private static final String GET_DEDUPLICATED_SCHEMA_SQL_STRING = "SELECT count(*) FROM \"sqlite_master\" where type in ('table', 'view') and name in ('map', 'images')";
+    private static final String GET_TILE_ID_SQL_STRING = "SELECT \"tile_id\" FROM \"map\" where zoom_level = ? and tile_column = ? and tile_row = ?";
+    private static final String GET_TILE_DATA_SQL_STRING = "SELECT \"tile_data\" FROM \"images\" where tile_id = ?";
+    /**
+     * Only the coordinates are read, so SQLite scans the index on the tile coordinates and not
+     * the tile data
+     */
+    private static final String GET_TILE_COORDINATES_SQL_STRING = "SELECT zoom_level, tile_column, tile_row FROM \"%s\"";
+    private static final String GET_TILE_COUNT_SQL_STRING = "SELECT count(*) FROM (SELECT 1 FROM \"%s\" LIMIT %d)";
+    /**
+     * Open read-only - SQLite does not create a journal or take write locks - and without the
+     * <i>android_metadata</i> table, which the framework would otherwise read for the locale
+     */
+    private static final int OPEN_FLAGS = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+    /**
+     * Maximum number of connections to one file - the server has at most this number of worker
+     * threads reading tiles at the same time
+     */
+    private static final int MAX_CONNECTIONS = 4;
+    /**
+     * Page cache for each open file in KiB - enough for the index pages of a large basemap. It is
+     * split between the connections.
+     */
+    private static final int CACHE_SIZE_KIB = 8 * 1024;
+    /**
+     * 32-bit processes have little address space, so all open files together map at most this
+     * size - SQLite reads the rest with system calls
+     */
+    private static final long MMAP_BUDGET_32_BIT = 256L * 1024 * 1024;
+    /**
+     * Part of {@link MBTilesDatabase#MMAP_BUDGET_32_BIT} mapped by the open files - guarded by
+     * the class
+     */
+    private static long mmapBudgetUsed;
 
-    private TilesetInfo info;
+    /**
+     * Receives the tiles returned from {@link MBTilesDatabase#getTiles(int, int, int, int, int, TileConsumer)}.
+     */
+    public interface TileConsumer {
+        /**
+         * @param z    zoom level
+         * @param x    tile's x coordinate
+         * @param y    tile's y coordinate in XYZ schema
+         * @param data tile data
+         */
+        void accept(int z, int x, int y, byte[] data);
+    }
 
-    public MBTilesDatabase(Context context, String databaseName) {
-        super(context, databaseName, null, 1);
-        this.info = this.readInfo(databaseName);
+    /**
+     * Receives the tile coordinates returned from {@link MBTilesDatabase#getTileCoordinates(TileCoordinateConsumer)}.
+     */
+    public interface TileCoordinateConsumer {
+        /**
+         * @param z zoom level
+         * @param x tile's x coordinate
+         * @param y tile's y coordinate in XYZ schema
+         */
+        void accept(int z, int x, int y);
     }
 
-    @Override
-    public void onCreate(SQLiteDatabase db) {
+    private final String databasePath;
+    private final long mmapSize;
+    private boolean mmapReleased;
+    /**
+     * Open connections, which are not running a query - also guards the other connection fields
+     */
+    private final ArrayDeque<SQLiteDatabase> idleConnections = new ArrayDeque<>(MAX_CONNECTIONS);
+    private int openConnections;
+    private boolean closed;
+    private TilesetInfo info;
+    private boolean deduplicated;
+    /**
+     * Binds tile coordinates to the tile query - one object is reused by each thread
+     */
+    private final ThreadLocal<TileQueryFactory> tileQueryFactory = ThreadLocal.withInitial(TileQueryFactory::new);
+
+    /**
+     * Opens an MBTiles file and reads its metadata.
+     *
+     * @param databasePath full path to the MBTiles file
+     * @throws android.database.sqlite.SQLiteException if the file can not be opened
+     */
+    public MBTilesDatabase(String databasePath) {
+        this.databasePath = databasePath;
+        long fileSize = new File(databasePath).length();
+        this.mmapSize = Process.is64Bit() ? fileSize : reserveMmapSize(fileSize);
+        // the first connection is opened here, so a file which is not valid fails the constructor
+        try {
+            this.idleConnections.push(this.openConnection());
+        } catch (RuntimeException ex) {
+            this.releaseMmapSize();
+            throw ex;
+        }
+        this.openConnections = 1;
+
+        this.deduplicated = this.readDeduplicated();
+        this.info = this.readInfo(databasePath);
+        this.info.setDeduplicated(this.deduplicated);
     }
 
+    /**
+     * Closes the file. Connections, which are running queries on other threads, are closed when
+     * the queries are completed - the address space reserved for mapping the file is returned
+     * after the last connection is closed.
+     */
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    public void close() {
+        boolean allClosed;
+        synchronized (this.idleConnections) {
+            this.closed = true;
+            for (SQLiteDatabase connection : this.idleConnections) {
+                connection.close();
+            }
+            this.openConnections -= this.idleConnections.size();
+            this.idleConnections.clear();
+            allClosed = this.openConnections == 0;
+            // wakes up threads waiting for a connection
+            this.idleConnections.notifyAll();
+        }
+        if (allClosed) {
+            this.releaseMmapSize();
+        }
     }
 
     public TilesetInfo getInfo() {
         return this.info;
     }
 
+    /**
+     * @return true if the file uses the deduplicated "map"/"images" schema, where identical
+     * tiles share one "tile_id"
+     */
+    public boolean isDeduplicated() {
+        return this.deduplicated;
+    }
+
     public byte[] getTile(int z, int x, int y) {
+        if (this.deduplicated) {
+            String tileId = this.getTileId(z, x, y);
+            return tileId != null ? this.getTileData(tileId) : null;
+        }
+
+        byte[] result = null;
+
+        TileQueryFactory factory = this.tileQueryFactory.get();
+        factory.setCoordinates(z, x, toTmsRow(z, y));
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQueryWithFactory(factory, GET_TILE_SQL_STRING, null, null)) {
+                if (cur.moveToFirst()) {
+                    result = cur.getBlob(0);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets all tiles in a range of tile coordinates with a single query, instead of a query for
+     * each tile. Tiles, which do not exist, are skipped.
+     *
+     * @param z        zoom level
+     * @param minX     the lowest x coordinate
+     * @param maxX     the highest x coordinate
+     * @param minY     the lowest y coordinate in XYZ schema
+     * @param maxY     the highest y coordinate in XYZ schema
+     * @param consumer receives each tile, in no specific order
+     * @return number of returned tiles
+     */
+    public int getTiles(int z, int minX, int maxX, int minY, int maxY, TileConsumer consumer) {
+        int count = 0;
+
+        // the lowest XYZ row is the highest TMS row
+        int maxRow = (1 << z) - 1;
+        TileQueryFactory factory = this.tileQueryFactory.get();
+        factory.setRange(z, minX, maxX, maxRow - maxY, maxRow - minY);
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQueryWithFactory(factory, GET_TILES_IN_RANGE_SQL_STRING, null, null)) {
+                while (cur.moveToNext()) {
+                    consumer.accept(z, cur.getInt(0), maxRow - cur.getInt(1), cur.getBlob(2));
+                    count++;
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return count;
+    }
+
+    /**
+     * Counts the tiles in the file, stopping at a limit - counting all tiles in a large file
+     * takes as long as reading all their coordinates.
+     *
+     * @param limit the highest count to return
+     * @return number of tiles, but at most <i>limit</i>
+     */
+    public int getTileCount(int limit) {
+        int result = 0;
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            String sql = String.format(Locale.ROOT, GET_TILE_COUNT_SQL_STRING, this.getTilesTable(), limit);
+            try (Cursor cur = db.rawQuery(sql, null)) {
+                if (cur.moveToFirst()) {
+                    result = cur.getInt(0);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads the coordinates of all tiles in the file, without the tile data. Rows with
+     * coordinates outside of the tile grid are skipped.
+     *
+     * @param consumer receives the coordinates of each tile, in no specific order
+     * @return number of returned tiles
+     */
+    public int getTileCoordinates(TileCoordinateConsumer consumer) {
+        int count = 0;
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            String sql = String.format(Locale.ROOT, GET_TILE_COORDINATES_SQL_STRING, this.getTilesTable());
+            try (Cursor cur = db.rawQuery(sql, null)) {
+                while (cur.moveToNext()) {
+                    int z = cur.getInt(0);
+                    int x = cur.getInt(1);
+                    int y = z >= 0 && z <= TileGrid.MAX_ZOOM ? TileGrid.flipY(z, cur.getInt(2)) : -1;
+                    if (TileGrid.isValid(z, x, y)) {
+                        consumer.accept(z, x, y);
+                        count++;
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return count;
+    }
+
+    /**
+     * Gets the id of the image stored for a tile - use only for deduplicated files,
+     * see {@link MBTilesDatabase#isDeduplicated()}.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate, negative if TMS schema is used
+     * @return tile id or null if the tile does not exist
+     */
+    public String getTileId(int z, int x, int y) {
+        String result = null;
+
+        TileQueryFactory factory = this.tileQueryFactory.get();
+        factory.setCoordinates(z, x, toTmsRow(z, y));
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQueryWithFactory(factory, GET_TILE_ID_SQL_STRING, null, null)) {
+                if (cur.moveToFirst()) {
+                    result = cur.getString(0);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets an image from a deduplicated file, see {@link MBTilesDatabase#isDeduplicated()}.
+     *
+     * @param tileId returned from {@link MBTilesDatabase#getTileId(int, int, int)}
+     * @return tile data or null if the image does not exist
+     */
+    public byte[] getTileData(String tileId) {
         byte[] result = null;
-        SQLiteDatabase db = this.getReadableDatabase();
 
-        // MBTiles by default use TMS for the tiles. Most mapping apps use slippy maps: XYZ schema.
-        // We need to handle both.
+        TileQueryFactory factory = this.tileQueryFactory.get();
+        factory.setTileId(tileId);
+
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQueryWithFactory(factory, GET_TILE_DATA_SQL_STRING, null, null)) {
+                if (cur.moveToFirst()) {
+                    result = cur.getBlob(0);
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return name of the table with the tile coordinates - in deduplicated files "tiles" is a
+     * view, so the "map" table is read directly
+     */
+    private String getTilesTable() {
+        return this.deduplicated ? "map" : "tiles";
+    }
+
+    /**
+     * MBTiles by default use TMS for the tiles. Most mapping apps use slippy maps: XYZ schema.
+     * We need to handle both.
+     *
+     * @param z zoom level
+     * @param y tile's y coordinate, negative if TMS schema is used
+     * @return tile row in the MBTiles file
+     */
+    private static int toTmsRow(int z, int y) {
         if (y > 0) {
-            y = (int) Math.pow(2, z) - Math.abs(y) - 1;
+            return (1 << z) - y - 1;
         } else {
-            y = Math.abs(y);
+            return Math.abs(y);
+        }
+    }
+
+    /**
+     * Gets a connection, which is not running a query. If all open connections are busy, a new
+     * one is opened - when the maximum number is open, waits for a connection to be released.
+     *
+     * @return connection - pass it to {@link MBTilesDatabase#releaseConnection(SQLiteDatabase)}
+     * @throws IllegalStateException if the file is closed
+     */
+    private SQLiteDatabase acquireConnection() {
+        synchronized (this.idleConnections) {
+            while (true) {
+                if (this.closed) {
+                    throw new IllegalStateException("MBTiles file is closed: " + this.databasePath);
+                }
+                SQLiteDatabase connection = this.idleConnections.poll();
+                if (connection != null) {
+                    return connection;
+                }
+                if (this.openConnections < MAX_CONNECTIONS) {
+                    // opening takes a few milliseconds and happens only a few times for each file
+                    connection = this.openConnection();
+                    this.openConnections++;
+                    return connection;
+                }
+                try {
+                    this.idleConnections.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for a connection", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a connection to the idle connections, or closes it if the file was closed meanwhile.
+     * Closing the last connection of a closed file returns its reserved address space.
+     *
+     * @param connection returned from {@link MBTilesDatabase#acquireConnection()}, can be null
+     */
+    private void releaseConnection(SQLiteDatabase connection) {
+        if (connection == null) {
+            return;
+        }
+        boolean allClosed = false;
+        synchronized (this.idleConnections) {
+            if (this.closed) {
+                connection.close();
+                allClosed = --this.openConnections == 0;
+            } else {
+                // the last used connection is reused first - its page cache is warm
+                this.idleConnections.push(connection);
+                this.idleConnections.notify();
+            }
+        }
+        // the file stays mapped until its last connection is closed
+        if (allClosed) {
+            this.releaseMmapSize();
         }
+    }
+
+    /**
+     * Opens a new connection and sets the pragmas for serving tiles from the file - pragmas are
+     * set for each connection.
+     *
+     * @return open connection
+     */
+    private SQLiteDatabase openConnection() {
+        SQLiteDatabase connection = SQLiteDatabase.openDatabase(this.databasePath, null, OPEN_FLAGS);
+        // SQLite limits the value to its compile time maximum - each connection maps the file
+        // separately, so in 32-bit processes only the first one maps it
+        long mmapSize = Process.is64Bit() || this.openConnections == 0 ? this.mmapSize : 0;
+        execPragma(connection, "PRAGMA mmap_size = " + mmapSize);
+        execPragma(connection, "PRAGMA cache_size = -" + CACHE_SIZE_KIB / MAX_CONNECTIONS);
+        // fails any statement, which tries to change the file
+        execPragma(connection, "PRAGMA query_only = 1");
+        return connection;
+    }
+
+    /**
+     * Reserves address space for memory-mapping a file in a 32-bit process.
+     *
+     * @param fileSize size of the file
+     * @return size to map - the whole file or the rest of {@link MBTilesDatabase#MMAP_BUDGET_32_BIT}
+     */
+    private static synchronized long reserveMmapSize(long fileSize) {
+        long mmapSize = Math.min(fileSize, MMAP_BUDGET_32_BIT - mmapBudgetUsed);
+        mmapBudgetUsed += mmapSize;
+        return mmapSize;
+    }
 
-        String sql = String.format(Locale.getDefault(), GET_TILE_SQL_STRING, z, x, y);
+    /**
+     * Returns the address space reserved by this file. Calling this more than once has no effect.
+     */
+    private void releaseMmapSize() {
+        if (Process.is64Bit()) {
+            return;
+        }
+        synchronized (MBTilesDatabase.class) {
+            if (!this.mmapReleased) {
+                this.mmapReleased = true;
+                mmapBudgetUsed -= this.mmapSize;
+            }
+        }
+    }
 
-        try (Cursor cur = db.rawQuery(sql, null)) {
+    /**
+     * Some pragmas return the new value as a row, so they are executed as queries.
+     *
+     * @param connection connection to set the pragma for
+     * @param sql        pragma statement
+     */
+    private static void execPragma(SQLiteDatabase connection, String sql) {
+        try (Cursor cur = connection.rawQuery(sql, null)) {
             cur.moveToFirst();
-            if (!cur.isAfterLast()) {
-                result = cur.getBlob(0);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private boolean readDeduplicated() {
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQuery(GET_DEDUPLICATED_SCHEMA_SQL_STRING, null)) {
+                return cur.moveToFirst() && cur.getInt(0) == 2;
             }
         } catch (Exception ex) {
             ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
         }
 
-        return result;
+        return false;
     }
 
     private TilesetInfo readInfo(String fileName) {
-        SQLiteDatabase db = this.getReadableDatabase();
         String[] path = fileName.split("/");
 
         TilesetInfo info = new TilesetInfo();
         info.setParameter(TilesetInfo.TILESET_NAME, path[path.length - 1]);
 
-        try (Cursor cur = db.rawQuery(GET_INFO_SQL_STRING, null)) {
-            cur.moveToFirst();
-            while (!cur.isAfterLast()) {
-                String name = cur.getString(cur.getColumnIndex("name"));
-                String value = cur.getString(cur.getColumnIndex("value"));
-                info.setParameter(name, value);
-                cur.moveToNext();
+        SQLiteDatabase db = null;
+        try {
+            db = this.acquireConnection();
+            try (Cursor cur = db.rawQuery(GET_INFO_SQL_STRING, null)) {
+                cur.moveToFirst();
+                while (!cur.isAfterLast()) {
+                    String name = cur.getString(cur.getColumnIndex("name"));
+                    String value = cur.getString(cur.getColumnIndex("value"));
+                    info.setParameter(name, value);
+                    cur.moveToNext();
+                }
             }
         } catch (Exception ex) {
             ex.printStackTrace();
+        } finally {
+            this.releaseConnection(db);
         }
 
         return info;
     }
 
+    /**
+     * Creates cursors for the tile queries with tile coordinates bound as integer parameters
+     * (or the tile id for {@link MBTilesDatabase#GET_TILE_DATA_SQL_STRING}) - this way no SQL
+     * text or string arguments are created for each tile.
+     */
+    private static class TileQueryFactory implements SQLiteDatabase.CursorFactory {
+        private long z;
+        private long x;
+        private long y;
+        private String tileId;
+        /**
+         * The highest x coordinate and TMS row, set only for {@link MBTilesDatabase#GET_TILES_IN_RANGE_SQL_STRING}
+         */
+        private long maxX;
+        private long maxY;
+        private boolean range;
+
+        private void setCoordinates(int z, int x, int y) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.tileId = null;
+            this.range = false;
+        }
+
+        private void setRange(int z, int minX, int maxX, int minRow, int maxRow) {
+            this.setCoordinates(z, minX, minRow);
+            this.maxX = maxX;
+            this.maxY = maxRow;
+            this.range = true;
+        }
+
+        private void setTileId(String tileId) {
+            this.tileId = tileId;
+            this.range = false;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            if (this.tileId != null) {
+                query.bindString(1, this.tileId);
+            } else if (this.range) {
+                query.bindLong(1, this.z);
+                query.bindLong(2, this.x);
+                query.bindLong(3, this.maxX);
+                query.bindLong(4, this.y);
+                query.bindLong(5, this.maxY);
+            } else {
+                query.bindLong(1, this.z);
+                query.bindLong(2, this.x);
+                query.bindLong(3, this.y);
+            }
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    }
 }
@@ -0,0 +1,244 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import android.util.LruCache;
+
+import java.util.Locale;
+
+/**
+ * This class keeps a bounded number of {@link MBTilesDatabase} handles open, so requests for
+ * different tilesets (basemap, hillshade, overlays...) do not close and reopen SQLite files
+ * every time the requested tileset changes. Handles are stored by MBTiles file path and the
+ * least recently used one is evicted when the pool is full.
+ * <p>
+ * Each handle is reference counted - an evicted database is closed only after the last
+ * request using it calls {@link Handle#close()}. Files are opened outside of the pool lock, so a
+ * slow open of a large file does not block requests for other tilesets - requests for the same
+ * file wait until it is open. Use the pool like that:
+ * <pre>
+ * try (MBTilesDatabasePool.Handle handle = pool.acquire(path)) {
+ *     byte[] tile = handle.getDatabase().getTile(z, x, y);
+ * }
+ * </pre>
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class MBTilesDatabasePool {
+    private final LruCache<String, Entry> entries;
+
+    /**
+     * Creates a new pool of MBTiles databases.
+     *
+     * @param maxOpenDatabases maximum number of databases to keep open at the same time
+     */
+    public MBTilesDatabasePool(int maxOpenDatabases) {
+        this.entries = new LruCache<String, Entry>(Math.max(1, maxOpenDatabases)) {
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+                // called while holding the pool lock - see acquire(), invalidate() and closeAll()
+                oldValue.retire();
+            }
+        };
+    }
+
+    /**
+     * Gets an open database for the MBTiles file. The database is opened if it is not
+     * already in the pool. Call {@link Handle#close()} when you are done with it.
+     *
+     * @param databasePath full path to the MBTiles file
+     * @return handle to the open database
+     * @throws android.database.sqlite.SQLiteException if the file can not be opened
+     */
+    public Handle acquire(String databasePath) {
+        Entry entry;
+        boolean open = false;
+        synchronized (this) {
+            entry = this.entries.get(databasePath);
+            if (entry == null) {
+                // added before the file is opened, so other requests for it wait for this one
+                entry = new Entry();
+                this.entries.put(databasePath, entry);
+                open = true;
+            }
+            entry.refCount++;
+        }
+
+        try {
+            if (open) {
+                entry.setDatabase(this.open(databasePath, entry));
+            } else {
+                entry.awaitDatabase();
+            }
+        } catch (RuntimeException ex) {
+            this.release(entry);
+            throw ex;
+        }
+        return new Handle(entry);
+    }
+
+    /**
+     * Removes the database for the MBTiles file from the pool - use this when the file
+     * was changed or deleted. The database is closed as soon as it is not used anymore.
+     *
+     * @param databasePath full path to the MBTiles file
+     */
+    public synchronized void invalidate(String databasePath) {
+        this.entries.remove(databasePath);
+    }
+
+    /**
+     * Removes all databases from the pool. Databases still in use are closed when released.
+     */
+    public synchronized void closeAll() {
+        this.entries.evictAll();
+    }
+
+    /**
+     * @return number of requests served with an already open database
+     */
+    public synchronized int getHitCount() {
+        return this.entries.hitCount();
+    }
+
+    /**
+     * @return number of requests for which a database had to be opened
+     */
+    public synchronized int getMissCount() {
+        return this.entries.missCount();
+    }
+
+    /**
+     * @return number of databases removed from the pool to make room for others
+     */
+    public synchronized int getEvictionCount() {
+        return this.entries.evictionCount();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.getDefault(), "MBTilesDatabasePool[open=%d, max=%d, hits=%d, misses=%d, evictions=%d]",
+                this.entries.size(), this.entries.maxSize(), this.getHitCount(), this.getMissCount(), this.getEvictionCount());
+    }
+
+    /**
+     * Opens a database outside of the pool lock. If the file can not be opened, the entry is
+     * removed from the pool, so the next request tries again.
+     *
+     * @param databasePath full path to the MBTiles file
+     * @param entry        entry added to the pool for the file
+     * @return open database
+     */
+    private MBTilesDatabase open(String databasePath, Entry entry) {
+        try {
+            return new MBTilesDatabase(databasePath);
+        } catch (RuntimeException ex) {
+            synchronized (this) {
+                // the entry could be replaced meanwhile - snapshot() does not change the LRU order
+                if (this.entries.snapshot().get(databasePath) == entry) {
+                    this.entries.remove(databasePath);
+                }
+            }
+            entry.setFailure(ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Releases a handle, closing its database if it was removed from the pool meanwhile.
+     *
+     * @param entry to release
+     */
+    private synchronized void release(Entry entry) {
+        entry.refCount--;
+        if (entry.retired && entry.refCount == 0) {
+            entry.closeDatabase();
+        }
+    }
+
+    /**
+     * A database together with the number of requests currently using it. The database is set
+     * when the file is opened - until then other requests wait in {@link Entry#awaitDatabase()}.
+     */
+    private static class Entry {
+        private volatile MBTilesDatabase database;
+        private RuntimeException failure;
+        /**
+         * Guarded by the pool lock
+         */
+        private int refCount;
+        private boolean retired;
+
+        private synchronized void setDatabase(MBTilesDatabase database) {
+            this.database = database;
+            this.notifyAll();
+        }
+
+        private synchronized void setFailure(RuntimeException failure) {
+            this.failure = failure;
+            this.notifyAll();
+        }
+
+        /**
+         * Waits until the file is opened by another request.
+         *
+         * @throws RuntimeException the exception thrown when the file was opened
+         */
+        private synchronized void awaitDatabase() {
+            while (this.database == null && this.failure == null) {
+                try {
+                    this.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while opening an MBTiles file", ex);
+                }
+            }
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+
+        /**
+         * Marks the entry as removed from the pool and closes the database if it is not in use.
+         * An entry, which is still being opened, is always in use.
+         */
+        private void retire() {
+            this.retired = true;
+            if (this.refCount == 0) {
+                this.closeDatabase();
+            }
+        }
+
+        private void closeDatabase() {
+            MBTilesDatabase database = this.database;
+            if (database != null) {
+                database.close();
+            }
+        }
+    }
+
+    /**
+     * Gives access to a pooled database for the duration of a request.
+     */
+    public class Handle implements AutoCloseable {
+        private Entry entry;
+
+        private Handle(Entry entry) {
+            this.entry = entry;
+        }
+
+        public MBTilesDatabase getDatabase() {
+            return this.entry.database;
+        }
+
+        /**
+         * Returns the database back to the pool. Calling this more than once has no effect.
+         */
+        @Override
+        public void close() {
+            if (this.entry != null) {
+                release(this.entry);
+                this.entry = null;
+            }
+        }
+    }
+}
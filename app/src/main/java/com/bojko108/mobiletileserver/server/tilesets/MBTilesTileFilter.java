@@ -0,0 +1,186 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+
+/**
+ * This class keeps in memory a Bloom filter of all map tiles stored in a MBTiles file, so most
+ * requests for missing tiles - e.g. from a client zoomed or panned outside of the tileset
+ * coverage - are answered without a SQLite query. The filter answers <i>surely missing</i> or
+ * <i>maybe present</i> - about 1% of the missing tiles are still looked up in the file. Each tile
+ * takes {@link MBTilesTileFilter#BITS_PER_TILE} bits, so a file with a million tiles takes
+ * about 1.2 MB.
+ * <p>
+ * The filter is built once by reading the coordinates of all tiles - call
+ * {@link MBTilesTileFilter#build()} from a background thread. It is valid only for the file
+ * version it was built from, see {@link MBTilesTileFilter#isBuiltFrom(long, long)}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class MBTilesTileFilter {
+    private static final String TAG = MBTilesTileFilter.class.getName();
+    /**
+     * With 7 hash functions 10 bits per tile give about 1% false positives
+     */
+    private static final int BITS_PER_TILE = 10;
+    private static final int HASH_FUNCTIONS = 7;
+
+    private final File file;
+    private final int maxTiles;
+    private final long lastModified;
+    private final long fileSize;
+    private volatile long[] bits;
+    private long bitCount;
+    private volatile int tileCount;
+
+    /**
+     * Creates a new filter. Call {@link MBTilesTileFilter#build()} before using it.
+     *
+     * @param file     MBTiles file
+     * @param maxTiles maximum number of tiles to add to the filter - larger tilesets are not filtered
+     */
+    public MBTilesTileFilter(File file, int maxTiles) {
+        this.file = file;
+        this.maxTiles = maxTiles;
+        // the attributes are read the same way as by TilesetInfoCache, so they can be compared
+        // with the values in TilesetInfo
+        BasicFileAttributes attributes = readAttributes(file);
+        this.lastModified = attributes != null ? attributes.lastModifiedTime().toMillis() : -1;
+        this.fileSize = attributes != null ? attributes.size() : -1;
+    }
+
+    /**
+     * Opens the file and adds the coordinates of all tiles to the filter.
+     *
+     * @return true if the filter was built, false if the tileset has too many tiles or the
+     * file can not be read
+     */
+    public boolean build() {
+        try (MBTilesDatabase database = new MBTilesDatabase(this.file.getAbsolutePath())) {
+            int count = database.getTileCount(this.maxTiles + 1);
+            if (count > this.maxTiles) {
+                return false;
+            }
+
+            long bitCount = Math.max(64, (long) count * BITS_PER_TILE);
+            long[] bits = new long[(int) ((bitCount + 63) / 64)];
+            this.tileCount = database.getTileCoordinates((z, x, y) -> {
+                long hash = hash(z, x, y);
+                for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                    long bit = bitIndex(hash, i, bitCount);
+                    bits[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            });
+            this.bitCount = bitCount;
+            this.bits = bits;
+            return true;
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "build: unable to read the tiles from: " + this.file, ex);
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the filter was built and can be used
+     */
+    public boolean isReady() {
+        return this.bits != null;
+    }
+
+    /**
+     * Checks if the filter was built from the current version of a file.
+     *
+     * @param file MBTiles file
+     * @return false if the file was modified after the filter was created
+     */
+    public boolean isBuiltFrom(File file) {
+        BasicFileAttributes attributes = readAttributes(file);
+        return this.file.equals(file) && attributes != null
+                && this.isBuiltFrom(attributes.lastModifiedTime().toMillis(), attributes.size());
+    }
+
+    /**
+     * Checks if the filter was built from a version of the file - e.g. the one described by
+     * {@link TilesetInfo#getLastModified()} and {@link TilesetInfo#getFileSize()}.
+     *
+     * @param lastModified last modified time of the file
+     * @param size         size of the file
+     * @return false if the filter was built from another version of the file
+     */
+    public boolean isBuiltFrom(long lastModified, long size) {
+        return this.lastModified == lastModified && this.fileSize == size && size >= 0;
+    }
+
+    /**
+     * Checks if a map tile may exist in the tileset. Call it only when {@link MBTilesTileFilter#isReady()}
+     * returns true.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate in XYZ schema
+     * @return false if the tile surely does not exist
+     */
+    public boolean mightContain(int z, int x, int y) {
+        long[] bits = this.bits;
+        if (bits == null) {
+            return true;
+        }
+        long hash = hash(z, x, y);
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = bitIndex(hash, i, this.bitCount);
+            if ((bits[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of tiles in the filter
+     */
+    public int getTileCount() {
+        return this.tileCount;
+    }
+
+    @Override
+    public String toString() {
+        long[] bits = this.bits;
+        return String.format(Locale.getDefault(), "MBTilesTileFilter[%s, tiles=%d, size=%d KiB, ready=%b]",
+                this.file.getName(), this.tileCount, bits != null ? bits.length / 128 : 0, bits != null);
+    }
+
+    private static BasicFileAttributes readAttributes(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            // the file was deleted
+            return null;
+        }
+    }
+
+    /**
+     * Mixes the tile coordinates to 64 well distributed bits - the finalizer of SplitMix64.
+     */
+    private static long hash(int z, int x, int y) {
+        long hash = (long) z << 58 ^ (long) x << 29 ^ y;
+        hash = (hash ^ hash >>> 30) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ hash >>> 27) * 0x94d049bb133111ebL;
+        return hash ^ hash >>> 31;
+    }
+
+    /**
+     * Gets the bit for a hash function - the functions are combined from the two halves of the
+     * hash (Kirsch-Mitzenmacher), so the hash is calculated once.
+     */
+    private static long bitIndex(long hash, int function, long bitCount) {
+        long low = hash & 0xffffffffL;
+        long high = hash >>> 32;
+        return (low + function * high) % bitCount;
+    }
+}
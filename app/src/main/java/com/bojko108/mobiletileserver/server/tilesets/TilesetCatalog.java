@@ -0,0 +1,521 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.bojko108.mobiletileserver.utils.HelperClass;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps the list of all tilesets and static files, served by the server, in memory.
+ * The list is built once with a full scan of the root directories and after that it is updated
+ * incrementally - a {@link FileObserver} watches the MBTiles, Directory Tilesets and Static Files
+ * root directories (and each Directory Tileset for added or removed zoom levels) and only the
+ * changed entries are read again.
+ * <p>
+ * Each change increases the catalog version - see {@link TilesetCatalog#getVersion()}. Use it
+ * for detecting if anything built from the catalog (pages, JSON...) is still valid.
+ * <p>
+ * The tileset info is saved in a JSON snapshot file. After a restart the snapshot is loaded with
+ * {@link TilesetCatalog#loadSnapshot()} and the catalog is served from it right away, while
+ * {@link TilesetCatalog#load()} revalidates it in the background - only tilesets, which last
+ * modified time or size differ from the snapshot, are read again. Changes found by watching the
+ * directories are saved to the snapshot shortly after they happen.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class TilesetCatalog {
+    private static final String TAG = TilesetCatalog.class.getName();
+    /**
+     * Increase when the snapshot format changes - older snapshots are ignored
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+    /**
+     * Changes are saved to the snapshot after this time, so copying many files writes it once
+     */
+    private static final long SNAPSHOT_SAVE_DELAY_MS = 10000;
+
+    /**
+     * File system events, which add, remove or change tilesets
+     */
+    private static final int WATCHED_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE;
+
+    /**
+     * Notified when a tileset in the catalog was added, changed or removed.
+     */
+    public interface Listener {
+        /**
+         * @param file MBTiles file - it does not exist if the tileset was removed
+         */
+        void onMBTilesChanged(File file);
+
+        /**
+         * @param directory Directory Tileset - it does not exist if the tileset was removed
+         */
+        void onDirectoryTilesetChanged(File directory);
+    }
+
+    private final File mbtilesDirectory;
+    private final File tilesDirectory;
+    private final File staticDirectory;
+    private final File snapshotFile;
+    private final TilesetInfoCache mbtilesInfoCache;
+    private final Listener listener;
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, TilesetInfo> mbtiles = new ConcurrentSkipListMap<>();
+    private final Map<String, TilesetInfo> directoryTilesets = new ConcurrentSkipListMap<>();
+    private final Map<String, StaticFileInfo> staticFiles = new ConcurrentSkipListMap<>();
+    private final Map<String, FileObserver> observers = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean loaded;
+    private volatile boolean snapshotLoaded;
+    private volatile boolean closed;
+    private ScheduledFuture<?> pendingSnapshotSave;
+
+    /**
+     * Creates a new catalog. It is loaded from the snapshot on first use or with {@link TilesetCatalog#load()}.
+     * After {@link TilesetCatalog#close()} it stays empty.
+     *
+     * @param mbtilesDirectory MBTiles root directory
+     * @param tilesDirectory   Directory Tilesets root directory
+     * @param staticDirectory  Static Files root directory
+     * @param snapshotFile     file for saving the catalog between restarts
+     * @param mbtilesInfoCache reads the info for MBTiles files
+     * @param listener         notified when tilesets change, can be null
+     * @param executor         saves the snapshot after tilesets change, can be null - the
+     *                         snapshot is then saved only when the catalog is loaded or closed
+     */
+    public TilesetCatalog(File mbtilesDirectory, File tilesDirectory, File staticDirectory, File snapshotFile,
+                          TilesetInfoCache mbtilesInfoCache, Listener listener, ScheduledExecutorService executor) {
+        this.mbtilesDirectory = mbtilesDirectory;
+        this.tilesDirectory = tilesDirectory;
+        this.staticDirectory = staticDirectory;
+        this.snapshotFile = snapshotFile;
+        this.mbtilesInfoCache = mbtilesInfoCache;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    /**
+     * Loads the catalog saved when the server was running last time. Until {@link TilesetCatalog#load()}
+     * is called, the catalog is served from the snapshot. Static files are not saved - they
+     * are listed again.
+     *
+     * @return true if the snapshot was loaded
+     */
+    public synchronized boolean loadSnapshot() {
+        if (this.closed || this.loaded || this.snapshotLoaded || !this.snapshotFile.isFile()) {
+            return false;
+        }
+
+        try {
+            JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(this.snapshotFile.toPath()), StandardCharsets.UTF_8));
+            if (snapshot.getInt("version") != SNAPSHOT_VERSION) {
+                return false;
+            }
+            JSONArray mbtiles = snapshot.getJSONArray("mbtiles");
+            for (int i = 0; i < mbtiles.length(); i++) {
+                TilesetInfo info = TilesetInfo.fromSnapshotJson(mbtiles.getJSONObject(i));
+                String name = info.getParameter(TilesetInfo.TILESET_NAME, String.class);
+                this.mbtiles.put(name, info);
+                // the info is used for tile requests too, without opening the file
+                this.mbtilesInfoCache.put(new File(this.mbtilesDirectory, name), info);
+            }
+            JSONArray tiles = snapshot.getJSONArray("tiles");
+            for (int i = 0; i < tiles.length(); i++) {
+                TilesetInfo info = TilesetInfo.fromSnapshotJson(tiles.getJSONObject(i));
+                this.directoryTilesets.put(info.getParameter(TilesetInfo.TILESET_NAME, String.class), info);
+            }
+        } catch (IOException | JSONException ex) {
+            Log.w(TAG, "loadSnapshot: unable to read catalog snapshot: " + this.snapshotFile, ex);
+            this.mbtiles.clear();
+            this.directoryTilesets.clear();
+            return false;
+        }
+
+        File[] files = HelperClass.getFilesFrom(this.staticDirectory, null);
+        if (files != null) {
+            for (File file : files) {
+                this.updateStaticFile(file);
+            }
+        }
+
+        this.version.incrementAndGet();
+        this.snapshotLoaded = true;
+        return true;
+    }
+
+    /**
+     * Saves the catalog, so it can be loaded with {@link TilesetCatalog#loadSnapshot()} after a restart.
+     */
+    public synchronized void saveSnapshot() {
+        if (this.pendingSnapshotSave != null) {
+            this.pendingSnapshotSave.cancel(false);
+            this.pendingSnapshotSave = null;
+        }
+        if (!this.loaded) {
+            return;
+        }
+
+        File temporaryFile = new File(this.snapshotFile.getPath() + ".tmp");
+        try {
+            JSONArray mbtiles = new JSONArray();
+            for (TilesetInfo info : this.mbtiles.values()) {
+                mbtiles.put(info.toSnapshotJson());
+            }
+            JSONArray tiles = new JSONArray();
+            for (TilesetInfo info : this.directoryTilesets.values()) {
+                tiles.put(info.toSnapshotJson());
+            }
+            JSONObject snapshot = new JSONObject();
+            snapshot.put("version", SNAPSHOT_VERSION);
+            snapshot.put("mbtiles", mbtiles);
+            snapshot.put("tiles", tiles);
+
+            HelperClass.createDirectory(this.snapshotFile.getParent());
+            // the snapshot is replaced at once, so a partly written file is never loaded
+            Files.write(temporaryFile.toPath(), snapshot.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile.toPath(), this.snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | JSONException ex) {
+            Log.w(TAG, "saveSnapshot: unable to save catalog snapshot: " + this.snapshotFile, ex);
+        }
+    }
+
+    /**
+     * Scans the root directories and starts watching them for changes. Entries loaded from the
+     * snapshot are kept if their files were not modified and entries for removed files are
+     * deleted. Does nothing if the catalog is already loaded or closed. The scan is stopped
+     * when the catalog is closed or the calling thread is interrupted - the catalog is then
+     * not loaded.
+     */
+    public synchronized void load() {
+        if (this.loaded || this.closed) {
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        File[] files = HelperClass.getFilesFrom(this.mbtilesDirectory, ".mbtiles");
+        if (files != null) {
+            for (File file : files) {
+                if (this.isLoadCancelled()) {
+                    return;
+                }
+                this.updateMBTiles(file);
+                names.add(file.getName());
+            }
+        }
+        this.changed(this.mbtiles.keySet().retainAll(names));
+
+        names.clear();
+        File[] directories = HelperClass.getDirectoriesFrom(this.tilesDirectory);
+        if (directories != null) {
+            for (File directory : directories) {
+                if (this.isLoadCancelled()) {
+                    return;
+                }
+                this.updateDirectoryTileset(directory);
+                names.add(directory.getName());
+            }
+        }
+        this.changed(this.directoryTilesets.keySet().retainAll(names));
+
+        names.clear();
+        files = HelperClass.getFilesFrom(this.staticDirectory, null);
+        if (files != null) {
+            for (File file : files) {
+                this.updateStaticFile(file);
+                names.add(file.getName());
+            }
+        }
+        this.changed(this.staticFiles.keySet().retainAll(names));
+        if (this.isLoadCancelled()) {
+            return;
+        }
+
+        this.watch(this.mbtilesDirectory, this::onMBTilesEvent);
+        this.watch(this.tilesDirectory, this::onTilesEvent);
+        this.watch(this.staticDirectory, this::onStaticEvent);
+
+        if (!this.snapshotLoaded) {
+            this.version.incrementAndGet();
+        }
+        this.loaded = true;
+        this.saveSnapshot();
+    }
+
+    /**
+     * Saves the snapshot, stops watching the root directories and removes all entries. The
+     * catalog can not be loaded again. A running {@link TilesetCatalog#load()} is stopped
+     * after the current tileset is read.
+     */
+    public void close() {
+        // set before waiting for the lock, so a running load() stops early
+        this.closed = true;
+        synchronized (this) {
+            this.saveSnapshot();
+            for (FileObserver observer : this.observers.values()) {
+                observer.stopWatching();
+            }
+            this.observers.clear();
+            this.mbtiles.clear();
+            this.directoryTilesets.clear();
+            this.staticFiles.clear();
+            this.loaded = false;
+            this.snapshotLoaded = false;
+        }
+    }
+
+    /**
+     * @return version of the catalog - it changes each time a tileset or a static file is added, changed or removed
+     */
+    public long getVersion() {
+        this.ensureLoaded();
+        return this.version.get();
+    }
+
+    /**
+     * @return info for all MBTiles tilesets, sorted by file name
+     */
+    public List<TilesetInfo> getMBTilesTilesets() {
+        this.ensureLoaded();
+        return new ArrayList<>(this.mbtiles.values());
+    }
+
+    /**
+     * @return info for all Directory Tilesets, sorted by directory name
+     */
+    public List<TilesetInfo> getDirectoryTilesets() {
+        this.ensureLoaded();
+        return new ArrayList<>(this.directoryTilesets.values());
+    }
+
+    /**
+     * @param name directory name
+     * @return info for a Directory Tileset or null if it does not exist
+     */
+    public TilesetInfo getDirectoryTileset(String name) {
+        this.ensureLoaded();
+        return this.directoryTilesets.get(name);
+    }
+
+    /**
+     * @return info for all static files, sorted by file name
+     */
+    public List<StaticFileInfo> getStaticFiles() {
+        this.ensureLoaded();
+        return new ArrayList<>(this.staticFiles.values());
+    }
+
+    /**
+     * Saves the snapshot after {@link TilesetCatalog#SNAPSHOT_SAVE_DELAY_MS}, unless a save is
+     * already scheduled.
+     */
+    private synchronized void scheduleSnapshotSave() {
+        if (this.executor == null || this.executor.isShutdown() || this.closed || this.pendingSnapshotSave != null) {
+            return;
+        }
+        this.pendingSnapshotSave = this.executor.schedule(this::saveSnapshot, SNAPSHOT_SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void ensureLoaded() {
+        if (this.loaded || this.snapshotLoaded || this.closed) {
+            return;
+        }
+        synchronized (this) {
+            // a saved catalog is served until load() is called - the tilesets are scanned on
+            // the calling thread only when there is no snapshot
+            if (!this.loadSnapshot() && !this.snapshotLoaded) {
+                this.load();
+            }
+        }
+    }
+
+    private boolean isLoadCancelled() {
+        return this.closed || Thread.currentThread().isInterrupted();
+    }
+
+    private void onMBTilesEvent(int event, String name) {
+        if (!name.endsWith(".mbtiles")) {
+            // SQLite journal files and other files are not tilesets
+            return;
+        }
+        if ((event & FileObserver.ALL_EVENTS) == FileObserver.CREATE) {
+            // the file is still being copied - it is read when it is closed
+            return;
+        }
+        File file = new File(this.mbtilesDirectory, name);
+        if (this.updateMBTiles(file)) {
+            this.scheduleSnapshotSave();
+            if (this.listener != null) {
+                this.listener.onMBTilesChanged(file);
+            }
+        }
+    }
+
+    private void onTilesEvent(int event, String name) {
+        this.onDirectoryTilesetEvent(new File(this.tilesDirectory, name));
+    }
+
+    private void onDirectoryTilesetEvent(File directory) {
+        if (this.updateDirectoryTileset(directory)) {
+            this.scheduleSnapshotSave();
+            if (this.listener != null) {
+                this.listener.onDirectoryTilesetChanged(directory);
+            }
+        }
+    }
+
+    private void onStaticEvent(int event, String name) {
+        this.updateStaticFile(new File(this.staticDirectory, name));
+    }
+
+    /**
+     * Reads the info for a MBTiles file again.
+     *
+     * @param file MBTiles file
+     * @return true if the catalog was changed
+     */
+    private boolean updateMBTiles(File file) {
+        TilesetInfo info = file.isFile() ? this.mbtilesInfoCache.get(file) : null;
+        TilesetInfo previous = info != null
+                ? this.mbtiles.put(file.getName(), info)
+                : this.mbtiles.remove(file.getName());
+        // the loader returns the same info object if the file was not modified
+        return this.changed(previous != info);
+    }
+
+    /**
+     * Reads the zoom levels of a Directory Tileset again and starts watching it for added
+     * and removed zoom levels.
+     *
+     * @param directory Directory Tileset
+     * @return true if the catalog was changed
+     */
+    private boolean updateDirectoryTileset(File directory) {
+        String name = directory.getName();
+        if (!directory.isDirectory()) {
+            this.unwatch(directory);
+            return this.changed(this.directoryTilesets.remove(name) != null);
+        }
+
+        this.watch(directory, (event, zoom) -> this.onDirectoryTilesetEvent(directory));
+
+        // zoom levels are added or removed only with subdirectories, which changes the directory
+        long lastModified = directory.lastModified();
+        TilesetInfo previous = this.directoryTilesets.get(name);
+        if (previous != null && previous.getLastModified() == lastModified) {
+            return false;
+        }
+
+        try {
+            TilesetInfo info = new TilesetInfo(directory);
+            info.setFileAttributes(lastModified, 0);
+            this.directoryTilesets.put(name, info);
+        } catch (NumberFormatException ex) {
+            Log.w(TAG, "updateDirectoryTileset: invalid zoom level directory in: " + directory);
+            return this.changed(this.directoryTilesets.remove(name) != null);
+        }
+        return this.changed(true);
+    }
+
+    private void updateStaticFile(File file) {
+        if (file.isFile()) {
+            // the file size is shown in the list of static files, so each write is a change
+            this.staticFiles.put(file.getName(), new StaticFileInfo(file));
+            this.changed(true);
+        } else {
+            this.changed(this.staticFiles.remove(file.getName()) != null);
+        }
+    }
+
+    private boolean changed(boolean changed) {
+        if (changed) {
+            this.version.incrementAndGet();
+        }
+        return changed;
+    }
+
+    private void watch(File directory, Handler handler) {
+        String path = directory.getAbsolutePath();
+        if (this.observers.containsKey(path)) {
+            return;
+        }
+        // the constructor with a path is deprecated since Android 10
+        FileObserver observer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q
+                ? new DirectoryObserver(directory, handler)
+                : new DirectoryObserver(path, handler);
+        observer.startWatching();
+        this.observers.put(path, observer);
+    }
+
+    private void unwatch(File directory) {
+        FileObserver observer = this.observers.remove(directory.getAbsolutePath());
+        if (observer != null) {
+            observer.stopWatching();
+        }
+    }
+
+    /**
+     * Watches a directory and passes the events for its files to a {@link Handler}.
+     */
+    private static class DirectoryObserver extends FileObserver {
+        private final Handler handler;
+
+        DirectoryObserver(File directory, Handler handler) {
+            super(directory, WATCHED_EVENTS);
+            this.handler = handler;
+        }
+
+        @SuppressWarnings("deprecation")
+        DirectoryObserver(String path, Handler handler) {
+            super(path, WATCHED_EVENTS);
+            this.handler = handler;
+        }
+
+        @Override
+        public void onEvent(int event, String name) {
+            if (name == null || (event & WATCHED_EVENTS) == 0) {
+                return;
+            }
+            try {
+                this.handler.onEvent(event, name);
+            } catch (Exception ex) {
+                Log.e(TAG, "onEvent: unable to update catalog for: " + name, ex);
+            }
+        }
+    }
+
+    /**
+     * Handles an event for a file in a watched directory.
+     */
+    private interface Handler {
+        /**
+         * @param event {@link FileObserver} event
+         * @param name  name of the file, relative to the watched directory
+         */
+        void onEvent(int event, String name);
+    }
+}
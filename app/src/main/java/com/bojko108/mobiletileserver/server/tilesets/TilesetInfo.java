@@ -1,11 +1,16 @@
 package com.bojko108.mobiletileserver.server.tilesets;
 
+import android.util.JsonWriter;
+
 import com.bojko108.mobiletileserver.utils.HelperClass;
+import com.bojko108.mobiletileserver.utils.TileGrid;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * This class provides access to various parameters for the tileset stored in
@@ -21,6 +26,9 @@ import java.io.File;
  * <li><b>MAX_ZOOM</b> - the highest zoom level for which the tileset provides data</li>
  * <li><b>BOUNDS</b> - tileset extent in geographic coordinates</li>
  * <li><b>CENTER</b> - tileset center in geographic coordinates</li>
+ * <li><b>MAX_AGE</b> - number of seconds clients can cache tiles from the tileset</li>
+ * <li><b>ATTRIBUTION</b> - attribution text for the map layer</li>
+ * <li><b>JSON</b> - MBTiles <i>json</i> metadata - e.g. <i>vector_layers</i> for vector tilesets</li>
  * </ul>
  * <p>
  * Mobile Tile Server, Copyright (c) 2020 by bojko108
@@ -64,6 +72,25 @@ public class TilesetInfo {
      * is also calculated. To get the value of bounds parameter use {@link TilesetInfo#getBounds()}
      */
     public static final String BOUNDS = "bounds";
+    /**
+     * Use this key to get/set the number of seconds clients can cache tiles from this tileset.
+     * Returns -1 if the value is not set in the tileset and the server default should be used.
+     */
+    public static final String MAX_AGE = "maxage";
+    /**
+     * Use this key to get/set tileset attribution parameter from MBTiles Database
+     */
+    public static final String ATTRIBUTION = "attribution";
+    /**
+     * Use this key to get/set the JSON metadata parameter from MBTiles Database. For vector
+     * tilesets it describes the layers in the tiles - <i>vector_layers</i>.
+     */
+    public static final String JSON = "json";
+
+    /**
+     * Version of the TileJSON specification, used in {@link TilesetInfo#toTileJson(String...)}
+     */
+    private static final String TILEJSON_VERSION = "3.0.0";
 
     private String tilesetName = "";
     private String name = "";
@@ -73,7 +100,17 @@ public class TilesetInfo {
     private int minZoom = 999;
     private int maxZoom = -1;
     private double[] bounds;
+    /**
+     * False while {@link TilesetInfo#bounds} has the default value
+     */
+    private boolean hasBounds;
     private double[] center;
+    private int maxAge = -1;
+    private String attribution = "";
+    private String json;
+    private long lastModified;
+    private long fileSize;
+    private boolean deduplicated;
 
     public TilesetInfo() {
         this(null);
@@ -128,6 +165,12 @@ public class TilesetInfo {
                 return type.cast(this.minZoom);
             case MAX_ZOOM:
                 return type.cast(this.maxZoom);
+            case MAX_AGE:
+                return type.cast(this.maxAge);
+            case ATTRIBUTION:
+                return type.cast(this.attribution);
+            case JSON:
+                return type.cast(this.json);
         }
 
         return null;
@@ -168,10 +211,66 @@ public class TilesetInfo {
             case BOUNDS:
                 this.bounds = this.readBounds(value);
                 this.center = this.calculateCenter();
+                this.hasBounds = true;
+                break;
+            case MAX_AGE:
+                try {
+                    this.maxAge = Math.max(0, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException ex) {
+                    this.maxAge = -1;
+                }
+                break;
+            case ATTRIBUTION:
+                this.attribution = value;
+                break;
+            case JSON:
+                this.json = value;
                 break;
         }
     }
 
+    /**
+     * Sets the last modified time and size of the tileset file, when the info was read. Used
+     * for creating HTTP validators for the tiles.
+     *
+     * @param lastModified last modified time in milliseconds
+     * @param fileSize     file size in bytes
+     */
+    public void setFileAttributes(long lastModified, long fileSize) {
+        this.lastModified = lastModified;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * @return last modified time of the tileset file in milliseconds, 0 if unknown
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * @return size of the tileset file in bytes, 0 if unknown
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /**
+     * Marks a MBTiles tileset, which stores identical tiles only once in the "images" table.
+     *
+     * @param deduplicated true if the tileset uses the "map"/"images" schema
+     */
+    public void setDeduplicated(boolean deduplicated) {
+        this.deduplicated = deduplicated;
+    }
+
+    /**
+     * @return true if the tileset stores identical tiles only once and they are identified by "tile_id"
+     */
+    public boolean isDeduplicated() {
+        return this.deduplicated;
+    }
+
     /**
      * Use this to get tileset extent
      *
@@ -181,6 +280,50 @@ public class TilesetInfo {
         return this.bounds;
     }
 
+    /**
+     * Checks if a zoom level is in the zoom range of this tileset. Tilesets without zoom levels
+     * in their metadata are not limited by them.
+     *
+     * @param z zoom level
+     * @return false if the tileset surely has no tiles at this zoom level
+     */
+    public boolean containsZoom(int z) {
+        return this.minZoom > this.maxZoom || (z >= this.minZoom && z <= this.maxZoom);
+    }
+
+    /**
+     * Checks if a tile can exist in this tileset - it must be in the zoom range and in the extent
+     * of the tileset. Tilesets without zoom levels or bounds in their metadata are not limited
+     * by them. Use it to reject requests before looking up the tile.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate in XYZ schema
+     * @return false if the tile is surely not in the tileset
+     */
+    public boolean containsTile(int z, int x, int y) {
+        if (!TileGrid.isValid(z, x, y)) {
+            return false;
+        }
+        if (!this.containsZoom(z)) {
+            return false;
+        }
+        if (!this.hasBounds) {
+            return true;
+        }
+        // rows grow to the south - the north edge has the lowest row
+        int minY = TileGrid.getTileY(z, Math.max(this.bounds[1], this.bounds[3]));
+        int maxY = TileGrid.getTileY(z, Math.min(this.bounds[1], this.bounds[3]));
+        if (y < minY || y > maxY) {
+            return false;
+        }
+        if (this.bounds[0] > this.bounds[2]) {
+            // the extent crosses the antimeridian
+            return true;
+        }
+        return x >= TileGrid.getTileX(z, this.bounds[0]) && x <= TileGrid.getTileX(z, this.bounds[2]);
+    }
+
     /**
      * Gets the tileset extent as text
      *
@@ -250,6 +393,146 @@ public class TilesetInfo {
         return result;
     }
 
+    /**
+     * Writes this tileset info to a JSON stream - the same parameters as {@link TilesetInfo#toJson()}.
+     *
+     * @param writer JSON stream
+     * @param url    URL address of the tileset, not written if null
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeJson(JsonWriter writer, String url) throws IOException {
+        writer.beginObject();
+        writer.name(TILESET_NAME).value(this.tilesetName);
+        writer.name(NAME).value(this.name);
+        writer.name(DESCRIPTION).value(this.description);
+        writer.name(FORMAT).value(this.format);
+        writer.name(VERSION).value(this.version);
+        writer.name(MIN_ZOOM).value(this.minZoom);
+        writer.name(MAX_ZOOM).value(this.maxZoom);
+        writer.name(BOUNDS).value(this.getBoundsAsString());
+        writer.name("center").value(this.getCenterAsString());
+        if (url != null) {
+            writer.name("url").value(url);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Returns this tileset info as JSON object, including the file attributes and all values
+     * needed to restore it with {@link TilesetInfo#fromSnapshotJson(JSONObject)}.
+     *
+     * @return tileset info parameters in JSON
+     */
+    public JSONObject toSnapshotJson() {
+        JSONObject result = this.toJson();
+        try {
+            result.put(MAX_AGE, this.maxAge);
+            result.put(ATTRIBUTION, this.attribution);
+            if (this.json != null) {
+                result.put(JSON, this.json);
+            }
+            result.put("deduplicated", this.deduplicated);
+            result.put("hasbounds", this.hasBounds);
+            result.put("lastmodified", this.lastModified);
+            result.put("filesize", this.fileSize);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * Restores tileset info, saved with {@link TilesetInfo#toSnapshotJson()}.
+     *
+     * @param json tileset info parameters in JSON
+     * @return tileset info
+     * @throws JSONException if a required parameter is missing
+     */
+    public static TilesetInfo fromSnapshotJson(JSONObject json) throws JSONException {
+        TilesetInfo info = new TilesetInfo();
+        info.tilesetName = json.getString(TILESET_NAME);
+        info.name = json.optString(NAME);
+        info.description = json.optString(DESCRIPTION);
+        info.format = json.optString(FORMAT, info.format);
+        info.version = json.optString(VERSION);
+        info.minZoom = json.optInt(MIN_ZOOM, info.minZoom);
+        info.maxZoom = json.optInt(MAX_ZOOM, info.maxZoom);
+        info.setParameter(BOUNDS, json.getString(BOUNDS));
+        info.hasBounds = json.optBoolean("hasbounds");
+        info.maxAge = json.optInt(MAX_AGE, -1);
+        info.attribution = json.optString(ATTRIBUTION);
+        info.json = json.has(JSON) ? json.getString(JSON) : null;
+        info.deduplicated = json.optBoolean("deduplicated");
+        info.lastModified = json.getLong("lastmodified");
+        info.fileSize = json.getLong("filesize");
+        return info;
+    }
+
+    /**
+     * Returns this tileset info as a TileJSON 3.0 document, used by mapping libraries like
+     * MapLibre for loading the tileset. For vector tilesets <i>vector_layers</i> is copied
+     * from the {@link TilesetInfo#JSON} metadata.
+     *
+     * @param tilesUrls URL templates for the tiles - <i>.../{z}/{x}/{y}</i>, clients can load
+     *                  the tiles from any of them
+     * @return TileJSON document
+     * @see <a href="https://github.com/mapbox/tilejson-spec/tree/master/3.0.0">TileJSON 3.0.0</a>
+     */
+    public JSONObject toTileJson(String... tilesUrls) {
+        JSONObject result = new JSONObject();
+        try {
+            // tilesets without zoom levels get the full zoom range
+            int minZoom = this.minZoom <= this.maxZoom ? this.minZoom : 0;
+            int maxZoom = this.minZoom <= this.maxZoom ? this.maxZoom : 30;
+
+            result.put("tilejson", TILEJSON_VERSION);
+            JSONArray tiles = new JSONArray();
+            for (String tilesUrl : tilesUrls) {
+                tiles.put(tilesUrl);
+            }
+            result.put("tiles", tiles);
+            result.put("scheme", "xyz");
+            result.put(NAME, this.name.isEmpty() ? this.tilesetName : this.name);
+            result.put(DESCRIPTION, this.description);
+            result.put(VERSION, this.version);
+            result.put(ATTRIBUTION, this.attribution);
+            result.put(FORMAT, this.format);
+            result.put(MIN_ZOOM, minZoom);
+            result.put(MAX_ZOOM, maxZoom);
+            result.put(BOUNDS, new JSONArray()
+                    .put(this.bounds[0]).put(this.bounds[1])
+                    .put(this.bounds[2]).put(this.bounds[3]));
+            result.put("center", new JSONArray()
+                    .put(this.center[0]).put(this.center[1])
+                    .put(Math.max(minZoom, Math.min(maxZoom, (int) this.center[2]))));
+
+            JSONArray vectorLayers = this.getVectorLayers();
+            if (vectorLayers != null) {
+                result.put("vector_layers", vectorLayers);
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return result;
+    }
+
+    /**
+     * Reads <i>vector_layers</i> from the {@link TilesetInfo#JSON} metadata.
+     *
+     * @return vector layers or null if they are not set
+     */
+    private JSONArray getVectorLayers() {
+        if (this.json == null || this.json.isEmpty()) {
+            return null;
+        }
+        try {
+            return new JSONObject(this.json).optJSONArray("vector_layers");
+        } catch (JSONException e) {
+            // metadata is not valid JSON
+            return null;
+        }
+    }
+
     /**
      * Reads tileset extent from a String and converts it in geographic coordinates.
      *
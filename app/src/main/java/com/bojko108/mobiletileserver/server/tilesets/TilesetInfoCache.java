@@ -0,0 +1,116 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class keeps {@link TilesetInfo} objects in memory, so the tileset metadata is read only
+ * once instead of on every request. Entries are stored by file path together with the file's
+ * last modified time and size - when any of them changes the metadata is read again.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class TilesetInfoCache {
+    /**
+     * Reads the tileset metadata from a file, when it is not in the cache or the file was changed.
+     */
+    public interface Loader {
+        /**
+         * @param file tileset file or directory
+         * @return tileset info or null if it cannot be read
+         */
+        TilesetInfo load(File file);
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Loader loader;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param loader used for reading the metadata of new or changed tilesets
+     */
+    public TilesetInfoCache(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Gets the tileset info for a file. The info is read with the {@link Loader} if it is
+     * not cached yet or if the file was modified since it was read.
+     *
+     * @param file tileset file or directory
+     * @return tileset info or null if the file does not exist
+     */
+    public TilesetInfo get(File file) {
+        String key = file.getAbsolutePath();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            // file was deleted
+            this.entries.remove(key);
+            return null;
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long size = attributes.size();
+
+        Entry entry = this.entries.get(key);
+        if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+            return entry.info;
+        }
+
+        TilesetInfo info = this.loader.load(file);
+        if (info != null) {
+            info.setFileAttributes(lastModified, size);
+            this.entries.put(key, new Entry(info, lastModified, size));
+        } else {
+            this.entries.remove(key);
+        }
+        return info;
+    }
+
+    /**
+     * Stores tileset info, read earlier, in the cache - e.g. restored from a snapshot. The info
+     * is used until the file attributes differ from {@link TilesetInfo#getLastModified()} and
+     * {@link TilesetInfo#getFileSize()}.
+     *
+     * @param file tileset file or directory
+     * @param info tileset info with the file attributes set
+     */
+    public void put(File file, TilesetInfo info) {
+        this.entries.put(file.getAbsolutePath(), new Entry(info, info.getLastModified(), info.getFileSize()));
+    }
+
+    /**
+     * Removes the cached info for a file.
+     *
+     * @param file tileset file or directory
+     */
+    public void invalidate(File file) {
+        this.entries.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public void clear() {
+        this.entries.clear();
+    }
+
+    private static class Entry {
+        private final TilesetInfo info;
+        private final long lastModified;
+        private final long size;
+
+        private Entry(TilesetInfo info, long lastModified, long size) {
+            this.info = info;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+    }
+}
@@ -1,5 +1,153 @@
 package com.bojko108.mobiletileserver.utils;
 
+import java.util.Arrays;
+
+/**
+ * Tile math for the XYZ tile grid - at zoom level <i>z</i> the world is covered by <i>2^z x 2^z</i>
+ * tiles, <i>x</i> grows to the east and <i>y</i> grows to the south. Tile coordinates are returned
+ * as pairs in flat arrays - <i>x0, y0, x1, y1, ...</i> - so no objects are created for each tile.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
 public class TileGrid {
+    /**
+     * The highest zoom level, for which tile coordinates fit in an int
+     */
+    public static final int MAX_ZOOM = 30;
+    /**
+     * The grid covers latitudes up to this value in Web Mercator projection
+     */
+    public static final double MAX_LATITUDE = 85.0511287798;
+    /**
+     * Offsets of the neighbours of a tile, the nearest tiles first - map clients pan mostly
+     * horizontally
+     */
+    private static final int[] NEIGHBOUR_DX = {-1, 1, 0, 0, -1, 1, -1, 1};
+    private static final int[] NEIGHBOUR_DY = {0, 0, -1, 1, -1, -1, 1, 1};
+
+    private TileGrid() {
+    }
+
+    /**
+     * Gets the number of tiles in each direction at a zoom level.
+     *
+     * @param z zoom level
+     * @return 2^z
+     */
+    public static int getTileCount(int z) {
+        return 1 << z;
+    }
+
+    /**
+     * Checks if tile coordinates are in the grid.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate
+     * @return true if the tile exists at this zoom level
+     */
+    public static boolean isValid(int z, int x, int y) {
+        if (z < 0 || z > MAX_ZOOM) {
+            return false;
+        }
+        int count = getTileCount(z);
+        return x >= 0 && x < count && y >= 0 && y < count;
+    }
+
+    /**
+     * Gets the ring of tiles around a tile. The grid wraps around the antimeridian, so the
+     * neighbours of the first column include tiles from the last column. There are no tiles
+     * beyond the poles - the ring of the first and the last row has less tiles.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate
+     * @return up to 8 tiles as <i>x, y</i> pairs, starting with the tiles in the same row
+     */
+    public static int[] getNeighbours(int z, int x, int y) {
+        int count = getTileCount(z);
+        int[] tiles = new int[16];
+        int length = 0;
+        for (int i = 0; i < NEIGHBOUR_DX.length; i++) {
+            int neighbourX = Math.floorMod(x + NEIGHBOUR_DX[i], count);
+            int neighbourY = y + NEIGHBOUR_DY[i];
+            if (neighbourY < 0 || neighbourY >= count || (neighbourX == x && neighbourY == y)) {
+                continue;
+            }
+            if (containsTile(tiles, length, neighbourX, neighbourY)) {
+                // at zoom levels 0 and 1 wrapping around returns the same tile twice
+                continue;
+            }
+            tiles[length++] = neighbourX;
+            tiles[length++] = neighbourY;
+        }
+        return length == tiles.length ? tiles : Arrays.copyOf(tiles, length);
+    }
+
+    /**
+     * Gets the four tiles at the next zoom level, covering a tile.
+     *
+     * @param z zoom level
+     * @param x tile's x coordinate
+     * @param y tile's y coordinate
+     * @return 4 tiles at zoom level <i>z + 1</i> as <i>x, y</i> pairs, empty at {@link TileGrid#MAX_ZOOM}
+     */
+    public static int[] getChildren(int z, int x, int y) {
+        if (z >= MAX_ZOOM) {
+            return new int[0];
+        }
+        int childX = x << 1;
+        int childY = y << 1;
+        return new int[]{childX, childY, childX + 1, childY, childX, childY + 1, childX + 1, childY + 1};
+    }
+
+    /**
+     * Gets the column of tiles containing a longitude.
+     *
+     * @param z         zoom level
+     * @param longitude longitude in degrees - values outside <i>-180..180</i> are clamped
+     * @return tile's x coordinate
+     */
+    public static int getTileX(int z, double longitude) {
+        int count = getTileCount(z);
+        double lon = Math.max(-180, Math.min(180, longitude));
+        int x = (int) Math.floor((lon + 180) / 360 * count);
+        return Math.max(0, Math.min(count - 1, x));
+    }
+
+    /**
+     * Gets the row of tiles containing a latitude.
+     *
+     * @param z        zoom level
+     * @param latitude latitude in degrees - values beyond {@link TileGrid#MAX_LATITUDE} are clamped
+     * @return tile's y coordinate
+     */
+    public static int getTileY(int z, double latitude) {
+        int count = getTileCount(z);
+        double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        double mercatorY = Math.log(Math.tan(lat) + 1 / Math.cos(lat));
+        int y = (int) Math.floor((1 - mercatorY / Math.PI) / 2 * count);
+        return Math.max(0, Math.min(count - 1, y));
+    }
+
+    /**
+     * Converts a tile row between XYZ and TMS schemas - TMS rows grow to the north.
+     *
+     * @param z zoom level
+     * @param y tile's row in one of the schemas
+     * @return tile's row in the other schema
+     */
+    public static int flipY(int z, int y) {
+        return getTileCount(z) - 1 - y;
+    }
 
-}
\ No newline at end of file
+    private static boolean containsTile(int[] tiles, int length, int x, int y) {
+        for (int i = 0; i < length; i += 2) {
+            if (tiles[i] == x && tiles[i + 1] == y) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
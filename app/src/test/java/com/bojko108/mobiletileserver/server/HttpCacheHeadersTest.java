@@ -0,0 +1,70 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests answering conditional requests with {@link HttpCacheHeaders}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class HttpCacheHeadersTest {
+    /**
+     * Wed, 21 Oct 2015 07:28:00 GMT
+     */
+    private static final long LAST_MODIFIED = 1445412480000L;
+    private static final String ETAG = HttpCacheHeaders.etagFor(LAST_MODIFIED, 1024, "14/9000/5000");
+
+    @Test
+    public void etagFor_quotesValidator() {
+        assertEquals("\"150894c2400-400-14/9000/5000\"", ETAG);
+        assertEquals("\"150894c2400-400\"", HttpCacheHeaders.etagFor(LAST_MODIFIED, 1024, null));
+        assertEquals("\"abc\"", HttpCacheHeaders.etagFor("abc"));
+    }
+
+    @Test
+    public void isNotModified_ifNoneMatch() {
+        assertTrue(HttpCacheHeaders.isNotModified(ETAG, null, ETAG, LAST_MODIFIED));
+        assertTrue(HttpCacheHeaders.isNotModified("*", null, ETAG, LAST_MODIFIED));
+        assertTrue(HttpCacheHeaders.isNotModified("\"other\", " + ETAG, null, ETAG, LAST_MODIFIED));
+        assertFalse(HttpCacheHeaders.isNotModified("\"other\"", null, ETAG, LAST_MODIFIED));
+        // the validator must be quoted
+        assertFalse(HttpCacheHeaders.isNotModified(ETAG.substring(1, ETAG.length() - 1), null, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void isNotModified_weakEtagMatches() {
+        assertTrue(HttpCacheHeaders.isNotModified("W/" + ETAG, null, ETAG, LAST_MODIFIED));
+        assertTrue(HttpCacheHeaders.isNotModified("W/\"other\",W/" + ETAG, null, ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void isNotModified_ifModifiedSince() {
+        assertTrue(HttpCacheHeaders.isNotModified(null, "Wed, 21 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED));
+        assertTrue(HttpCacheHeaders.isNotModified(null, "Thu, 22 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED));
+        assertFalse(HttpCacheHeaders.isNotModified(null, "Wed, 21 Oct 2015 07:27:59 GMT", ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void isNotModified_ifModifiedSinceIgnoresMilliseconds() {
+        // HTTP dates have a precision of one second
+        assertTrue(HttpCacheHeaders.isNotModified(null, "Wed, 21 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED + 999));
+        assertFalse(HttpCacheHeaders.isNotModified(null, "Wed, 21 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED + 1000));
+    }
+
+    @Test
+    public void isNotModified_ifModifiedSinceIgnoredWithIfNoneMatch() {
+        assertFalse(HttpCacheHeaders.isNotModified("\"other\"", "Thu, 22 Oct 2015 07:28:00 GMT", ETAG, LAST_MODIFIED));
+    }
+
+    @Test
+    public void isNotModified_falseForUnknownOrInvalidDates() {
+        assertFalse(HttpCacheHeaders.isNotModified(null, null, ETAG, LAST_MODIFIED));
+        assertFalse(HttpCacheHeaders.isNotModified(null, "yesterday", ETAG, LAST_MODIFIED));
+        assertFalse(HttpCacheHeaders.isNotModified(null, "Wed, 21 Oct 2015 07:28:00 GMT", ETAG, 0));
+    }
+}
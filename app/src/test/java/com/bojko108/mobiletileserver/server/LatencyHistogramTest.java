@@ -0,0 +1,89 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests counting request durations in the log-linear buckets of {@link LatencyHistogram}.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class LatencyHistogramTest {
+    private static final double DELTA = 1e-12;
+
+    @Test
+    public void getBucket_firstBucketBelow64Microseconds() {
+        assertEquals(0, LatencyHistogram.getBucket(0));
+        assertEquals(0, LatencyHistogram.getBucket(63));
+        assertEquals(1, LatencyHistogram.getBucket(64));
+    }
+
+    @Test
+    public void getBucket_splitsPowersOfTwoInHalves() {
+        // 64-95 and 96-127 microseconds
+        assertEquals(1, LatencyHistogram.getBucket(95));
+        assertEquals(2, LatencyHistogram.getBucket(96));
+        assertEquals(2, LatencyHistogram.getBucket(127));
+        assertEquals(3, LatencyHistogram.getBucket(128));
+        assertEquals(4, LatencyHistogram.getBucket(192));
+        assertEquals(5, LatencyHistogram.getBucket(256));
+    }
+
+    @Test
+    public void getBucket_lastBucketFrom2Pow25Microseconds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int last = histogram.getBucketCount() - 1;
+
+        assertEquals(last - 1, LatencyHistogram.getBucket((1L << 25) - 1));
+        assertEquals(last, LatencyHistogram.getBucket(1L << 25));
+        assertEquals(last, LatencyHistogram.getBucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void getUpperBound_atBucketEdges() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int last = histogram.getBucketCount() - 1;
+
+        assertEquals(64e-6, histogram.getUpperBound(0), DELTA);
+        assertEquals(96e-6, histogram.getUpperBound(1), DELTA);
+        assertEquals(128e-6, histogram.getUpperBound(2), DELTA);
+        assertEquals(192e-6, histogram.getUpperBound(3), DELTA);
+        assertEquals((1L << 25) / 1e6, histogram.getUpperBound(last - 1), DELTA);
+        assertEquals(Double.POSITIVE_INFINITY, histogram.getUpperBound(last), 0);
+    }
+
+    @Test
+    public void getUpperBound_containsAllValuesOfBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros < 1L << 26; micros = micros * 5 / 4 + 1) {
+            int bucket = LatencyHistogram.getBucket(micros);
+            assertTrue(micros + " above bucket " + bucket, micros < histogram.getUpperBound(bucket) * 1e6);
+            if (bucket > 0) {
+                assertTrue(micros + " below bucket " + bucket, micros >= histogram.getUpperBound(bucket - 1) * 1e6);
+            }
+        }
+    }
+
+    @Test
+    public void getPercentile_returnsUpperBoundOfBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(0.5), 0);
+
+        for (int i = 0; i < 99; i++) {
+            // 100 microseconds
+            histogram.record(100_000);
+        }
+        // 1 second
+        histogram.record(1_000_000_000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(99 * 100_000L + 1_000_000_000L, histogram.getSumNanos());
+        assertEquals(128e-6, histogram.getPercentile(0.5), DELTA);
+        assertEquals(128e-6, histogram.getPercentile(0.99), DELTA);
+        // 2^20 microseconds
+        assertEquals(1.048576, histogram.getPercentile(1), DELTA);
+    }
+}
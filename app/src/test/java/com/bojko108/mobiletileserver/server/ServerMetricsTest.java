@@ -0,0 +1,112 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests writing the {@link ServerMetrics} in Prometheus text format.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class ServerMetricsTest {
+    @Test
+    public void writePrometheus_writesHeadersForAllMetrics() {
+        List<String> lines = write(new ServerMetrics());
+
+        assertTrue(lines.contains("# HELP mobiletileserver_requests_total Number of requests by route"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_requests_total counter"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_responses_total counter"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_response_bytes_total counter"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_request_duration_seconds histogram"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_tileset_tiles_total counter"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_tileset_bytes_total counter"));
+        assertTrue(lines.contains("# TYPE mobiletileserver_tileset_blank_tiles_total counter"));
+    }
+
+    @Test
+    public void writePrometheus_writesSamplesForAllRoutes() {
+        List<String> lines = write(new ServerMetrics());
+
+        assertTrue(lines.contains("mobiletileserver_requests_total{route=\"mbtiles\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_requests_total{route=\"metrics\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_responses_total{route=\"tiles\",code=\"2xx\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_responses_total{route=\"tiles\",code=\"5xx\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_response_bytes_total{route=\"batch\"} 0"));
+    }
+
+    @Test
+    public void writePrometheus_writesHistogramBuckets() {
+        List<String> lines = write(new ServerMetrics());
+        int buckets = new LatencyHistogram().getBucketCount();
+
+        long count = lines.stream()
+                .filter(line -> line.startsWith("mobiletileserver_request_duration_seconds_bucket{route=\"mbtiles\","))
+                .count();
+        assertEquals(buckets, count);
+        assertTrue(lines.contains("mobiletileserver_request_duration_seconds_bucket{route=\"mbtiles\",le=\"6.4E-5\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_request_duration_seconds_bucket{route=\"mbtiles\",le=\"+Inf\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_request_duration_seconds_sum{route=\"mbtiles\"} 0"));
+        assertTrue(lines.contains("mobiletileserver_request_duration_seconds_count{route=\"mbtiles\"} 0"));
+    }
+
+    @Test
+    public void writePrometheus_writesTilesetSamples() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.recordTile(ServerFiles.TilesetType.MBTiles, "basemap.mbtiles", 1000, false);
+        metrics.recordTile(ServerFiles.TilesetType.MBTiles, "basemap.mbtiles", 200, true);
+        metrics.recordTile(ServerFiles.TilesetType.DirectoryTiles, "osm", 300, false);
+
+        List<String> lines = write(metrics);
+
+        assertTrue(lines.contains("mobiletileserver_tileset_tiles_total{type=\"mbtiles\",tileset=\"basemap.mbtiles\"} 2"));
+        assertTrue(lines.contains("mobiletileserver_tileset_bytes_total{type=\"mbtiles\",tileset=\"basemap.mbtiles\"} 1200"));
+        assertTrue(lines.contains("mobiletileserver_tileset_blank_tiles_total{type=\"mbtiles\",tileset=\"basemap.mbtiles\"} 1"));
+        assertTrue(lines.contains("mobiletileserver_tileset_tiles_total{type=\"tiles\",tileset=\"osm\"} 1"));
+        assertTrue(lines.contains("mobiletileserver_tileset_blank_tiles_total{type=\"tiles\",tileset=\"osm\"} 0"));
+    }
+
+    @Test
+    public void writePrometheus_escapesLabelValues() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.recordTile(ServerFiles.TilesetType.DirectoryTiles, "a\"b\\c\nd", 10, false);
+
+        List<String> lines = write(metrics);
+
+        assertTrue(lines.contains("mobiletileserver_tileset_tiles_total{type=\"tiles\",tileset=\"a\\\"b\\\\c\\nd\"} 1"));
+    }
+
+    @Test
+    public void removeTileset_removesSamples() {
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.recordTile(ServerFiles.TilesetType.MBTiles, "basemap.mbtiles", 1000, false);
+
+        metrics.removeTileset(ServerFiles.TilesetType.MBTiles, "basemap.mbtiles");
+
+        for (String line : write(metrics)) {
+            assertFalse(line, line.contains("basemap.mbtiles"));
+        }
+    }
+
+    @Test
+    public void writeSample_writesMetricWithoutLabels() {
+        StringBuilder out = new StringBuilder();
+        ServerMetrics.writeSample(out, "uptime_seconds", null, null, 12.5);
+        ServerMetrics.writeSample(out, "tile_cache_bytes", null, null, 1024);
+
+        assertEquals("mobiletileserver_uptime_seconds 12.5\nmobiletileserver_tile_cache_bytes 1024\n", out.toString());
+    }
+
+    private static List<String> write(ServerMetrics metrics) {
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out);
+        assertTrue(out.toString().endsWith("\n"));
+        return Arrays.asList(out.toString().split("\n"));
+    }
+}
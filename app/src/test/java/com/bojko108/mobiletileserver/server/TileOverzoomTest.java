@@ -0,0 +1,50 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the part of an ancestor raster tile, which {@link TileOverzoom} scales up for a new tile.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class TileOverzoomTest {
+    @Test
+    public void getCropArea_oneZoomLevel() {
+        assertArrayEquals(new int[]{0, 0, 128, 128}, TileOverzoom.getCropArea(256, 256, 1, 0, 0));
+        assertArrayEquals(new int[]{128, 0, 128, 128}, TileOverzoom.getCropArea(256, 256, 1, 1, 0));
+        assertArrayEquals(new int[]{0, 128, 128, 128}, TileOverzoom.getCropArea(256, 256, 1, 0, 1));
+        assertArrayEquals(new int[]{128, 128, 128, 128}, TileOverzoom.getCropArea(256, 256, 1, 1, 1));
+    }
+
+    @Test
+    public void getCropArea_severalZoomLevels() {
+        assertArrayEquals(new int[]{96, 224, 32, 32}, TileOverzoom.getCropArea(256, 256, 3, 3, 7));
+        assertArrayEquals(new int[]{252, 0, 4, 4},
+                TileOverzoom.getCropArea(256, 256, TileOverzoom.MAX_OVERZOOM_LEVELS, 63, 0));
+    }
+
+    @Test
+    public void getCropArea_highResolutionTile() {
+        // width and height are cropped separately
+        assertArrayEquals(new int[]{256, 512, 256, 512}, TileOverzoom.getCropArea(512, 1024, 1, 1, 1));
+    }
+
+    @Test
+    public void getCropArea_keepsAtLeastOnePixelInsideTheImage() {
+        // 16px tile, 6 zoom levels - 64 tiles across, each cropped to 1px
+        assertArrayEquals(new int[]{0, 0, 1, 1}, TileOverzoom.getCropArea(16, 16, 6, 0, 0));
+        assertArrayEquals(new int[]{15, 15, 1, 1}, TileOverzoom.getCropArea(16, 16, 6, 63, 63));
+    }
+
+    @Test
+    public void createTile_rejectsInvalidInput() {
+        assertNull(TileOverzoom.createTile(null, true, 1, 0, 0));
+        assertNull(TileOverzoom.createTile(new byte[0], false, 1, 0, 0));
+        assertNull(TileOverzoom.createTile(new byte[]{1}, true, 0, 0, 0));
+        assertNull(TileOverzoom.createTile(new byte[]{1}, true, TileOverzoom.MAX_OVERZOOM_LEVELS + 1, 0, 0));
+    }
+}
@@ -0,0 +1,88 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Tests reading the tiles requested from the {@link TileServer} batch endpoint. Rows are always
+ * in XYZ schema and coordinates outside the zoom level are rejected.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class TileServerTest {
+    @Test
+    public void parseTileRange_singleTile() {
+        assertArrayEquals(new int[]{14, 9000, 9000, 5000, 5000}, TileServer.parseTileRange("14", "9000", "5000"));
+    }
+
+    @Test
+    public void parseTileRange_minMaxValues() {
+        assertArrayEquals(new int[]{14, 9000, 9003, 5000, 5007}, TileServer.parseTileRange("14", "9000-9003", "5000-5007"));
+        // the last row and column of the zoom level are valid
+        assertArrayEquals(new int[]{2, 0, 3, 3, 3}, TileServer.parseTileRange("2", "0-3", "3"));
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0}, TileServer.parseTileRange("0", "0", "0"));
+    }
+
+    @Test
+    public void parseTileRange_rejectsCoordinatesOutsideZoomLevel() {
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("2", "4", "0"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("2", "0", "0-4"));
+        // TMS rows are sent as negative values to the tile endpoints - not here
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("2", "0", "-1"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("31", "0", "0"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("-1", "0", "0"));
+    }
+
+    @Test
+    public void parseTileRange_rejectsInvalidValues() {
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange(null, "0", "0"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("14", "a", "0"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("14", "9003-9000", "0"));
+    }
+
+    @Test
+    public void parseTileRange_rejectsTooManyTiles() {
+        // 16 x 16 tiles are the limit
+        assertArrayEquals(new int[]{14, 0, 15, 0, 15}, TileServer.parseTileRange("14", "0-15", "0-15"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileRange("14", "0-15", "0-16"));
+    }
+
+    @Test
+    public void parseTileList_readsXyzTiles() {
+        int[][] tiles = TileServer.parseTileList("14/9000/5000, 0/0/0,2/3/3");
+
+        assertEquals(3, tiles.length);
+        assertArrayEquals(new int[]{14, 9000, 5000}, tiles[0]);
+        assertArrayEquals(new int[]{0, 0, 0}, tiles[1]);
+        assertArrayEquals(new int[]{2, 3, 3}, tiles[2]);
+    }
+
+    @Test
+    public void parseTileList_rejectsCoordinatesOutsideZoomLevel() {
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("2/4/0"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("2/0/4"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("2/0/-1"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("31/0/0"));
+    }
+
+    @Test
+    public void parseTileList_rejectsInvalidValues() {
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("14/9000"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("14/9000/5000/1"));
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList("14/9000/y"));
+    }
+
+    @Test
+    public void parseTileList_rejectsTooManyTiles() {
+        StringBuilder tiles = new StringBuilder("0/0/0");
+        for (int i = 1; i < 256; i++) {
+            tiles.append(",0/0/0");
+        }
+        assertEquals(256, TileServer.parseTileList(tiles.toString()).length);
+        assertThrows(IllegalArgumentException.class, () -> TileServer.parseTileList(tiles + ",0/0/0"));
+    }
+}
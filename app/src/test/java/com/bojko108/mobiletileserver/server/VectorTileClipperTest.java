@@ -0,0 +1,597 @@
+package com.bojko108.mobiletileserver.server;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link VectorTileClipper} with small vector tiles, encoded and decoded by the minimal
+ * Mapbox Vector Tile writer and reader below. Geometries are compared after decoding - as
+ * absolute coordinates for each part of the geometry.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class VectorTileClipperTest {
+    private static final int EXTENT = 4096;
+    /**
+     * Clipped geometries are kept up to this distance outside of the tile
+     */
+    private static final int BUFFER = EXTENT / 16;
+
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+    private static final int POLYGON = 3;
+
+    @Test
+    public void clip_copiesLayerAndFeatureFields() {
+        byte[] tile = tile(layer("roads", EXTENT,
+                feature(7, POINT, moveTo(100, 100))));
+
+        Layer layer = single(decode(VectorTileClipper.clip(tile, 1, 0, 0)));
+
+        assertEquals("roads", layer.name);
+        assertEquals(EXTENT, layer.extent);
+        assertEquals(Arrays.asList("class"), layer.keys);
+        assertEquals(Arrays.asList("primary"), layer.values);
+        assertEquals(1, layer.features.size());
+        Feature feature = layer.features.get(0);
+        assertEquals(7, feature.id);
+        assertArrayEquals(new int[]{0, 0}, feature.tags);
+        assertEquals(POINT, feature.type);
+    }
+
+    @Test
+    public void clip_removesFeaturesAndLayersOutsideOfTheTile() {
+        byte[] tile = tile(
+                layer("inside", EXTENT,
+                        feature(1, POINT, moveTo(100, 100)),
+                        feature(2, POINT, moveTo(3000, 3000))),
+                layer("outside", EXTENT,
+                        feature(3, POINT, moveTo(3000, 100))));
+
+        List<Layer> layers = decode(VectorTileClipper.clip(tile, 1, 0, 0));
+
+        assertEquals(1, layers.size());
+        assertEquals("inside", layers.get(0).name);
+        assertEquals(1, layers.get(0).features.size());
+        assertEquals(1, layers.get(0).features.get(0).id);
+    }
+
+    @Test
+    public void clip_scalesAndShiftsPointsByOffset() {
+        byte[] tile = tile(layer("points", EXTENT,
+                feature(1, POINT, moveTo(100, 100)),
+                feature(2, POINT, moveTo(3500, 1500))));
+
+        // dz=1, top left quarter - only scaled
+        assertPoints(new int[]{200, 200}, VectorTileClipper.clip(tile, 1, 0, 0), 1);
+        // dz=2, tile (3, 1) of the 4x4 children - scaled by 4 and shifted by 3 and 1 extents
+        assertPoints(new int[]{3500 * 4 - 3 * EXTENT, 1500 * 4 - EXTENT}, VectorTileClipper.clip(tile, 2, 3, 1), 2);
+    }
+
+    @Test
+    public void clip_keepsPointsInTheBuffer() {
+        byte[] tile = tile(layer("points", EXTENT,
+                feature(1, POINT, moveTo(EXTENT / 2 + BUFFER / 2 - 1, 100))));
+
+        assertPoints(new int[]{EXTENT + BUFFER - 2, 200}, VectorTileClipper.clip(tile, 1, 0, 0), 1);
+    }
+
+    @Test
+    public void clip_clipsLineAtEachEdge() {
+        // a horizontal line from the middle of the tile to the right
+        byte[] horizontal = tile(layer("lines", EXTENT,
+                feature(1, LINESTRING, moveTo(1024, 1024).lineTo(3072, 1024))));
+        // right edge
+        assertLine(new int[]{2048, 2048, EXTENT + BUFFER, 2048}, VectorTileClipper.clip(horizontal, 1, 0, 0));
+        // left edge
+        assertLine(new int[]{-BUFFER, 2048, 2048, 2048}, VectorTileClipper.clip(horizontal, 1, 1, 0));
+
+        // a vertical line from the middle of the tile down
+        byte[] vertical = tile(layer("lines", EXTENT,
+                feature(1, LINESTRING, moveTo(1024, 1024).lineTo(1024, 3072))));
+        // bottom edge
+        assertLine(new int[]{2048, 2048, 2048, EXTENT + BUFFER}, VectorTileClipper.clip(vertical, 1, 0, 0));
+        // top edge
+        assertLine(new int[]{2048, -BUFFER, 2048, 2048}, VectorTileClipper.clip(vertical, 1, 0, 1));
+    }
+
+    @Test
+    public void clip_splitsLineLeavingAndEnteringTheTile() {
+        // goes right out of the top left quarter and comes back below
+        byte[] tile = tile(layer("lines", EXTENT,
+                feature(1, LINESTRING, moveTo(1024, 512).lineTo(3072, 512, 3072, 1536, 1024, 1536))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 0, 0));
+
+        assertEquals(2, feature.parts.size());
+        assertArrayEquals(new int[]{2048, 1024, EXTENT + BUFFER, 1024}, feature.parts.get(0));
+        assertArrayEquals(new int[]{EXTENT + BUFFER, 3072, 2048, 3072}, feature.parts.get(1));
+    }
+
+    @Test
+    public void clip_clipsPolygonAtRightAndBottomEdges() {
+        byte[] tile = tile(layer("areas", EXTENT,
+                feature(1, POLYGON, square(1024, 1024, 2048))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 0, 0));
+
+        assertEquals(1, feature.parts.size());
+        assertBounds(new int[]{2048, 2048, EXTENT + BUFFER, EXTENT + BUFFER}, feature.parts.get(0));
+        assertTrue("exterior ring winding", signedArea(feature.parts.get(0)) > 0);
+    }
+
+    @Test
+    public void clip_clipsPolygonAtLeftAndTopEdges() {
+        byte[] tile = tile(layer("areas", EXTENT,
+                feature(1, POLYGON, square(1024, 1024, 2048))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 1, 1));
+
+        assertEquals(1, feature.parts.size());
+        assertBounds(new int[]{-BUFFER, -BUFFER, 2048, 2048}, feature.parts.get(0));
+        assertTrue("exterior ring winding", signedArea(feature.parts.get(0)) > 0);
+    }
+
+    @Test
+    public void clip_keepsHoleInsideTheTile() {
+        // the hole is in the top left quarter
+        byte[] tile = tile(layer("areas", EXTENT,
+                feature(1, POLYGON, square(0, 0, EXTENT).hole(512, 512, 1024))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 0, 0));
+
+        assertEquals(2, feature.parts.size());
+        assertTrue("exterior ring winding", signedArea(feature.parts.get(0)) > 0);
+        assertTrue("interior ring winding", signedArea(feature.parts.get(1)) < 0);
+        assertBounds(new int[]{1024, 1024, 3072, 3072}, feature.parts.get(1));
+    }
+
+    @Test
+    public void clip_removesHoleOutsideOfTheTile() {
+        byte[] tile = tile(layer("areas", EXTENT,
+                feature(1, POLYGON, square(0, 0, EXTENT).hole(512, 512, 1024))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 1, 1));
+
+        assertEquals(1, feature.parts.size());
+        assertTrue("exterior ring winding", signedArea(feature.parts.get(0)) > 0);
+    }
+
+    @Test
+    public void clip_removesPolygonsOutsideOfTheTile() {
+        // the second polygon with its hole is in the bottom right quarter, outside of the buffer
+        byte[] tile = tile(layer("areas", EXTENT,
+                feature(1, POLYGON, square(0, 0, 1024).square(2560, 2560, 1024).hole(2816, 2816, 512))));
+
+        Feature feature = singleFeature(VectorTileClipper.clip(tile, 1, 0, 0));
+
+        assertEquals(1, feature.parts.size());
+        assertBounds(new int[]{0, 0, 2048, 2048}, feature.parts.get(0));
+    }
+
+    @Test
+    public void clip_keepsGzipCompression() throws IOException {
+        byte[] tile = tile(layer("points", EXTENT,
+                feature(1, POINT, moveTo(100, 100))));
+        byte[] compressed = gzip(tile);
+
+        byte[] clipped = VectorTileClipper.clip(compressed, 1, 0, 0);
+
+        assertNotNull(clipped);
+        assertEquals(0x1f, clipped[0] & 0xff);
+        assertEquals(0x8b, clipped[1] & 0xff);
+        assertArrayEquals(VectorTileClipper.clip(tile, 1, 0, 0), gunzip(clipped));
+    }
+
+    @Test
+    public void clip_returnsNullForInvalidTile() {
+        assertNull(VectorTileClipper.clip(new byte[]{0x1a, 0x7f, 0x01}, 1, 0, 0));
+    }
+
+    private static void assertPoints(int[] expected, byte[] clipped, int id) {
+        Feature feature = singleFeature(clipped);
+        assertEquals(id, feature.id);
+        assertEquals(1, feature.parts.size());
+        assertArrayEquals(expected, feature.parts.get(0));
+    }
+
+    private static void assertLine(int[] expected, byte[] clipped) {
+        Feature feature = singleFeature(clipped);
+        assertEquals(1, feature.parts.size());
+        assertArrayEquals(expected, feature.parts.get(0));
+    }
+
+    /**
+     * @param expected <i>min x, min y, max x, max y</i>
+     */
+    private static void assertBounds(int[] expected, int[] ring) {
+        int[] bounds = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+        for (int i = 0; i < ring.length; i += 2) {
+            bounds[0] = Math.min(bounds[0], ring[i]);
+            bounds[1] = Math.min(bounds[1], ring[i + 1]);
+            bounds[2] = Math.max(bounds[2], ring[i]);
+            bounds[3] = Math.max(bounds[3], ring[i + 1]);
+        }
+        assertArrayEquals(expected, bounds);
+    }
+
+    private static long signedArea(int[] ring) {
+        long area = 0;
+        for (int i = 0; i < ring.length; i += 2) {
+            int j = (i + 2) % ring.length;
+            area += (long) ring[i] * ring[j + 1] - (long) ring[j] * ring[i + 1];
+        }
+        return area;
+    }
+
+    private static Layer single(List<Layer> layers) {
+        assertEquals(1, layers.size());
+        return layers.get(0);
+    }
+
+    private static Feature singleFeature(byte[] clipped) {
+        Layer layer = single(decode(clipped));
+        assertEquals(1, layer.features.size());
+        return layer.features.get(0);
+    }
+
+    // geometry encoding
+
+    private static Geometry moveTo(int x, int y) {
+        return new Geometry().moveTo(x, y);
+    }
+
+    /**
+     * Exterior ring - clockwise in tile coordinates, where y grows down
+     */
+    private static Geometry square(int x, int y, int size) {
+        return new Geometry().square(x, y, size);
+    }
+
+    /**
+     * Encodes geometry commands from absolute coordinates.
+     */
+    private static class Geometry {
+        private final List<Integer> commands = new ArrayList<>();
+        private int x;
+        private int y;
+
+        private Geometry moveTo(int... points) {
+            return this.command(1, points);
+        }
+
+        private Geometry lineTo(int... points) {
+            return this.command(2, points);
+        }
+
+        private Geometry closePath() {
+            this.commands.add(command(7, 1));
+            return this;
+        }
+
+        private Geometry square(int x, int y, int size) {
+            return this.moveTo(x, y).lineTo(x + size, y, x + size, y + size, x, y + size).closePath();
+        }
+
+        /**
+         * Interior ring - counterclockwise
+         */
+        private Geometry hole(int x, int y, int size) {
+            return this.moveTo(x, y).lineTo(x, y + size, x + size, y + size, x + size, y).closePath();
+        }
+
+        private Geometry command(int id, int[] points) {
+            this.commands.add(command(id, points.length / 2));
+            for (int i = 0; i < points.length; i += 2) {
+                this.commands.add(zigZag(points[i] - this.x));
+                this.commands.add(zigZag(points[i + 1] - this.y));
+                this.x = points[i];
+                this.y = points[i + 1];
+            }
+            return this;
+        }
+
+        private int[] toArray() {
+            return VectorTileClipperTest.toArray(this.commands);
+        }
+
+        private static int command(int id, int count) {
+            return (count << 3) | id;
+        }
+
+        private static int zigZag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+    }
+
+    // tile encoding
+
+    private static byte[] tile(byte[]... layers) {
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        for (byte[] layer : layers) {
+            writeMessage(tile, 3, layer);
+        }
+        return tile.toByteArray();
+    }
+
+    private static byte[] layer(String name, int extent, byte[]... features) {
+        ByteArrayOutputStream layer = new ByteArrayOutputStream();
+        writeTag(layer, 15, 0);
+        writeVarint(layer, 2);
+        writeMessage(layer, 1, name.getBytes(StandardCharsets.UTF_8));
+        for (byte[] feature : features) {
+            writeMessage(layer, 2, feature);
+        }
+        writeMessage(layer, 3, "class".getBytes(StandardCharsets.UTF_8));
+        // value with a string_value field
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        writeMessage(value, 1, "primary".getBytes(StandardCharsets.UTF_8));
+        writeMessage(layer, 4, value.toByteArray());
+        writeTag(layer, 5, 0);
+        writeVarint(layer, extent);
+        return layer.toByteArray();
+    }
+
+    private static byte[] feature(long id, int type, Geometry geometry) {
+        ByteArrayOutputStream feature = new ByteArrayOutputStream();
+        writeTag(feature, 1, 0);
+        writeVarint(feature, id);
+        writeMessage(feature, 2, packed(new int[]{0, 0}));
+        writeTag(feature, 3, 0);
+        writeVarint(feature, type);
+        writeMessage(feature, 4, packed(geometry.toArray()));
+        return feature.toByteArray();
+    }
+
+    private static byte[] packed(int[] values) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        for (int value : values) {
+            writeVarint(packed, value & 0xffffffffL);
+        }
+        return packed.toByteArray();
+    }
+
+    private static void writeMessage(ByteArrayOutputStream output, int field, byte[] message) {
+        writeTag(output, field, 2);
+        writeVarint(output, message.length);
+        output.write(message, 0, message.length);
+    }
+
+    private static void writeTag(ByteArrayOutputStream output, int field, int wireType) {
+        writeVarint(output, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7fL) != 0) {
+            output.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    // tile decoding
+
+    private static class Layer {
+        private String name;
+        private int extent = EXTENT;
+        private final List<String> keys = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final List<Feature> features = new ArrayList<>();
+    }
+
+    private static class Feature {
+        private long id;
+        private int[] tags = new int[0];
+        private int type;
+        /**
+         * Absolute coordinates of each point, line or ring
+         */
+        private final List<int[]> parts = new ArrayList<>();
+    }
+
+    private static List<Layer> decode(byte[] tile) {
+        assertNotNull("clipped tile", tile);
+        List<Layer> layers = new ArrayList<>();
+        Reader reader = new Reader(tile);
+        while (reader.hasNext()) {
+            int tag = (int) reader.readVarint();
+            if (tag == (3 << 3 | 2)) {
+                layers.add(decodeLayer(new Reader(reader.readBytes())));
+            } else {
+                reader.skip(tag & 7);
+            }
+        }
+        return layers;
+    }
+
+    private static Layer decodeLayer(Reader reader) {
+        Layer layer = new Layer();
+        while (reader.hasNext()) {
+            int tag = (int) reader.readVarint();
+            switch (tag) {
+                case 1 << 3 | 2:
+                    layer.name = new String(reader.readBytes(), StandardCharsets.UTF_8);
+                    break;
+                case 2 << 3 | 2:
+                    layer.features.add(decodeFeature(new Reader(reader.readBytes())));
+                    break;
+                case 3 << 3 | 2:
+                    layer.keys.add(new String(reader.readBytes(), StandardCharsets.UTF_8));
+                    break;
+                case 4 << 3 | 2:
+                    Reader value = new Reader(reader.readBytes());
+                    value.readVarint();
+                    layer.values.add(new String(value.readBytes(), StandardCharsets.UTF_8));
+                    break;
+                case 5 << 3:
+                    layer.extent = (int) reader.readVarint();
+                    break;
+                default:
+                    reader.skip(tag & 7);
+            }
+        }
+        return layer;
+    }
+
+    private static Feature decodeFeature(Reader reader) {
+        Feature feature = new Feature();
+        int[] geometry = new int[0];
+        while (reader.hasNext()) {
+            int tag = (int) reader.readVarint();
+            switch (tag) {
+                case 1 << 3:
+                    feature.id = reader.readVarint();
+                    break;
+                case 2 << 3 | 2:
+                    feature.tags = new Reader(reader.readBytes()).readPacked();
+                    break;
+                case 3 << 3:
+                    feature.type = (int) reader.readVarint();
+                    break;
+                case 4 << 3 | 2:
+                    geometry = new Reader(reader.readBytes()).readPacked();
+                    break;
+                default:
+                    reader.skip(tag & 7);
+            }
+        }
+
+        int x = 0;
+        int y = 0;
+        List<Integer> part = new ArrayList<>();
+        int i = 0;
+        while (i < geometry.length) {
+            int id = geometry[i] & 7;
+            int count = geometry[i++] >>> 3;
+            if (id == 1 && !part.isEmpty()) {
+                feature.parts.add(toArray(part));
+                part.clear();
+            }
+            if (id == 7) {
+                continue;
+            }
+            assertTrue("command count", count > 0);
+            for (int n = 0; n < count; n++) {
+                int dx = unZigZag(geometry[i++]);
+                int dy = unZigZag(geometry[i++]);
+                if (id == 2) {
+                    assertTrue("LineTo must move the cursor", dx != 0 || dy != 0);
+                }
+                x += dx;
+                y += dy;
+                part.add(x);
+                part.add(y);
+            }
+        }
+        if (!part.isEmpty()) {
+            feature.parts.add(toArray(part));
+        }
+        return feature;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static class Reader {
+        private final byte[] data;
+        private int position;
+
+        private Reader(byte[] data) {
+            this.data = data;
+        }
+
+        private boolean hasNext() {
+            return this.position < this.data.length;
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = this.data[this.position++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+        }
+
+        private byte[] readBytes() {
+            int length = (int) this.readVarint();
+            byte[] result = Arrays.copyOfRange(this.data, this.position, this.position + length);
+            this.position += length;
+            return result;
+        }
+
+        private int[] readPacked() {
+            List<Integer> values = new ArrayList<>();
+            while (this.hasNext()) {
+                values.add((int) this.readVarint());
+            }
+            return toArray(values);
+        }
+
+        private void skip(int wireType) {
+            switch (wireType) {
+                case 0:
+                    this.readVarint();
+                    break;
+                case 1:
+                    this.position += 8;
+                    break;
+                case 2:
+                    this.readBytes();
+                    break;
+                case 5:
+                    this.position += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown wire type: " + wireType);
+            }
+        }
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(data);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        }
+    }
+}
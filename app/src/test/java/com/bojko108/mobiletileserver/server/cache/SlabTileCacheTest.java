@@ -0,0 +1,158 @@
+package com.bojko108.mobiletileserver.server.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests writing map tiles to the {@link SlabTileCache} ring buffer and overwriting the oldest ones.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class SlabTileCacheTest {
+    private File file;
+    private SlabTileCache slab;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("slab", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        if (this.slab != null) {
+            this.slab.close();
+        }
+        this.file.delete();
+    }
+
+    @Test
+    public void get_returnsStoredTile() {
+        SlabTileCache slab = this.open(100);
+        slab.put("tiles/a/1/0/0", tile(1, 20));
+
+        assertArrayEquals(tile(1, 20), slab.get("tiles/a/1/0/0"));
+        assertNull(slab.get("tiles/a/1/0/1"));
+        assertEquals(1, slab.getHitCount());
+        assertEquals(1, slab.getMissCount());
+    }
+
+    @Test
+    public void put_skipsEmptyAndLargeTiles() {
+        SlabTileCache slab = this.open(100);
+        slab.put("a", null);
+        slab.put("b", new byte[0]);
+        // larger than a quarter of the slab
+        slab.put("c", tile(3, 26));
+
+        assertNull(slab.get("a"));
+        assertNull(slab.get("b"));
+        assertNull(slab.get("c"));
+    }
+
+    @Test
+    public void put_overwritesOldestTilesWhenFull() {
+        SlabTileCache slab = this.open(100);
+        for (int i = 0; i < 4; i++) {
+            slab.put("tile" + i, tile(i, 25));
+        }
+        // the slab is full - writing continues from the beginning
+        slab.put("tile4", tile(4, 25));
+
+        assertNull(slab.get("tile0"));
+        for (int i = 1; i < 5; i++) {
+            assertArrayEquals(tile(i, 25), slab.get("tile" + i));
+        }
+    }
+
+    @Test
+    public void put_dropsTilesAtTheEndWhenWrapping() {
+        SlabTileCache slab = this.open(200);
+        for (int i = 0; i < 5; i++) {
+            slab.put("tile" + i, tile(i, 40));
+        }
+        // tile5 overwrites tile0 and tile1, tile6 overwrites tile2 and tile7 overwrites tile3
+        slab.put("tile5", tile(5, 50));
+        slab.put("tile6", tile(6, 50));
+        slab.put("tile7", tile(7, 50));
+        slab.put("tile8", tile(8, 5));
+        // 45 bytes are left after tile8 - tile4 at the end is dropped and tile5 is overwritten
+        slab.put("tile9", tile(9, 50));
+
+        for (int i = 0; i < 6; i++) {
+            assertNull(slab.get("tile" + i));
+        }
+        assertArrayEquals(tile(6, 50), slab.get("tile6"));
+        assertArrayEquals(tile(7, 50), slab.get("tile7"));
+        assertArrayEquals(tile(8, 5), slab.get("tile8"));
+        assertArrayEquals(tile(9, 50), slab.get("tile9"));
+    }
+
+    @Test
+    public void put_keepsTileStoredAgainBeforeOverwriting() {
+        SlabTileCache slab = this.open(100);
+        slab.put("a", tile(1, 25));
+        slab.put("b", tile(2, 25));
+        slab.put("a", tile(3, 25));
+        slab.put("c", tile(4, 25));
+        // overwrites the first copy of a
+        slab.put("d", tile(5, 25));
+
+        assertArrayEquals(tile(3, 25), slab.get("a"));
+        assertArrayEquals(tile(2, 25), slab.get("b"));
+    }
+
+    @Test
+    public void invalidate_removesTilesOfTileset() {
+        SlabTileCache slab = this.open(100);
+        slab.put(TileCache.keyFor("tiles/a", 1, 0, 0), tile(1, 10));
+        slab.put(TileCache.keyFor("tiles/ab", 1, 0, 0), tile(2, 10));
+
+        slab.invalidate("tiles/a");
+
+        assertNull(slab.get(TileCache.keyFor("tiles/a", 1, 0, 0)));
+        assertArrayEquals(tile(2, 10), slab.get(TileCache.keyFor("tiles/ab", 1, 0, 0)));
+    }
+
+    @Test
+    public void close_removesAllTiles() {
+        SlabTileCache slab = this.open(100);
+        slab.put("a", tile(1, 10));
+
+        slab.close();
+
+        assertFalse(slab.isOpen());
+        assertNull(slab.get("a"));
+    }
+
+    @Test
+    public void open_failsForZeroSize() {
+        this.slab = new SlabTileCache(this.file, 0);
+
+        assertFalse(this.slab.open());
+        assertFalse(this.slab.isOpen());
+    }
+
+    private SlabTileCache open(int sizeInBytes) {
+        this.slab = new SlabTileCache(this.file, sizeInBytes);
+        assertTrue(this.slab.open());
+        return this.slab;
+    }
+
+    private static byte[] tile(int value, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
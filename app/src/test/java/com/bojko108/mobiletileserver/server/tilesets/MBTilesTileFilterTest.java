@@ -0,0 +1,92 @@
+package com.bojko108.mobiletileserver.server.tilesets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a {@link MBTilesTileFilter} is used only with the version of the file it was built from.
+ * <p>
+ * Mobile Tile Server, Copyright (c) 2020 by bojko108
+ * <p/>
+ */
+public class MBTilesTileFilterTest {
+    private File file;
+    private File otherFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = File.createTempFile("tileset", ".mbtiles");
+        this.otherFile = File.createTempFile("other", ".mbtiles");
+        Files.write(this.file.toPath(), new byte[1024]);
+        Files.write(this.otherFile.toPath(), new byte[1024]);
+        assertTrue(this.file.setLastModified(1445412480000L));
+        assertTrue(this.otherFile.setLastModified(1445412480000L));
+    }
+
+    @After
+    public void tearDown() {
+        this.file.delete();
+        this.otherFile.delete();
+    }
+
+    @Test
+    public void isBuiltFrom_sameFile() {
+        MBTilesTileFilter filter = new MBTilesTileFilter(this.file, 100);
+
+        assertTrue(filter.isBuiltFrom(this.file));
+        assertTrue(filter.isBuiltFrom(this.file.lastModified(), 1024));
+    }
+
+    @Test
+    public void isBuiltFrom_falseForModifiedFile() throws IOException {
+        MBTilesTileFilter filter = new MBTilesTileFilter(this.file, 100);
+
+        assertTrue(this.file.setLastModified(1445412490000L));
+        assertFalse(filter.isBuiltFrom(this.file));
+        assertFalse(filter.isBuiltFrom(1445412490000L, 1024));
+
+        assertTrue(this.file.setLastModified(1445412480000L));
+        Files.write(this.file.toPath(), new byte[1], StandardOpenOption.APPEND);
+        assertTrue(this.file.setLastModified(1445412480000L));
+        assertFalse(filter.isBuiltFrom(this.file));
+        assertFalse(filter.isBuiltFrom(1445412480000L, 1025));
+    }
+
+    @Test
+    public void isBuiltFrom_falseForOtherFile() {
+        MBTilesTileFilter filter = new MBTilesTileFilter(this.file, 100);
+
+        // same size and last modified time
+        assertFalse(filter.isBuiltFrom(this.otherFile));
+    }
+
+    @Test
+    public void isBuiltFrom_falseForMissingFile() {
+        MBTilesTileFilter filter = new MBTilesTileFilter(this.file, 100);
+        assertTrue(this.file.delete());
+
+        assertFalse(filter.isBuiltFrom(this.file));
+
+        // created for a file, which does not exist
+        MBTilesTileFilter missing = new MBTilesTileFilter(this.file, 100);
+        assertFalse(missing.isBuiltFrom(this.file));
+        assertFalse(missing.isBuiltFrom(-1, -1));
+    }
+
+    @Test
+    public void mightContain_trueUntilBuilt() {
+        MBTilesTileFilter filter = new MBTilesTileFilter(this.file, 100);
+
+        assertFalse(filter.isReady());
+        assertTrue(filter.mightContain(14, 9000, 5000));
+    }
+}